@@ -0,0 +1,423 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import veridis.embedded.rex.RexEndpoint;
+import veridis.embedded.rex.RexEventLoopGroup;
+import veridis.embedded.rex.RexFrame;
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.device.RexDevice;
+import veridis.embedded.rex.messages.MsgIO;
+import veridis.embedded.rex.messages.MsgRS232;
+
+/**
+ * Latência de atuação: do KeyTyped/InputChange/ImageCapture enviado pelo Rex até o DigitalOutput
+ * que o servidor manda de volta, medida por Rex simulados (RexDevice) via loopback.
+ *
+ * Cada Rex tem no máximo um evento pendente; o tempo é medido no Rex (envio até a chegada do DigitalOutput)
+ * e no servidor (chegada da mensagem até o DigitalOutput ser escrito no socket).
+ * Imagens e RS232 de fundo ("--images", "--rs232") não geram resposta.
+ *
+ * Uso:
+ *   javac -d out $(find src -name '*.java')
+ *   java -cp out bench/ActuationLatency.java [--fleet 10,1000,10000] [--events 20000] [--rate 2000]
+ *       [--images 0] [--image-size 262144] [--rs232 0] [--shards N] [--baseline baseline.properties]
+ *       [--tolerance 0.25] [--write-baseline]
+ *
+ * Com --baseline, termina com código 1 se algum percentil ficar acima do baseline mais a tolerância,
+ * ou se um fleet do baseline não foi medido.
+ * --write-baseline grava os valores medidos no arquivo de baseline.
+ */
+public class ActuationLatency {
+	static final int EVENT_KEY = 0;
+	static final int EVENT_INPUT = 1;
+	static final int EVENT_IMAGE = 2;
+	static final String FLOOD_READER = "flood";
+
+	static int[] fleets = {10, 1000, 10000};
+	static int events = 20000;
+	static int rate = 2000;
+	static int images = 0;
+	static int imageSize = 256 * 1024;
+	static int rs232 = 0;
+	static int shards = Runtime.getRuntime().availableProcessors();
+	static File baseline;
+	static double tolerance = 0.25;
+	static boolean writeBaseline;
+
+	public static void main(String[] args) throws Exception {
+		for (int i=0; i<args.length; i++) {
+			String arg = args[i];
+			String value = i + 1 < args.length ? args[i + 1] : null;
+			switch (arg) {
+				case "--fleet": fleets = parseList(value); i++; break;
+				case "--events": events = Integer.parseInt(value); i++; break;
+				case "--rate": rate = Integer.parseInt(value); i++; break;
+				case "--images": images = Integer.parseInt(value); i++; break;
+				case "--image-size": imageSize = Integer.parseInt(value); i++; break;
+				case "--rs232": rs232 = Integer.parseInt(value); i++; break;
+				case "--shards": shards = Integer.parseInt(value); i++; break;
+				case "--baseline": baseline = new File(value); i++; break;
+				case "--tolerance": tolerance = Double.parseDouble(value); i++; break;
+				case "--write-baseline": writeBaseline = true; break;
+				default:
+					System.err.println("Unknown option: " + arg);
+					System.exit(2);
+			}
+		}
+
+		if (baseline != null && !writeBaseline && !baseline.isFile()) {
+			System.err.println("Baseline not found: " + baseline + " (write it on this machine with --write-baseline)");
+			System.exit(2);
+		}
+
+		Properties measured = new Properties();
+		for (int fleet : fleets)
+			run(fleet, measured);
+
+		if (baseline == null)
+			System.exit(0);
+		if (writeBaseline) {
+			try (OutputStream out = new FileOutputStream(baseline)) {
+				measured.store(out, "ActuationLatency baseline, in microseconds");
+			}
+			System.out.println("Baseline written to " + baseline);
+			System.exit(0);
+		}
+		System.exit(compare(measured) ? 0 : 1);
+	}
+
+	static int[] parseList(String value) {
+		String[] parts = value.split(",");
+		int[] list = new int[parts.length];
+		for (int i=0; i<parts.length; i++)
+			list[i] = Integer.parseInt(parts[i].trim());
+		return list;
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Servidor mínimo: responde cada evento com um pulso no relé */
+	static class Server extends RexEndpoint implements MsgIO.InputListener, MsgIO.ImageCaptureListener {
+		final RexEventLoopGroup loops;
+		final ServerSocketChannel serverChannel;
+		final RexFrame relay;
+		final Samples samples;
+
+		Server(int shards, Samples samples) throws IOException {
+			this.samples = samples;
+			loops = new RexEventLoopGroup("JA200-Bench-Server", shards);
+			relay = RexFrame.record(new RexFrame.Sender() {
+				@Override
+				public void send(RexProtocol comm) throws IOException {
+					MsgIO.DigitalOutput.send(comm, MsgIO.DigitalOutput.IO_TYPE_RELAY, 0, 100, 0, 1);
+				}
+			}).get(0);
+			addMessageHandler(new MsgIO.KeyTyped(this));
+			addMessageHandler(new MsgIO.InputChange(this));
+			addMessageHandler(new MsgIO.ImageCapture(this));
+			addMessageHandler(new MsgRS232.Write(new MsgRS232.RS232Listener() {
+				@Override public void rs232Open(RexProtocol conn, int portNumber, int baud, int parity, int bits, int stopBits, int flowControl) {}
+				@Override public void rs232Close(RexProtocol conn, int portNumber) {}
+				@Override public void rs232SetMode(RexProtocol conn, int portNumber, boolean synchroneous, boolean binary, int packSize) {}
+				@Override public void rs232Read(RexProtocol conn, int portNumber, int bufferLength) {}
+				@Override public void rs232Write(RexProtocol conn, int portNumber, byte[] buffer) {}
+			}));
+			setQuarantine(null);
+
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+			Thread acceptor = new Thread("JA200-Bench-Accept") {
+				public void run() {
+					while (serverChannel.isOpen()) {
+						try {
+							SocketChannel channel = serverChannel.accept();
+							new RexProtocol.NioTCP(Server.this, loops.loopFor(channel.getRemoteAddress()), channel);
+						} catch (IOException e) {
+							if (serverChannel.isOpen())
+								System.err.println("Accept failed: " + e.getMessage());
+						}
+					}
+				};
+			};
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		SocketAddress getAddress() throws IOException {
+			return serverChannel.getLocalAddress();
+		}
+
+		void actuate(RexProtocol comm) {
+			final long received = System.nanoTime();
+			((RexProtocol.Connection)comm).submit(relay).whenComplete(new BiConsumer<Void, Throwable>() {
+				@Override
+				public void accept(Void v, Throwable error) {
+					if (error == null)
+						samples.server(System.nanoTime() - received);
+				}
+			});
+		}
+
+		@Override
+		public void inputChanged(RexProtocol comm, int port, boolean isOn) {
+			actuate(comm);
+		}
+		@Override
+		public void keyTyped(RexProtocol comm, int keyCode) {
+			actuate(comm);
+		}
+		@Override
+		public void imageCaptured(RexProtocol comm, int width, int height, int resX, int resY, byte[] imgBuf, String sensorName) {
+			if (!FLOOD_READER.equals(sensorName))
+				actuate(comm);
+		}
+
+		void shutdown() throws IOException {
+			serverChannel.close();
+			loops.shutdown();
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Latências em ns, depois do aquecimento */
+	static class Samples {
+		final long[] endToEnd;
+		final long[] server;
+		final AtomicLong endToEndCount = new AtomicLong();
+		final AtomicLong serverCount = new AtomicLong();
+		volatile boolean recording;
+
+		Samples(int capacity) {
+			endToEnd = new long[capacity];
+			server = new long[capacity * 2];
+		}
+
+		void endToEnd(long ns) {
+			if (!recording)
+				return;
+			long i = endToEndCount.getAndIncrement();
+			if (i < endToEnd.length)
+				endToEnd[(int)i] = ns;
+		}
+
+		void server(long ns) {
+			if (!recording)
+				return;
+			long i = serverCount.getAndIncrement();
+			if (i < server.length)
+				server[(int)i] = ns;
+		}
+	}
+
+	/** Rex simulado: um evento pendente por vez, e o instante em que foi enviado */
+	static class Controller extends RexDevice.VirtualIOAdapter {
+		final AtomicLongArray pending;
+		final int index;
+		final Samples samples;
+
+		Controller(AtomicLongArray pending, int index, Samples samples) {
+			this.pending = pending;
+			this.index = index;
+			this.samples = samples;
+		}
+
+		@Override
+		public void toggleDigitalOutput(RexProtocol comm, int portType, int portNum, int timeOn, int timeOff, int repeats) {
+			long sent = pending.getAndSet(index, 0);
+			if (sent != 0)
+				samples.endToEnd(System.nanoTime() - sent);
+		}
+	}
+
+	/** Limite de descritores do processo, ou -1 se não for possível saber */
+	static long maxFileDescriptors() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof UnixOperatingSystemMXBean)
+			return ((UnixOperatingSystemMXBean)os).getMaxFileDescriptorCount();
+		return -1;
+	}
+
+	static void run(int fleet, Properties measured) throws Exception {
+		//Os dois lados de cada conexão estão neste processo
+		long maxFds = maxFileDescriptors();
+		if (maxFds > 0 && fleet * 2L + 512 > maxFds) {
+			System.out.println(String.format("fleet=%d skipped: needs about %d file descriptors, limit is %d (ulimit -n)", fleet, fleet * 2L + 512, maxFds));
+			return;
+		}
+		Samples samples = new Samples(events);
+		Server server = new Server(shards, samples);
+		RexEventLoopGroup deviceLoops = new RexEventLoopGroup("JA200-Bench-Device", shards);
+		AtomicLongArray pending = new AtomicLongArray(fleet);
+		RexDevice[] devices = new RexDevice[fleet];
+		List<CompletableFuture<RexProtocol.NioTCP>> connections = new ArrayList<CompletableFuture<RexProtocol.NioTCP>>();
+		RexDevice.Features features = new RexDevice.Features(4, 4, 4, 1, 1, true, true, true);
+		for (int i=0; i<fleet; i++) {
+			byte[] mac = {0x00, 0x1e, 0x33, (byte)(i >> 16), (byte)(i >> 8), (byte)i};
+			byte[] ip = {127, 0, 0, 1};
+			devices[i] = new RexDevice(deviceLoops.get(i % deviceLoops.size()), String.format("BENCH%07d", i), mac, ip, features, new Controller(pending, i, samples));
+			connections.add(devices[i].connect(server.getAddress()));
+		}
+		int connected = 0;
+		for (CompletableFuture<RexProtocol.NioTCP> connection : connections) {
+			try {
+				connection.get(30, TimeUnit.SECONDS);
+				connected++;
+			} catch (Exception e) {}
+		}
+		Thread.sleep(200);
+
+		Random random = new Random(fleet);
+		byte[] smallImage = new byte[64 * 64];
+		byte[] floodImage = new byte[imageSize];
+		byte[] chatter = new byte[64];
+		random.nextBytes(chatter);
+
+		//10% dos eventos para aquecer, depois os medidos
+		int warmup = events / 10;
+		long interval = 1000000000L / rate;
+		long imageInterval = images > 0 ? 1000000000L / images : Long.MAX_VALUE;
+		long rs232Interval = rs232 > 0 ? 1000000000L / rs232 : Long.MAX_VALUE;
+		long next = System.nanoTime(), nextImage = next, nextRs232 = next;
+		int sent = 0, skipped = 0, kind = 0;
+		while (sent < warmup + events) {
+			long now = System.nanoTime();
+			if (now - next < 0) {
+				long wait = Math.min(next, Math.min(nextImage, nextRs232)) - now;
+				if (wait > 0)
+					TimeUnit.NANOSECONDS.sleep(Math.min(wait, 1000000));
+				now = System.nanoTime();
+			}
+			if (now - nextImage >= 0) {
+				nextImage += imageInterval;
+				try {
+					devices[random.nextInt(fleet)].imageCaptured(FLOOD_READER, 512, imageSize / 512, 500, 500, floodImage);
+				} catch (IOException e) {}
+			}
+			if (now - nextRs232 >= 0) {
+				nextRs232 += rs232Interval;
+				try {
+					devices[random.nextInt(fleet)].rs232Received(random.nextInt(4), chatter);
+				} catch (IOException e) {}
+			}
+			if (now - next < 0)
+				continue;
+			next += interval;
+			int d = random.nextInt(fleet);
+			if (!pending.compareAndSet(d, 0, System.nanoTime())) {
+				skipped++;
+				continue;
+			}
+			if (sent == warmup)
+				samples.recording = true;
+			try {
+				switch (kind++ % 3) {
+					case EVENT_KEY: devices[d].keyTyped('0' + sent % 10); break;
+					case EVENT_INPUT: devices[d].inputChanged(sent % 4, sent % 2 == 0); break;
+					case EVENT_IMAGE: devices[d].imageCaptured("main", 64, 64, 500, 500, smallImage); break;
+				}
+				sent++;
+			} catch (IOException e) {
+				pending.set(d, 0);
+				skipped++;
+			}
+		}
+		//Espera as últimas respostas
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (System.nanoTime() < deadline && samples.endToEndCount.get() < events)
+			Thread.sleep(10);
+
+		System.out.println(String.format("fleet=%d connected=%d events=%d skipped=%d rate=%d/s images=%d/s rs232=%d/s shards=%d",
+			fleet, connected, samples.endToEndCount.get(), skipped, rate, images, rs232, shards));
+		report("fleet." + fleet + ".e2e", "  end-to-end", samples.endToEnd, samples.endToEndCount.get(), measured);
+		report("fleet." + fleet + ".server", "  server    ", samples.server, samples.serverCount.get(), measured);
+
+		for (RexDevice device : devices)
+			device.shutdown();
+		deviceLoops.shutdown();
+		server.shutdown();
+		Thread.sleep(200);
+	}
+
+	static void report(String key, String label, long[] samples, long count, Properties measured) {
+		int n = (int)Math.min(count, samples.length);
+		if (n == 0) {
+			System.out.println(label + " no samples");
+			return;
+		}
+		long[] sorted = Arrays.copyOf(samples, n);
+		Arrays.sort(sorted);
+		long p50 = percentile(sorted, 0.50), p99 = percentile(sorted, 0.99), p999 = percentile(sorted, 0.999);
+		System.out.println(String.format("%s us: p50=%d p99=%d p99.9=%d max=%d", label, p50 / 1000, p99 / 1000, p999 / 1000, sorted[n - 1] / 1000));
+		measured.setProperty(key + ".p50", Long.toString(p50 / 1000));
+		measured.setProperty(key + ".p99", Long.toString(p99 / 1000));
+		measured.setProperty(key + ".p99.9", Long.toString(p999 / 1000));
+	}
+
+	/** Chaves "fleet.N.*" dos fleets deste teste */
+	static boolean requested(String key) {
+		for (int fleet : fleets) {
+			if (key.startsWith("fleet." + fleet + "."))
+				return true;
+		}
+		return false;
+	}
+
+	static long percentile(long[] sorted, double p) {
+		int i = (int)Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+	}
+
+	/**
+	 * true se nenhum valor passou do baseline mais a tolerância.
+	 * Um valor do baseline de um fleet pedido (--fleet) que não foi medido (fleet pulado, nenhuma resposta) também falha
+	 */
+	static boolean compare(Properties measured) throws IOException {
+		Properties expected = new Properties();
+		try (InputStream in = new FileInputStream(baseline)) {
+			expected.load(in);
+		}
+		boolean ok = true;
+		for (String key : expected.stringPropertyNames()) {
+			if (!requested(key))
+				continue;
+			String base = expected.getProperty(key);
+			String measuredValue = measured.getProperty(key);
+			if (measuredValue == null) {
+				System.out.println(String.format("NOT MEASURED %s (baseline %sus)", key, base));
+				ok = false;
+				continue;
+			}
+			long value = Long.parseLong(measuredValue);
+			long limit = (long)(Long.parseLong(base) * (1 + tolerance));
+			if (value > limit) {
+				System.out.println(String.format("REGRESSION %s: %dus > %sus +%d%%", key, value, base, Math.round(tolerance * 100)));
+				ok = false;
+			}
+		}
+		System.out.println(ok ? "Latency within baseline" : "Latency regressed");
+		return ok;
+	}
+}
@@ -0,0 +1,232 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import veridis.embedded.rex.MessageView;
+import veridis.embedded.rex.RexEndpoint;
+import veridis.embedded.rex.RexFrame;
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.messages.MsgDisplay;
+import veridis.embedded.rex.messages.MsgIO;
+
+/**
+ * Bytes alocados por mensagem nos caminhos quentes, medidos com ThreadMXBean.getThreadAllocatedBytes
+ * na própria thread, depois do aquecimento (o JIT precisa eliminar as alocações que não escapam).
+ *
+ * Recepção, por RexProtocol.handleMessage(ByteBuffer): InputChange e KeyTyped (handlers com listener)
+ * e ImageCapture pela view, sem copiar os pixels. Envio, por sendCommand/sendFrame até o RexFrame
+ * (o transporte não entra): DigitalOutput e Display.Write.
+ *
+ * Uso:
+ *   javac -d out $(find src -name '*.java')
+ *   java -cp out bench/AllocationBudget.java [--iterations 1000000] [--budget bench/allocation-budget.properties]
+ *       [--write-budget]
+ *
+ * Com --budget, termina com código 1 se algum comando alocar mais que o orçamento.
+ * --write-budget grava os valores medidos no arquivo de orçamento.
+ */
+public class AllocationBudget {
+	static int iterations = 1000000;
+	static File budget;
+	static boolean writeBudget;
+
+	public static void main(String[] args) throws Exception {
+		for (int i=0; i<args.length; i++) {
+			String arg = args[i];
+			String value = i + 1 < args.length ? args[i + 1] : null;
+			switch (arg) {
+				case "--iterations": iterations = Integer.parseInt(value); i++; break;
+				case "--budget": budget = new File(value); i++; break;
+				case "--write-budget": writeBudget = true; break;
+				default:
+					System.err.println("Unknown option: " + arg);
+					System.exit(2);
+			}
+		}
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.err.println("ThreadMXBean.getThreadAllocatedBytes is not supported by this JVM");
+			System.exit(2);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		Properties measured = new Properties();
+		for (Scenario scenario : scenarios()) {
+			long bytes = measure(threads, scenario);
+			measured.setProperty(scenario.name, Long.toString(bytes));
+			System.out.println(String.format("%-22s %6d bytes/message", scenario.name, bytes));
+		}
+
+		if (budget == null)
+			System.exit(0);
+		if (writeBudget) {
+			try (OutputStream out = new FileOutputStream(budget)) {
+				measured.store(out, "AllocationBudget, in bytes per message");
+			}
+			System.out.println("Budget written to " + budget);
+			System.exit(0);
+		}
+		System.exit(compare(measured) ? 0 : 1);
+	}
+
+	/** Bytes por execução, arredondado para cima: qualquer alocação residual aparece */
+	static long measure(com.sun.management.ThreadMXBean threads, Scenario scenario) throws IOException {
+		long id = Thread.currentThread().getId();
+		//Aquece em rodadas, para o JIT compilar o laço inteiro (e não só o OSR)
+		for (int round=0; round<5; round++)
+			scenario.run(iterations / 5);
+		//O que a própria medição aloca
+		long before = threads.getThreadAllocatedBytes(id);
+		long overhead = threads.getThreadAllocatedBytes(id) - before;
+		before = threads.getThreadAllocatedBytes(id);
+		scenario.run(iterations);
+		long allocated = threads.getThreadAllocatedBytes(id) - before - overhead;
+		return (Math.max(0, allocated) + iterations - 1) / iterations;
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	static abstract class Scenario {
+		final String name;
+
+		Scenario(String name) {
+			this.name = name;
+		}
+
+		abstract void run(int n) throws IOException;
+	}
+
+	/** Entrega a mesma mensagem n vezes a handleMessage, como a recepção faz com o buffer de leitura */
+	static class Decode extends Scenario {
+		final RexProtocol protocol;
+		final ByteBuffer frame;
+
+		Decode(String name, RexEndpoint rex, RexFrame message) {
+			super(name);
+			this.protocol = new Sink(rex);
+			ByteBuffer bytes = message.asByteBuffer();
+			frame = ByteBuffer.allocateDirect(bytes.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+			frame.put(bytes).flip();
+		}
+
+		@Override
+		void run(int n) throws IOException {
+			int end = frame.limit();
+			for (int i=0; i<n; i++) {
+				frame.limit(end).position(0);
+				protocol.handleMessage(frame);
+			}
+		}
+	}
+
+	/** Protocolo que descarta o que é enviado. Guarda a última mensagem, como uma fila guardaria */
+	static class Sink extends RexProtocol {
+		volatile RexFrame last;
+
+		Sink(RexEndpoint rex) {
+			super(rex);
+		}
+
+		@Override
+		public void sendFrame(RexFrame frame) {
+			last = frame;
+		}
+
+		@Override
+		public void handleProtocol() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/** Soma o que os listeners leem, para o JIT não descartar as leituras */
+	static long checksum;
+
+	static List<Scenario> scenarios() throws IOException {
+		RexEndpoint rex = new RexEndpoint() {};
+		rex.setQuarantine(null);
+		MsgIO.InputListener input = new MsgIO.InputListener() {
+			@Override
+			public void inputChanged(RexProtocol comm, int port, boolean isOn) {
+				checksum += port + (isOn ? 1 : 0);
+			}
+			@Override
+			public void keyTyped(RexProtocol comm, int keyCode) {
+				checksum += keyCode;
+			}
+		};
+		rex.addMessageHandler(new MsgIO.InputChange(input));
+		rex.addMessageHandler(new MsgIO.KeyTyped(input));
+		rex.addMessageHandler(new MsgIO.ImageCaptureView.Handler(new MessageView.Listener<MsgIO.ImageCaptureView>() {
+			@Override
+			public void received(RexProtocol comm, MsgIO.ImageCaptureView view) {
+				checksum += view.width() * view.height() + view.pixels().get(0);
+			}
+		}));
+
+		final byte[] pixels = new byte[640 * 480];
+		final RexFrame inputChange = RexFrame.ofInts(MsgIO.COMMAND_INPUT_CHANGED, 3, 1);
+		final RexFrame keyTyped = RexFrame.ofInts(MsgIO.COMMAND_KEY_TYPED, '5');
+		final RexFrame image = record(new RexFrame.Sender() {
+			@Override
+			public void send(RexProtocol comm) throws IOException {
+				MsgIO.ImageCapture.send(comm, "reader0", 640, 480, 96, 96, pixels);
+			}
+		});
+
+		final Sink sink = new Sink(rex);
+		List<Scenario> scenarios = new ArrayList<Scenario>();
+		scenarios.add(new Decode("InputChange.decode", rex, inputChange));
+		scenarios.add(new Decode("KeyTyped.decode", rex, keyTyped));
+		scenarios.add(new Decode("ImageCapture.decode", rex, image));
+		scenarios.add(new Scenario("DigitalOutput.send") {
+			@Override
+			void run(int n) throws IOException {
+				for (int i=0; i<n; i++)
+					MsgIO.DigitalOutput.send(sink, MsgIO.DigitalOutput.IO_TYPE_RELAY, i & 3, 200, 0, 1);
+			}
+		});
+		scenarios.add(new Scenario("Display.Write.send") {
+			@Override
+			void run(int n) throws IOException {
+				for (int i=0; i<n; i++)
+					MsgDisplay.Write.send(sink, "Acesso liberado", 0, 0);
+			}
+		});
+		return scenarios;
+	}
+
+	static RexFrame record(RexFrame.Sender sender) throws IOException {
+		return RexFrame.record(sender).get(0);
+	}
+
+	/** true se nenhum comando passou do orçamento */
+	static boolean compare(Properties measured) throws IOException {
+		Properties expected = new Properties();
+		try (InputStream in = new FileInputStream(budget)) {
+			expected.load(in);
+		}
+		boolean ok = true;
+		for (String key : measured.stringPropertyNames()) {
+			String limit = expected.getProperty(key);
+			if (limit == null)
+				continue;
+			long value = Long.parseLong(measured.getProperty(key));
+			if (value > Long.parseLong(limit)) {
+				System.out.println(String.format("OVER BUDGET %s: %d bytes > %s bytes", key, value, limit));
+				ok = false;
+			}
+		}
+		System.out.println(ok ? "Allocations within budget" : "Allocations over budget");
+		return ok;
+	}
+}
@@ -0,0 +1,87 @@
+package veridis.embedded.rex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * Buffers de recepção para mensagens grandes (imagens), compartilhados por todas as conexões.
+ *
+ * Os tamanhos são potências de 2, de MIN_SIZE até FrameLimits.MAX_FRAME. O total emprestado ao mesmo tempo
+ * é limitado por maxInUse: acima disso acquire() falha e a conexão é fechada, em vez de alocar sem limite.
+ */
+public class BufferPool {
+	public static final int MIN_SIZE = 32 * 1024;
+
+	public static final BufferPool DEFAULT = new BufferPool(64L * 1024 * 1024, 8);
+
+	private final long maxInUse;
+	private final int maxFreePerSize;
+	/** Buffers livres, por log2 do tamanho */
+	private final ArrayDeque<ByteBuffer>[] free;
+	private long inUse;
+	private long peakInUse;
+	private long rejected;
+
+	/**
+	 * @param maxInUse Bytes emprestados ao mesmo tempo, somando todas as conexões
+	 * @param maxFreePerSize Buffers livres guardados de cada tamanho
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(long maxInUse, int maxFreePerSize) {
+		this.maxInUse = maxInUse;
+		this.maxFreePerSize = maxFreePerSize;
+		this.free = (ArrayDeque<ByteBuffer>[])new ArrayDeque<?>[32];
+		for (int i=0; i<free.length; i++)
+			free[i] = new ArrayDeque<ByteBuffer>();
+	}
+
+	private static int sizeClass(int size) {
+		return 32 - Integer.numberOfLeadingZeros(Math.max(size, MIN_SIZE) - 1);
+	}
+
+	/** Buffer little-endian com pelo menos size bytes, entre position 0 e limit size */
+	public ByteBuffer acquire(int size) throws IOException {
+		if (size < 0 || size > FrameLimits.MAX_FRAME)
+			throw new IOException("Invalid buffer size: " + size);
+		int sizeClass = sizeClass(size);
+		int capacity = 1 << sizeClass;
+		ByteBuffer buffer;
+		synchronized (this) {
+			if (inUse + capacity > maxInUse) {
+				rejected++;
+				throw new IOException("Receive memory exhausted: " + inUse + " bytes in use");
+			}
+			inUse += capacity;
+			if (inUse > peakInUse)
+				peakInUse = inUse;
+			buffer = free[sizeClass].poll();
+		}
+		if (buffer == null)
+			buffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.clear().limit(size);
+		return buffer;
+	}
+
+	/** Devolve um buffer obtido com acquire() */
+	public void release(ByteBuffer buffer) {
+		int sizeClass = sizeClass(buffer.capacity());
+		synchronized (this) {
+			inUse -= buffer.capacity();
+			if (free[sizeClass].size() < maxFreePerSize)
+				free[sizeClass].add(buffer);
+		}
+	}
+
+	public synchronized long getInUse() {
+		return inUse;
+	}
+	public synchronized long getPeakInUse() {
+		return peakInUse;
+	}
+	/** Pedidos recusados por falta de memória */
+	public synchronized long getRejectedCount() {
+		return rejected;
+	}
+}
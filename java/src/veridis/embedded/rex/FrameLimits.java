@@ -0,0 +1,65 @@
+package veridis.embedded.rex;
+
+import java.util.Arrays;
+
+import veridis.embedded.rex.codec.Messages;
+import veridis.embedded.rex.messages.MsgIO;
+import veridis.embedded.rex.messages.MsgRS232;
+
+/**
+ * Tamanho máximo dos argumentos de cada comando recebido.
+ *
+ * Uma mensagem acima do limite é descartada sem ser lida para a memória, e conta como violação
+ * (ver {@link Quarantine}). Os limites padrão cobrem um Rex com leitores e portas seriais;
+ * depois do FeaturesResponse, {@link #forFeatures} zera os comandos que o Rex não tem como enviar.
+ */
+public class FrameLimits {
+	/** Argumentos de comandos que são só alguns inteiros */
+	public static final int DEFAULT_MAX_ARGS = 4 * 1024;
+	/** Imagem de até 1 MB, mais os campos e o nome do leitor */
+	public static final int DEFAULT_MAX_IMAGE = 1024 * 1024 + 16 + 256;
+	public static final int DEFAULT_MAX_RS232 = 64 * 1024;
+	/** Acima disso o tamanho é considerado lixo, e não uma mensagem grande demais: a leitura ressincroniza */
+	public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+	public static final FrameLimits DEFAULT = new FrameLimits()
+		.set(MsgIO.COMMAND_IMAGE_ACQUIRED, DEFAULT_MAX_IMAGE)
+		.set(MsgRS232.COMMAND_RS232_WRITE, DEFAULT_MAX_RS232);
+
+	private final int[] maxArgs = new int[256];
+
+	public FrameLimits() {
+		Arrays.fill(maxArgs, DEFAULT_MAX_ARGS);
+	}
+
+	private FrameLimits(FrameLimits other) {
+		System.arraycopy(other.maxArgs, 0, maxArgs, 0, maxArgs.length);
+	}
+
+	public FrameLimits copy() {
+		return new FrameLimits(this);
+	}
+
+	/** Altera o limite do comando. DEFAULT é compartilhado: altere uma cópia */
+	public FrameLimits set(int cmd, int maxArgLength) {
+		if (cmd < 0 || cmd >= maxArgs.length || maxArgLength < 0 || maxArgLength > MAX_FRAME)
+			throw new IllegalArgumentException("Invalid limit for 0x" + Integer.toHexString(cmd) + ": " + maxArgLength);
+		maxArgs[cmd] = maxArgLength;
+		return this;
+	}
+
+	/** Tamanho máximo dos argumentos do comando */
+	public int getMaxArgs(int cmd) {
+		return cmd >= 0 && cmd < maxArgs.length ? maxArgs[cmd] : DEFAULT_MAX_ARGS;
+	}
+
+	/** Cópia com limite zero para imagens e RS232 se o Rex não tem leitores ou portas seriais */
+	public FrameLimits forFeatures(Messages.FeaturesResponse features) {
+		FrameLimits limits = copy();
+		if (features.readers <= 0)
+			limits.maxArgs[MsgIO.COMMAND_IMAGE_ACQUIRED] = 0;
+		if (features.rs232 <= 0)
+			limits.maxArgs[MsgRS232.COMMAND_RS232_WRITE] = 0;
+		return limits;
+	}
+}
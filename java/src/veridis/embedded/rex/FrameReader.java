@@ -0,0 +1,115 @@
+package veridis.embedded.rex;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Leitura das mensagens de uma conexão bloqueante (TCP, streams do gateway), sem confiar no tamanho recebido.
+ *
+ * O cabeçalho é validado antes de qualquer alocação: protocolo, tamanho consistente com o dos argumentos
+ * e limite do comando ({@link FrameLimits}). Mensagens acima do limite são puladas sem serem lidas;
+ * cabeçalhos inválidos fazem a leitura procurar o próximo "REX0". Cada caso conta como violação
+ * ({@link RexProtocol.Connection#frameViolation}).
+ *
+ * Mensagens pequenas usam um buffer fixo; as grandes, um buffer do {@link BufferPool}.
+ */
+public class FrameReader {
+	/** Bytes descartados procurando o próximo "REX0" antes de desistir da conexão */
+	public static final int MAX_RESYNC = 64 * 1024;
+	public static final int SMALL_BUFFER = 16 * 1024;
+
+	private final RexProtocol.Connection conn;
+	private final DataInputStream in;
+	private final BufferPool pool;
+	private final ByteBuffer small = ByteBuffer.allocate(SMALL_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+	/** Buffer do pool com a última mensagem, devolvido na próxima leitura */
+	private ByteBuffer pooled;
+	/** Tamanho (TCP), "REX0", comando e tamanho dos argumentos */
+	private final byte[] header = new byte[16];
+
+	public FrameReader(RexProtocol.Connection conn, DataInputStream in, BufferPool pool) {
+		this.conn = conn;
+		this.in = in;
+		this.pool = pool;
+	}
+
+	/** null se o cabeçalho é válido, ou o problema encontrado */
+	static String checkHeader(int frameLength, int protocol, int argLength) {
+		if (protocol != RexProtocol.PACKET_PROTOCOL_INT)
+			return "invalid protocol";
+		if (argLength < 0 || argLength > FrameLimits.MAX_FRAME - 16 || frameLength != argLength + 16)
+			return "invalid length " + frameLength + "/" + argLength;
+		return null;
+	}
+
+	/**
+	 * Lê a próxima mensagem. O buffer vai do "REX0" até o fim dos argumentos,
+	 * e só é válido até a próxima chamada.
+	 */
+	public ByteBuffer next() throws IOException {
+		release();
+		in.readFully(header);
+		while (true) {
+			int cmd = Util.getInt(header, 8);
+			int argLength = Util.getInt(header, 12);
+			String error = checkHeader(Util.getInt(header, 0), Util.getInt(header, 4), argLength);
+			if (error != null) {
+				conn.frameViolation(error);
+				resync();
+				continue;
+			}
+			if (argLength > conn.getFrameLimits().getMaxArgs(cmd)) {
+				conn.frameViolation("command 0x" + Integer.toHexString(cmd) + " too large: " + argLength);
+				skip(argLength);
+				in.readFully(header);
+				continue;
+			}
+
+			int length = 12 + argLength;
+			ByteBuffer buffer = small;
+			if (length > small.capacity())
+				buffer = pooled = pool.acquire(length);
+			System.arraycopy(header, 4, buffer.array(), 0, 12);
+			in.readFully(buffer.array(), 12, argLength);
+			buffer.clear().limit(length);
+			return buffer;
+		}
+	}
+
+	/** Avança um byte por vez até o cabeçalho ser válido */
+	private void resync() throws IOException {
+		for (int scanned=1; scanned<=MAX_RESYNC; scanned++) {
+			System.arraycopy(header, 1, header, 0, header.length - 1);
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException();
+			header[header.length - 1] = (byte)b;
+			if (checkHeader(Util.getInt(header, 0), Util.getInt(header, 4), Util.getInt(header, 12)) == null)
+				return;
+		}
+		throw new IOException("Lost frame synchronization");
+	}
+
+	private void skip(int length) throws IOException {
+		while (length > 0) {
+			int n = in.skipBytes(length);
+			if (n <= 0) {
+				if (in.read() < 0)
+					throw new EOFException();
+				n = 1;
+			}
+			length -= n;
+		}
+	}
+
+	/** Devolve o buffer do pool, se houver. Chamar quando a conexão termina */
+	public void release() {
+		if (pooled != null) {
+			pool.release(pooled);
+			pooled = null;
+		}
+	}
+}
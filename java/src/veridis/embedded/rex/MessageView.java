@@ -0,0 +1,93 @@
+package veridis.embedded.rex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import veridis.embedded.rex.RexProtocol.BufferHandler;
+
+/**
+ * Flyweight sobre os argumentos de uma mensagem, direto no buffer de recepção.
+ *
+ * Os campos são lidos sob demanda nos offsets fixos do comando, sem decodificar nem copiar nada.
+ * Cada conexão tem uma instância de cada view, reaproveitada a cada mensagem.
+ *
+ * IMPORTANTE: a view, e qualquer ByteBuffer obtido dela, só são válidos durante a chamada do Listener.
+ * Depois disso o buffer é sobrescrito pela próxima mensagem. Copie o que precisar guardar.
+ */
+public abstract class MessageView {
+	public static interface Listener<V extends MessageView> {
+		public abstract void received(RexProtocol comm, V view) throws IOException;
+	}
+
+	/** Entrega a view da conexão, já posicionada na mensagem, ao Listener */
+	public static abstract class Handler<V extends MessageView> extends BufferHandler {
+		private final Listener<V> listener;
+
+		public Handler(int messageType, Listener<V> listener) {
+			super(messageType);
+			this.listener = listener;
+		}
+
+		protected abstract V newView();
+
+		@Override
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			@SuppressWarnings("unchecked")
+			V view = (V)comm.getView(getMessageType(), this);
+			view.wrap(in, in.position(), inLength);
+			listener.received(comm, view);
+		}
+	}
+
+	private ByteBuffer buf;
+	private int offset;
+	private int length;
+	/** Regiões devolvidas por region(), reaproveitadas enquanto o buffer de recepção for o mesmo */
+	private final ByteBuffer[] regions = new ByteBuffer[2];
+	private final ByteBuffer[] regionSources = new ByteBuffer[2];
+
+	/** Buffer little-endian; os argumentos vão de offset a offset+length */
+	final void wrap(ByteBuffer buf, int offset, int length) throws IOException {
+		this.buf = buf;
+		this.offset = offset;
+		this.length = length;
+		validate();
+	}
+
+	/** Tamanho dos argumentos */
+	public final int length() {
+		return length;
+	}
+
+	/** Verifica se o tamanho da mensagem é consistente com os campos */
+	protected abstract void validate() throws IOException;
+
+	protected final void need(int length) throws IOException {
+		if (this.length < length)
+			throw new IOException("Truncated message");
+	}
+
+	protected final int getInt(int pos) {
+		return buf.getInt(offset + pos);
+	}
+
+	protected final int getByte(int pos) {
+		return buf.get(offset + pos) & 0xFF;
+	}
+
+	/**
+	 * Região dos argumentos, como um ByteBuffer somente-leitura entre position e limit.
+	 * Há um buffer por slot, então duas regiões diferentes podem ser usadas ao mesmo tempo.
+	 */
+	protected final ByteBuffer region(int slot, int pos, int len) {
+		if (regionSources[slot] != buf) {
+			regions[slot] = buf.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+			regionSources[slot] = buf;
+		}
+		ByteBuffer region = regions[slot];
+		region.clear();
+		region.limit(offset + pos + len).position(offset + pos);
+		return region;
+	}
+}
@@ -0,0 +1,367 @@
+package veridis.embedded.rex;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import veridis.embedded.rex.messages.MsgDisplay;
+import veridis.embedded.rex.messages.MsgIO;
+import veridis.embedded.rex.messages.MsgRS232;
+
+/**
+ * Fila limitada de mensagens a enviar em uma conexão.
+ *
+ * Quem envia nunca bloqueia: a mensagem é enfileirada e o Future é completado quando ela
+ * for escrita no socket (ou falhar). Se a fila estiver cheia, o Future já volta com
+ * RejectedExecutionException.
+ *
+ * Acima do high watermark, mensagens descartáveis (segundo a Policy) são rejeitadas.
+ * Uma mensagem pendente com a mesma chave de coalescência é substituída pela mais nova, desde que
+ * seja a última da sua Lane: nada enfileirado depois dela (ex: um Clear) muda de ordem.
+ *
+ * Cada mensagem vai para uma {@link Lane}, segundo a {@link Priority}, e as filas mais prioritárias
+ * são sempre esvaziadas antes. RS232 Write grandes são divididos em pedaços de até bulkChunk bytes,
+ * e cada poll() devolve no máximo bulkChunk bytes de BULK: um pulso de relé espera no máximo
+ * um pedaço, e não a escrita inteira.
+ */
+public class OutboundQueue {
+	public static final int DEFAULT_CAPACITY = 1024;
+	/** Dados de RS232 por mensagem e por lote de escrita */
+	public static final int DEFAULT_BULK_CHUNK = 512;
+
+	public static enum Lane {
+		/** IO: relés, fechaduras */
+		CRITICAL,
+		/** Display, eco de teclas e mensagens de controle */
+		INTERACTIVE,
+		/** RS232 e imagens */
+		BULK
+	}
+
+	public static interface WatermarkListener {
+		public abstract void highWatermark(RexProtocol conn, int size);
+		public abstract void lowWatermark(RexProtocol conn, int size);
+	}
+
+	public static interface Policy {
+		/** Mensagens pendentes com a mesma chave são substituídas pela nova. null = nunca substitui */
+		public abstract Object coalesceKey(RexFrame frame);
+		/** Se a mensagem pode ser rejeitada quando a fila está acima do high watermark */
+		public abstract boolean isSheddable(RexFrame frame);
+	}
+
+	public static interface Priority {
+		public abstract Lane laneOf(RexFrame frame);
+	}
+
+	public static final Priority DEFAULT_PRIORITY = new Priority() {
+		@Override
+		public Lane laneOf(RexFrame frame) {
+			switch (frame.getCommand()) {
+				case MsgIO.COMMAND_IO:
+					return Lane.CRITICAL;
+				case MsgRS232.COMMAND_RS232_WRITE:
+				case MsgIO.COMMAND_IMAGE_ACQUIRED:
+					return Lane.BULK;
+				default:
+					return Lane.INTERACTIVE;
+			}
+		}
+	};
+
+	/** Contadores de uma Lane */
+	public static class LaneStats {
+		/** Mensagens na fila agora */
+		public final int depth;
+		/** Mensagens já retiradas da fila para escrita */
+		public final long dequeued;
+		/** Soma e máximo do tempo na fila, em ns */
+		public final long totalWait;
+		public final long maxWait;
+
+		LaneStats(int depth, long dequeued, long totalWait, long maxWait) {
+			this.depth = depth;
+			this.dequeued = dequeued;
+			this.totalWait = totalWait;
+			this.maxWait = maxWait;
+		}
+
+		/** Tempo médio na fila, em ns */
+		public long getAverageWait() {
+			return dequeued == 0 ? 0 : totalWait / dequeued;
+		}
+
+		@Override
+		public String toString() {
+			return "depth=" + depth + " dequeued=" + dequeued + " avgWait=" + getAverageWait() / 1000 + "us maxWait=" + maxWait / 1000 + "us";
+		}
+	}
+
+	/**
+	 * Display.Write na mesma linha/coluna e com o mesmo tamanho é coalescido
+	 * (escritas sem posição, que continuam do cursor, nunca são).
+	 * Dados de RS232 e imagens são descartáveis.
+	 */
+	public static final Policy DEFAULT_POLICY = new Policy() {
+		@Override
+		public Object coalesceKey(RexFrame frame) {
+			if (frame.getCommand() != MsgDisplay.COMMAND_DISPLAY_WRITE)
+				return null;
+			int line = frame.getInt(0);
+			int col = frame.getInt(4);
+			if (line < 0 || col < 0)
+				return null;
+			return (long)MsgDisplay.COMMAND_DISPLAY_WRITE << 48 | (long)(line & 0xFF) << 40 | (long)(col & 0xFF) << 32 | frame.length();
+		}
+		@Override
+		public boolean isSheddable(RexFrame frame) {
+			switch (frame.getCommand()) {
+				case MsgRS232.COMMAND_RS232_WRITE:
+				case MsgIO.COMMAND_IMAGE_ACQUIRED:
+					return true;
+				default:
+					return false;
+			}
+		}
+	};
+
+	/** Mensagem na fila. O future deve ser completado por quem a escreve */
+	public static class Entry {
+		RexFrame frame;
+		final Object key;
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		/** System.nanoTime() ao entrar na fila */
+		final long enqueued = System.nanoTime();
+		Entry(RexFrame frame, Object key) {
+			this.frame = frame;
+			this.key = key;
+		}
+		public RexFrame getFrame() {
+			return frame;
+		}
+		public CompletableFuture<Void> getFuture() {
+			return future;
+		}
+	}
+
+	private final RexProtocol conn;
+	private final int capacity;
+	private final int highWatermark;
+	private final int lowWatermark;
+	private volatile Policy policy = DEFAULT_POLICY;
+	private volatile Priority priority = DEFAULT_PRIORITY;
+	private volatile int bulkChunk = DEFAULT_BULK_CHUNK;
+	private volatile WatermarkListener watermarkListener;
+
+	private final ArrayDeque<Entry>[] lanes;
+	private int size;
+	private final Map<Object, Entry> pendingByKey = new HashMap<Object, Entry>();
+	private boolean aboveHigh = false;
+	private IOException closed = null;
+	private final long[] dequeued = new long[Lane.values().length];
+	private final long[] totalWait = new long[Lane.values().length];
+	private final long[] maxWait = new long[Lane.values().length];
+
+	public OutboundQueue(RexProtocol conn) {
+		this(conn, DEFAULT_CAPACITY, DEFAULT_CAPACITY * 3 / 4, DEFAULT_CAPACITY / 4);
+	}
+	public OutboundQueue(RexProtocol conn, int capacity, int highWatermark, int lowWatermark) {
+		this.conn = conn;
+		this.capacity = capacity;
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+		@SuppressWarnings("unchecked")
+		ArrayDeque<Entry>[] lanes = (ArrayDeque<Entry>[])new ArrayDeque<?>[Lane.values().length];
+		for (int i=0; i<lanes.length; i++)
+			lanes[i] = new ArrayDeque<Entry>();
+		this.lanes = lanes;
+	}
+
+	public void setPolicy(Policy policy) {
+		this.policy = policy;
+	}
+	public void setWatermarkListener(WatermarkListener watermarkListener) {
+		this.watermarkListener = watermarkListener;
+	}
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+	/** Tamanho máximo dos dados de cada RS232 Write, e de BULK em cada poll() */
+	public void setBulkChunk(int bulkChunk) {
+		if (bulkChunk < 1)
+			throw new IllegalArgumentException("Invalid chunk: " + bulkChunk);
+		this.bulkChunk = bulkChunk;
+	}
+
+	/**
+	 * O Future completa quando a mensagem inteira foi escrita: se ela foi dividida,
+	 * quando o último pedaço foi escrito (os pedaços da mesma Lane saem em ordem).
+	 */
+	public CompletableFuture<Void> offer(RexFrame frame) {
+		Object key = policy.coalesceKey(frame);
+		Lane lane = priority.laneOf(frame);
+		List<RexFrame> chunks = lane == Lane.BULK ? split(frame, bulkChunk) : null;
+		if (chunks != null)
+			key = null;
+		boolean crossedHigh = false;
+		int sizeNow;
+		Entry entry;
+		synchronized (this) {
+			if (closed != null)
+				return failed(closed);
+			ArrayDeque<Entry> queue = lanes[lane.ordinal()];
+			if (key != null) {
+				entry = pendingByKey.get(key);
+				if (entry != null && queue.peekLast() == entry) {
+					entry.frame = frame;
+					return entry.future;
+				}
+			}
+			int count = chunks == null ? 1 : chunks.size();
+			if (size + count > capacity)
+				return failed(new RejectedExecutionException("Outbound queue full"));
+			if (size >= highWatermark && policy.isSheddable(frame))
+				return failed(new RejectedExecutionException("Outbound queue above high watermark"));
+
+			if (chunks == null) {
+				entry = new Entry(frame, key);
+				queue.add(entry);
+			} else {
+				entry = null;
+				for (RexFrame chunk : chunks) {
+					entry = new Entry(chunk, null);
+					queue.add(entry);
+				}
+			}
+			size += count;
+			if (key != null)
+				pendingByKey.put(key, entry);
+			if (!aboveHigh && size >= highWatermark) {
+				aboveHigh = crossedHigh = true;
+			}
+			sizeNow = size;
+			notifyAll();
+		}
+		WatermarkListener listener = watermarkListener;
+		if (crossedHigh && listener != null)
+			listener.highWatermark(conn, sizeNow);
+		return entry.future;
+	}
+
+	/** Bloqueia até haver mensagens e devolve as pendentes, até max, como {@link #poll(int)} */
+	public List<Entry> take(int max) throws InterruptedException, IOException {
+		synchronized (this) {
+			while (size == 0 && closed == null)
+				wait();
+		}
+		return poll(max);
+	}
+
+	/**
+	 * Devolve as mensagens pendentes, até max, sem bloquear, das Lanes mais prioritárias primeiro.
+	 * De BULK, apenas até bulkChunk bytes (mas sempre ao menos uma mensagem).
+	 */
+	public List<Entry> poll(int max) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		boolean crossedLow = false;
+		int size;
+		synchronized (this) {
+			if (closed != null)
+				throw closed;
+			long now = System.nanoTime();
+			int bulkBytes = 0;
+			for (Lane lane : Lane.values()) {
+				ArrayDeque<Entry> queue = lanes[lane.ordinal()];
+				while (entries.size() < max && !queue.isEmpty()) {
+					if (lane == Lane.BULK) {
+						int length = queue.peek().frame.length();
+						if (bulkBytes > 0 && bulkBytes + length > bulkChunk)
+							break;
+						bulkBytes += length;
+					}
+					Entry entry = queue.poll();
+					//Pode já apontar para uma entrada mais nova, com a mesma chave
+					if (entry.key != null)
+						pendingByKey.remove(entry.key, entry);
+					entries.add(entry);
+					long wait = now - entry.enqueued;
+					int i = lane.ordinal();
+					dequeued[i]++;
+					totalWait[i] += wait;
+					if (wait > maxWait[i])
+						maxWait[i] = wait;
+				}
+			}
+			this.size -= entries.size();
+			size = this.size;
+			if (aboveHigh && size <= lowWatermark) {
+				aboveHigh = false;
+				crossedLow = true;
+			}
+		}
+		WatermarkListener listener = watermarkListener;
+		if (crossedLow && listener != null)
+			listener.lowWatermark(conn, size);
+		return entries;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized LaneStats getStats(Lane lane) {
+		int i = lane.ordinal();
+		return new LaneStats(lanes[i].size(), dequeued[i], totalWait[i], maxWait[i]);
+	}
+
+	/** Falha todas as mensagens pendentes e as próximas */
+	public void close(IOException cause) {
+		List<Entry> pending;
+		synchronized (this) {
+			if (closed != null)
+				return;
+			closed = cause;
+			pending = new ArrayList<Entry>(size);
+			for (ArrayDeque<Entry> queue : lanes) {
+				pending.addAll(queue);
+				queue.clear();
+			}
+			size = 0;
+			pendingByKey.clear();
+			notifyAll();
+		}
+		for (Entry entry : pending)
+			entry.future.completeExceptionally(cause);
+	}
+
+	/** RS232 Write em pedaços com até chunk bytes de dados, ou null se não precisar dividir */
+	private static List<RexFrame> split(RexFrame frame, int chunk) {
+		if (frame.getCommand() != MsgRS232.COMMAND_RS232_WRITE)
+			return null;
+		//"REX0" + comando + tamanho + porta
+		int dataLength = frame.length() - 16;
+		if (dataLength <= chunk)
+			return null;
+		byte[] port = Util.ints(frame.getInt(0));
+		byte[] data = frame.bytes();
+		int start = RexFrame.TCP_PREFIX + 16;
+		List<RexFrame> chunks = new ArrayList<RexFrame>((dataLength + chunk - 1) / chunk);
+		for (int pos=0; pos<dataLength; pos+=chunk) {
+			byte[] part = Arrays.copyOfRange(data, start + pos, start + Math.min(dataLength, pos + chunk));
+			chunks.add(RexFrame.encode(MsgRS232.COMMAND_RS232_WRITE, port, part));
+		}
+		return chunks;
+	}
+
+	private static CompletableFuture<Void> failed(Exception e) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		future.completeExceptionally(e);
+		return future;
+	}
+}
@@ -0,0 +1,111 @@
+package veridis.embedded.rex;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conta as mensagens malformadas de cada IP. Com maxViolations dentro de window ms, o IP fica
+ * em quarentena por duration ms: as conexões dele são recusadas e os Discovery ignorados.
+ */
+public class Quarantine {
+	private static class Entry {
+		long windowStart;
+		int violations;
+		/** System.nanoTime() do fim da quarentena, 0 se não está em quarentena */
+		long until;
+	}
+
+	private final int maxViolations;
+	private final long window;
+	private final long duration;
+	private final Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+	private long violationCount;
+	private long quarantinedCount;
+
+	public Quarantine(int maxViolations, long window, long duration) {
+		this.maxViolations = maxViolations;
+		this.window = TimeUnit.MILLISECONDS.toNanos(window);
+		this.duration = TimeUnit.MILLISECONDS.toNanos(duration);
+	}
+
+	/** IPv4 como em Util.ipFromBytes, ou 0 se não for um endereço IPv4 */
+	public static int ipOf(SocketAddress address) {
+		if (!(address instanceof InetSocketAddress) || ((InetSocketAddress)address).getAddress() == null)
+			return 0;
+		byte[] ip = ((InetSocketAddress)address).getAddress().getAddress();
+		return ip.length == 4 ? Util.ipFromBytes(ip) : 0;
+	}
+
+	/**
+	 * Registra uma mensagem malformada.
+	 * @return true se o IP entrou (ou já estava) em quarentena
+	 */
+	public boolean violation(SocketAddress address, String reason) {
+		int ip = ipOf(address);
+		if (ip == 0)
+			return false;
+		long now = System.nanoTime();
+		boolean quarantined = false;
+		synchronized (this) {
+			violationCount++;
+			Entry entry = entries.get(ip);
+			if (entry == null) {
+				if (entries.size() >= 4096)
+					expire(now);
+				entry = new Entry();
+				entry.windowStart = now;
+				entries.put(ip, entry);
+			}
+			if (now - entry.windowStart > window) {
+				entry.windowStart = now;
+				entry.violations = 0;
+			}
+			entry.violations++;
+			if (entry.until != 0 && now - entry.until < 0)
+				return true;
+			if (entry.violations >= maxViolations) {
+				entry.until = now + duration;
+				entry.violations = 0;
+				quarantinedCount++;
+				quarantined = true;
+			}
+		}
+		System.err.println(Util.ERR_PREFIX + "Malformed frame from " + address + ": " + reason + (quarantined ? " (quarantined)" : ""));
+		return quarantined;
+	}
+
+	public boolean isQuarantined(SocketAddress address) {
+		return isQuarantined(ipOf(address));
+	}
+
+	public synchronized boolean isQuarantined(int ip) {
+		Entry entry = entries.get(ip);
+		return entry != null && entry.until != 0 && System.nanoTime() - entry.until < 0;
+	}
+
+	/** Tira o IP da quarentena */
+	public synchronized void release(int ip) {
+		entries.remove(ip);
+	}
+
+	private void expire(long now) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (now - entry.windowStart > window && (entry.until == 0 || now - entry.until >= 0))
+				it.remove();
+		}
+	}
+
+	public synchronized long getViolationCount() {
+		return violationCount;
+	}
+	/** Número de vezes que um IP entrou em quarentena */
+	public synchronized long getQuarantinedCount() {
+		return quarantinedCount;
+	}
+}
@@ -10,43 +10,54 @@ import veridis.embedded.rex.RexProtocol.MessageHandler;
 
 public abstract class RexEndpoint {
 	
-	protected Map<Integer, List<MessageHandler>> handlers = new HashMap<Integer, List<MessageHandler>>();
+	/** Copy-on-write: os shards leem sem lock, add/remove trocam o mapa inteiro */
+	protected volatile Map<Integer, List<MessageHandler>> handlers = new HashMap<Integer, List<MessageHandler>>();
+	private final Object handlersLock = new Object();
+	/** 5 mensagens malformadas em um minuto deixam o IP 5 minutos em quarentena. null desliga */
+	protected volatile Quarantine quarantine = new Quarantine(5, 60000, 300000);
+	
+	public Quarantine getQuarantine() {
+		return quarantine;
+	}
+	public void setQuarantine(Quarantine quarantine) {
+		this.quarantine = quarantine;
+	}
 	
 	public void addMessageHandler(MessageHandler handler) {
-		synchronized (this.handlers) {
-			int type = handler.getMessageType();
-			
-			synchronized (handlers) {
-				List<MessageHandler> handlers = new ArrayList<MessageHandler>();			
-				if (this.handlers.containsKey(type))
-					handlers.addAll(this.handlers.get(type));
-				handlers.add(handler);
-				this.handlers.put(type, handlers);
-			}
+		int type = handler.getMessageType();
+		
+		synchronized (handlersLock) {
+			Map<Integer, List<MessageHandler>> map = new HashMap<Integer, List<MessageHandler>>(this.handlers);
+			List<MessageHandler> handlers = new ArrayList<MessageHandler>();			
+			if (map.containsKey(type))
+				handlers.addAll(map.get(type));
+			handlers.add(handler);
+			map.put(type, handlers);
+			this.handlers = map;
 		}
 	}
 	public void removeMessageHandler(MessageHandler handler) {
 		int type = handler.getMessageType();
 		
-		synchronized (handlers) {
+		synchronized (handlersLock) {
+			Map<Integer, List<MessageHandler>> map = new HashMap<Integer, List<MessageHandler>>(this.handlers);
 			List<MessageHandler> handlers = new ArrayList<MessageHandler>();			
-			if (this.handlers.containsKey(type))
-				handlers.addAll(this.handlers.get(type));
+			if (map.containsKey(type))
+				handlers.addAll(map.get(type));
 			handlers.remove(handler);
-			this.handlers.put(type, handlers);
+			map.put(type, handlers);
+			this.handlers = map;
 		}
 	}
 	
 	
 	@SuppressWarnings("unchecked")
 	public List<MessageHandler> getMessageHandlers(int code) {
-		synchronized (handlers) {
-			List<MessageHandler> list = handlers.get(code);
- 			if (list==null) { 
-				return Collections.EMPTY_LIST;
- 			} else {
- 				return list;
- 			}
+		List<MessageHandler> list = handlers.get(code);
+		if (list==null) { 
+			return Collections.EMPTY_LIST;
+		} else {
+			return list;
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,180 @@
+package veridis.embedded.rex;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uma thread com um Selector, compartilhada por muitas conexões.
+ *
+ * Tudo que é registrado no loop (I/O, tarefas e timers) executa na thread do loop,
+ * então o estado de cada conexão não precisa de locks.
+ * Outras threads se comunicam com o loop apenas por {@link #execute(Runnable)}.
+ */
+public class RexEventLoop implements Executor {
+	public static interface Handler {
+		/** Chamado na thread do loop quando o canal está pronto */
+		public abstract void ready(SelectionKey key) throws IOException;
+		/** Chamado na thread do loop se ready() lançar uma exceção */
+		public abstract void failed(SelectionKey key, Exception e);
+	}
+
+	public static class Timer implements Comparable<Timer> {
+		final long deadline;
+		final Runnable task;
+		long sequence;
+		volatile boolean cancelled;
+
+		Timer(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+		public void cancel() {
+			cancelled = true;
+		}
+		@Override
+		public int compareTo(Timer o) {
+			if (deadline != o.deadline)
+				return deadline < o.deadline ? -1 : 1;
+			return sequence < o.sequence ? -1 : sequence == o.sequence ? 0 : 1;
+		}
+	}
+
+	private final Selector selector;
+	private final Thread thread;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	/** Acessado apenas na thread do loop */
+	private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+	private long timerSequence = 0;
+	private volatile boolean running = true;
+
+	public RexEventLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(name) {
+			public void run() {
+				loop();
+			};
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (!inLoop())
+			selector.wakeup();
+	}
+
+	/** Pode ser chamado de qualquer thread */
+	public Timer schedule(Runnable task, long delay, TimeUnit unit) {
+		final Timer timer = new Timer(System.nanoTime() + unit.toNanos(delay), task);
+		if (inLoop()) {
+			addTimer(timer);
+		} else {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					addTimer(timer);
+				}
+			});
+		}
+		return timer;
+	}
+
+	private void addTimer(Timer timer) {
+		timer.sequence = timerSequence++;
+		timers.add(timer);
+	}
+
+	/** Deve ser chamado na thread do loop */
+	public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+		if (!inLoop())
+			throw new IllegalStateException("register() outside the event loop");
+		channel.configureBlocking(false);
+		return channel.register(selector, ops, handler);
+	}
+
+	/** Tarefas na fila, ainda não executadas. Custo O(n): apenas para estatísticas */
+	public int getPendingTasks() {
+		return tasks.size();
+	}
+
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void loop() {
+		try {
+			while (running) {
+				long timeout = 0;
+				Timer next = timers.peek();
+				if (!tasks.isEmpty()) {
+					selector.selectNow();
+				} else if (next != null) {
+					timeout = TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime());
+					if (timeout <= 0)
+						selector.selectNow();
+					else
+						selector.select(timeout);
+				} else {
+					selector.select();
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					Handler handler = (Handler)key.attachment();
+					try {
+						if (key.isValid())
+							handler.ready(key);
+					} catch (Exception e) {
+						handler.failed(key, e);
+					}
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					runSafely(task);
+
+				long now = System.nanoTime();
+				while ((next = timers.peek()) != null && next.deadline - now <= 0) {
+					timers.poll();
+					if (!next.cancelled)
+						runSafely(next.task);
+				}
+			}
+		} catch (ClosedSelectorException e) {
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				for (SelectionKey key : selector.keys())
+					key.channel().close();
+				selector.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	private static void runSafely(Runnable task) {
+		try {
+			task.run();
+		} catch (Exception e) {
+			System.err.println(Util.ERR_PREFIX + "Event loop task failed: " + e);
+			e.printStackTrace();
+		}
+	}
+}
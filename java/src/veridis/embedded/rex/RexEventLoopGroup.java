@@ -0,0 +1,91 @@
+package veridis.embedded.rex;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * N {@link RexEventLoop}s (shards), normalmente um por core.
+ *
+ * Cada Rex fica sempre no mesmo shard, escolhido pelo IP: o I/O, a decodificação e o heartbeat dele
+ * rodam na thread desse shard, sem locks. Um shard fala com outro apenas enfileirando tarefas
+ * ({@link #execute(int, Runnable)}), pela fila MPSC do loop de destino.
+ * O que pode bloquear (ex: RexServer.connectionStarted) fica fora dos shards, e só envia por submit().
+ */
+public class RexEventLoopGroup {
+	private final RexEventLoop[] loops;
+
+	/** Um shard por core */
+	public RexEventLoopGroup(String name) throws IOException {
+		this(name, Runtime.getRuntime().availableProcessors());
+	}
+
+	public RexEventLoopGroup(String name, int shards) throws IOException {
+		if (shards < 1)
+			throw new IllegalArgumentException("At least one shard is required");
+		loops = new RexEventLoop[shards];
+		for (int i=0; i<shards; i++)
+			loops[i] = new RexEventLoop(name + "-" + i);
+	}
+
+	public int size() {
+		return loops.length;
+	}
+
+	public RexEventLoop get(int shard) {
+		return loops[shard];
+	}
+
+	/** Shard de uma chave, ex: IP ou MAC. Sempre o mesmo para a mesma chave */
+	public int shardFor(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)((h >>> 32) % loops.length);
+	}
+
+	/** Shard do Rex nesse endereço, pelo IP (a porta muda a cada conexão) */
+	public int shardFor(SocketAddress address) {
+		if (address instanceof InetSocketAddress && ((InetSocketAddress)address).getAddress() != null)
+			return shardFor(((InetSocketAddress)address).getAddress().hashCode() & 0xFFFFFFFFL);
+		return shardFor(address == null ? 0 : address.hashCode());
+	}
+
+	public RexEventLoop loopFor(SocketAddress address) {
+		return loops[shardFor(address)];
+	}
+
+	/** Shard da thread atual, ou -1 se ela não é de nenhum loop do grupo */
+	public int currentShard() {
+		for (int i=0; i<loops.length; i++) {
+			if (loops[i].inLoop())
+				return i;
+		}
+		return -1;
+	}
+
+	/** Executa a tarefa no shard. Direto, se já estiver na thread dele */
+	public void execute(int shard, Runnable task) {
+		RexEventLoop loop = loops[shard];
+		if (loop.inLoop())
+			task.run();
+		else
+			loop.execute(task);
+	}
+
+	public RexEventLoop.Timer schedule(int shard, Runnable task, long delay, TimeUnit unit) {
+		return loops[shard].schedule(task, delay, unit);
+	}
+
+	/** Tarefas pendentes em cada shard, para ver se a carga está balanceada */
+	public int[] getPendingTasks() {
+		int[] pending = new int[loops.length];
+		for (int i=0; i<loops.length; i++)
+			pending[i] = loops[i].getPendingTasks();
+		return pending;
+	}
+
+	public void shutdown() {
+		for (RexEventLoop loop : loops)
+			loop.shutdown();
+	}
+}
@@ -0,0 +1,118 @@
+package veridis.embedded.rex;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mensagem do protocolo Rex já codificada.
+ *
+ * O buffer é imutável e pode ser compartilhado entre várias conexões:
+ * o comando é codificado uma única vez e escrito em cada destino sem cópias.
+ *
+ * Layout: tamanho (TCP) + "REX0" + comando + tamanho dos argumentos + argumentos
+ */
+public final class RexFrame {
+	/** Bytes do prefixo de tamanho usado apenas em TCP */
+	static final int TCP_PREFIX = 4;
+
+	private final int command;
+	private final byte[] data;
+
+	private RexFrame(int command, byte[] data) {
+		this.command = command;
+		this.data = data;
+	}
+
+	public static RexFrame encode(int cmd, byte[] ... args) {
+		int len = 0;
+		for (byte[] b : args)
+			len += b.length;
+
+		byte[] data = header(cmd, len);
+		int pos = 16;
+		for (byte[] b : args) {
+			System.arraycopy(b, 0, data, pos, b.length);
+			pos += b.length;
+		}
+		return new RexFrame(cmd, data);
+	}
+
+	/** Mensagem cujos argumentos são só inteiros, escritos direto no frame */
+	public static RexFrame ofInts(int cmd, int ... args) {
+		byte[] data = header(cmd, 4 * args.length);
+		for (int i=0; i<args.length; i++)
+			Util.putInt(data, 16 + 4*i, args[i]);
+		return new RexFrame(cmd, data);
+	}
+
+	private static byte[] header(int cmd, int len) {
+		byte[] data = new byte[TCP_PREFIX + 12 + len];
+		Util.putInt(data, 0, len + 16);
+		Util.putInt(data, 4, RexProtocol.PACKET_PROTOCOL_INT);
+		Util.putInt(data, 8, cmd);
+		Util.putInt(data, 12, len);
+		return data;
+	}
+
+	public int getCommand() {
+		return command;
+	}
+
+	/** Tamanho da mensagem, sem o prefixo de tamanho do TCP */
+	public int length() {
+		return data.length - TCP_PREFIX;
+	}
+
+	/** Inteiro little-endian nos argumentos, a partir de offset */
+	public int getInt(int offset) {
+		return Util.getInt(data, TCP_PREFIX + 12 + offset);
+	}
+
+	/** Visão somente-leitura da mensagem (sem o prefixo TCP), independente para cada chamador */
+	public ByteBuffer asByteBuffer() {
+		return ByteBuffer.wrap(data, TCP_PREFIX, length()).slice().asReadOnlyBuffer();
+	}
+
+	/** Escreve a mensagem como no TCP, com o prefixo de tamanho */
+	public void writeTcp(OutputStream out) throws IOException {
+		out.write(data, 0, data.length);
+	}
+
+	byte[] bytes() {
+		return data;
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Qualquer sequência de Msg*.send(...) */
+	public static interface Sender {
+		public abstract void send(RexProtocol comm) throws IOException;
+	}
+
+	/**
+	 * Executa o sender sobre um protocolo "falso" e devolve as mensagens que seriam enviadas.
+	 * Permite reaproveitar os encoders existentes (ex: MsgDisplay.Write.send) para codificar uma única vez.
+	 */
+	public static List<RexFrame> record(Sender sender) throws IOException {
+		Recorder recorder = new Recorder();
+		sender.send(recorder);
+		return recorder.frames;
+	}
+
+	private static class Recorder extends RexProtocol {
+		final List<RexFrame> frames = new ArrayList<RexFrame>();
+		Recorder() {
+			super(null);
+		}
+		@Override
+		public void sendFrame(RexFrame frame) {
+			frames.add(frame);
+		}
+		/** Não recebe nada */
+		@Override
+		public void handleProtocol() {}
+	}
+}
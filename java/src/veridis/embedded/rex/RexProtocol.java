@@ -1,17 +1,31 @@
 package veridis.embedded.rex;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import veridis.embedded.rex.jfr.RexEvents;
 
 public abstract class RexProtocol {
 	/**
@@ -245,6 +259,8 @@ COMMAND_DISPLAY_WRITE            = 0x28;
 	
 	/**Versão do protocolo ("REX0") */
 	public static byte[] PACKET_PROTOCOL = Util.StringToBytes("REX0");
+	/**PACKET_PROTOCOL lido como inteiro little-endian */
+	static final int PACKET_PROTOCOL_INT = ByteBuffer.wrap(PACKET_PROTOCOL).order(ByteOrder.LITTLE_ENDIAN).getInt();
 
 	public static final int VERSION_MAJOR = 1;
 	public static final int VERSION_MINOR = 1;
@@ -260,13 +276,77 @@ COMMAND_DISPLAY_WRITE            = 0x28;
 			return messageType;
 		}
 		public abstract void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException;
+		/**
+		 * Versão sobre ByteBuffer (little-endian), com os argumentos entre position e limit.
+		 * O buffer é reaproveitado pelo protocolo: só é válido durante a chamada.
+		 * A implementação padrão apenas adapta para a versão com DataInputStream.
+		 */
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			byte[] contents;
+			int offset;
+			if (in.hasArray()) {
+				contents = in.array();
+				offset = in.arrayOffset() + in.position();
+			} else {
+				contents = new byte[inLength];
+				offset = 0;
+				in.duplicate().get(contents);
+			}
+			handle(new DataInputStream(new ByteArrayInputStream(contents, offset, inLength)), inLength, comm);
+		}
+	}
+	
+	/** Handler que trabalha direto sobre o ByteBuffer. A versão com DataInputStream só adapta */
+	public abstract static class BufferHandler extends MessageHandler {
+		public BufferHandler(int messageType) {
+			super(messageType);
+		}
+		@Override
+		public final void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
+			handle(Util.readBuffer(in, inLength), inLength, comm);
+		}
+		@Override
+		public abstract void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException;
 	}
 	
 	
+	/** Views desta conexão, indexadas pelo comando. Acessadas apenas pela thread de recepção */
+	private MessageView[] views;
+	
 	public RexProtocol(RexEndpoint rex) {
 		this.rex = rex;
 	}
-	public abstract void sendCommand(int cmd, byte[] ... data) throws IOException;
+	
+	/** View desta conexão para o comando, criada na primeira mensagem */
+	MessageView getView(int cmd, MessageView.Handler<?> handler) {
+		if (views == null)
+			views = new MessageView[256];
+		int index = cmd & 0xFF;
+		MessageView view = views[index];
+		if (view == null) {
+			view = handler.newView();
+			views[index] = view;
+		}
+		return view;
+	}
+	public void sendCommand(int cmd, byte[] ... data) throws IOException {
+		sendFrame(RexFrame.encode(cmd, data));
+	}
+	/** Envia uma mensagem já codificada. O mesmo frame pode ser enviado para várias conexões */
+	public abstract void sendFrame(RexFrame frame) throws IOException;
+	
+	/** Para as conexões com fila de saída: lança a exceção se a mensagem foi rejeitada de imediato */
+	protected static void checkRejected(CompletableFuture<Void> result) throws IOException {
+		if (!result.isCompletedExceptionally())
+			return;
+		try {
+			result.getNow(null);
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		}
+	}
 	public abstract void handleProtocol() throws IOException; 
 	
 	public void handleMessage(DataInputStream in, int totalLength) throws IOException {
@@ -282,6 +362,7 @@ COMMAND_DISPLAY_WRITE            = 0x28;
 
 		byte[] contents = new byte[cmdLen];
 		in.readFully(contents);
+		frameReceived(cmd, totalLength);
 
 		
 		List<MessageHandler> handlers = rex.getMessageHandlers(cmd); 
@@ -290,12 +371,103 @@ COMMAND_DISPLAY_WRITE            = 0x28;
 			//throw new IOException("Unsupported Command: 0x" + Integer.toHexString(cmd) + "\n"); //FIXME atirar erro?
 		} else {			
 			for (MessageHandler handler : handlers) {
+				RexEvents.Dispatch event = new RexEvents.Dispatch();
+				event.begin();
 				handler.handle(new DataInputStream(new ByteArrayInputStream(contents)), cmdLen, this);
+				dispatched(event, cmd, handler);
+			}
+		}
+	}
+	
+	/**
+	 * Mesma coisa que {@link #handleMessage(DataInputStream, int)}, mas sem cópias:
+	 * a mensagem vai de position até limit do buffer, que deve estar em little-endian.
+	 * Cada handler recebe o mesmo buffer, reposicionado no início dos argumentos.
+	 */
+	public void handleMessage(ByteBuffer frame) throws IOException {
+		int totalLength = frame.remaining();
+		if (totalLength < 12 || frame.getInt() != PACKET_PROTOCOL_INT)
+			throw new IOException("Invalid protocol version");
+
+		int cmd = frame.getInt();
+		int cmdLen = frame.getInt();
+		if (cmdLen != totalLength - 12)
+			throw new IOException("Invalid message size");
+		
+		frameReceived(cmd, totalLength);
+		
+		List<MessageHandler> handlers = rex.getMessageHandlers(cmd); 
+		if (handlers.size() == 0) {
+			System.err.println(Util.ERR_PREFIX + "Unsupported command: 0x" + Integer.toHexString(cmd));
+		} else {
+			int start = frame.position();
+			int end = frame.limit();
+			for (MessageHandler handler : handlers) {
+				frame.limit(end).position(start);
+				RexEvents.Dispatch event = new RexEvents.Dispatch();
+				event.begin();
+				handler.handle(frame, cmdLen, this);
+				dispatched(event, cmd, handler);
 			}
 		}
 	}
 	
 	
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	// Eventos JFR (RexEvents). Desligados, custam apenas o teste de isEnabled()/shouldCommit()
+	
+	private void frameReceived(int cmd, int length) {
+		RexEvents.FrameReceived event = new RexEvents.FrameReceived();
+		if (event.isEnabled()) {
+			event.command = cmd;
+			event.size = length;
+			event.device = RexEvents.device(this);
+			event.commit();
+		}
+	}
+	
+	private void dispatched(RexEvents.Dispatch event, int cmd, MessageHandler handler) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.command = cmd;
+			event.handler = handler.getClass();
+			event.device = RexEvents.device(this);
+			event.commit();
+		}
+	}
+	
+	/** destination: para UDP, null para as conexões */
+	private static void sent(RexEvents.Send event, RexFrame frame, RexProtocol comm, SocketAddress destination, boolean rejected) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.command = frame.getCommand();
+			event.bytes = frame.length();
+			event.device = destination != null ? destination.toString() : RexEvents.device(comm);
+			event.rejected = rejected;
+			event.commit();
+		}
+	}
+	
+	private static void connectionOpened(Connection conn) {
+		RexEvents.ConnectionOpened event = new RexEvents.ConnectionOpened();
+		if (event.isEnabled()) {
+			event.device = RexEvents.device(conn);
+			event.transport = conn.getClass().getSimpleName();
+			event.commit();
+		}
+	}
+	
+	private static void connectionClosed(Connection conn, IOException cause) {
+		RexEvents.ConnectionClosed event = new RexEvents.ConnectionClosed();
+		if (event.isEnabled()) {
+			event.device = RexEvents.device(conn);
+			event.transport = conn.getClass().getSimpleName();
+			event.cause = cause == null ? null : cause.toString();
+			event.commit();
+		}
+	}
+	
+	
 	
 	
 
@@ -344,42 +516,128 @@ COMMAND_DISPLAY_WRITE            = 0x28;
 	public static class UDP extends RexProtocol {
 		public static final int PORT_DISCOVERY = 2800;
 		public static final int PORT_CONNECTION_REQUEST = 1025;
+		/** Tamanho máximo de um datagrama recebido */
+		public static final int MAX_DATAGRAM = 1024;
+		
 		SocketAddress destinationAddress;
-		DatagramSocket datagramSocket;
+		final DatagramChannel channel;
+		/** Selector da thread de handleProtocol(), se houver */
+		private volatile Selector selector;
+		/** Buffer de recepção, reaproveitado para todos os datagramas */
+		private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM).order(ByteOrder.LITTLE_ENDIAN);
+		/** Origem do datagrama sendo tratado */
+		private volatile SocketAddress sourceAddress;
+		
+		public UDP(RexEndpoint rex, int port) throws IOException {
+			this(rex, new InetSocketAddress(port));
+		}
 		
-		public UDP(RexEndpoint rex, int port) throws SocketException {
+		public UDP(RexEndpoint rex, SocketAddress bindAddress) throws IOException {
 			super(rex);
-			datagramSocket = new DatagramSocket(port);
-			datagramSocket.setBroadcast(true);
+			channel = DatagramChannel.open();
+			channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+			channel.bind(bindAddress);
+			channel.configureBlocking(false);
+		}
+		
+		public SocketAddress getLocalAddress() throws IOException {
+			return channel.getLocalAddress();
+		}
+		
+		/** Recebe pelo event loop, em vez de usar uma thread própria em handleProtocol() */
+		public void register(final RexEventLoop loop) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						loop.register(channel, SelectionKey.OP_READ, new RexEventLoop.Handler() {
+							@Override
+							public void ready(SelectionKey key) throws IOException {
+								receiveAll();
+							}
+							@Override
+							public void failed(SelectionKey key, Exception e) {
+								System.err.println(Util.ERR_PREFIX + "UDP receive failed: " + e);
+							}
+						});
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
 		}
 		
 		public void setDestinationAddress(InetSocketAddress destinationAddress) {
 			this.destinationAddress = destinationAddress;
 		}
 		
-		public synchronized void sendCommand(int cmd, byte[] ... data) throws IOException {
-			int len = 0;
-			for (byte[] b : data)
-				len += b.length;
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
-			out.write(PACKET_PROTOCOL);
-			Util.writeInt(out, cmd);
-			Util.writeInt(out, len);
-			for (byte[] b : data)
-				out.write(b);
-			
-			datagramSocket.send(new DatagramPacket(out.toByteArray(), out.size(), destinationAddress));
+		public SocketAddress getSourceAddress() {
+			return sourceAddress;
+		}
+		
+		/** O canal não é bloqueante: se o buffer de envio do SO estiver cheio, o datagrama é descartado, como qualquer perda em UDP */
+		public void sendFrame(RexFrame frame) throws IOException {
+			RexEvents.Send event = new RexEvents.Send();
+			event.begin();
+			SocketAddress destination;
+			synchronized (this) {
+				destination = destinationAddress;
+				send(frame, destination);
+			}
+			sent(event, frame, this, destination, false);
+		}
+		
+		public void sendFrame(RexFrame frame, SocketAddress destination) throws IOException {
+			RexEvents.Send event = new RexEvents.Send();
+			event.begin();
+			send(frame, destination);
+			sent(event, frame, this, destination, false);
+		}
+		
+		private void send(RexFrame frame, SocketAddress destination) throws IOException {
+			channel.send(ByteBuffer.wrap(frame.bytes(), RexFrame.TCP_PREFIX, frame.length()), destination);
 		}
 		
 		public void handleProtocol() throws IOException {
-			byte[] packetBuf = new byte[1024];
-			DatagramPacket pack = new DatagramPacket(packetBuf, packetBuf.length);
+			Selector selector = this.selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+			try {
+				while (channel.isOpen()) {
+					selector.select();
+					selector.selectedKeys().clear();
+					receiveAll();
+				}
+			} catch (ClosedChannelException e) {
+			} finally {
+				selector.close();
+			}
+		}
+		
+		/** Trata todos os datagramas pendentes, sem voltar ao selector entre eles */
+		private void receiveAll() throws IOException {
 			while (true) {
-				datagramSocket.receive(pack);
-				//System.out.println("Got UDP Pack " + Arrays.toString(packetBuf));
-				handleMessage(new DataInputStream(new ByteArrayInputStream(pack.getData(), 0, pack.getLength())), pack.getLength());
+				receiveBuffer.clear();
+				SocketAddress source = channel.receive(receiveBuffer);
+				if (source == null)
+					return;
+				receiveBuffer.flip();
+				sourceAddress = source;
+				try {
+					handleMessage(receiveBuffer);
+				} catch (IOException e) {
+					System.err.println(Util.ERR_PREFIX + "Invalid datagram from " + source + ": " + e.getMessage());
+				}
 			}
 		}
+		
+		public void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+			Selector selector = this.selector;
+			if (selector != null)
+				selector.wakeup();
+		}
 	}
 	
 	
@@ -388,46 +646,152 @@ COMMAND_DISPLAY_WRITE            = 0x28;
 	
 	
 
-	public static class TCP extends RexProtocol {
+	/**
+	 * Conexão com um Rex, com uma fila de saída.
+	 * Implementada pelo TCP bloqueante, pelo NioTCP e pelos streams do gateway.
+	 */
+	public abstract static class Connection extends RexProtocol {
+		/** Mensagens malformadas em uma mesma conexão antes de fechá-la */
+		public static final int MAX_VIOLATIONS = 8;
+		
+		private volatile FrameLimits frameLimits = FrameLimits.DEFAULT;
+		private volatile int violations;
+		
+		public Connection(RexEndpoint rex) {
+			super(rex);
+		}
+		
+		public FrameLimits getFrameLimits() {
+			return frameLimits;
+		}
+		/** Ex: conn.getFrameLimits().forFeatures(features), depois do FeaturesResponse */
+		public void setFrameLimits(FrameLimits frameLimits) {
+			this.frameLimits = frameLimits;
+		}
+		public int getViolationCount() {
+			return violations;
+		}
+		
+		/**
+		 * Chamado pela recepção a cada mensagem malformada, que é descartada.
+		 * Lança IOException, fechando a conexão, depois de MAX_VIOLATIONS ou se o IP entrar em quarentena.
+		 */
+		protected void frameViolation(String reason) throws IOException {
+			violations++;
+			Quarantine quarantine = rex.getQuarantine();
+			boolean quarantined = false;
+			if (quarantine != null)
+				quarantined = quarantine.violation(getRemoteAddress(), reason);
+			else
+				System.err.println(Util.ERR_PREFIX + "Malformed frame from " + getRemoteAddress() + ": " + reason);
+			if (quarantined || violations >= MAX_VIOLATIONS)
+				throw new IOException("Too many malformed frames from " + getRemoteAddress());
+		}
+		
+		/**
+		 * Enfileira a mensagem sem bloquear.
+		 * O Future completa quando a mensagem é escrita, ou falha se a fila estiver cheia ou a conexão cair.
+		 */
+		public abstract CompletableFuture<Void> submit(RexFrame frame);
+		public abstract OutboundQueue getOutboundQueue();
+		public abstract SocketAddress getRemoteAddress();
+		/** System.nanoTime() da última mensagem recebida */
+		public abstract long getLastReceived();
+		public abstract boolean isClosed();
+		public abstract void close();
+		
+		/**
+		 * Enfileira a mensagem sem bloquear nem esperar a escrita.
+		 * Lança IOException apenas se ela foi rejeitada de imediato (fila cheia ou conexão fechada).
+		 */
+		@Override
+		public void sendFrame(RexFrame frame) throws IOException {
+			RexEvents.Send event = new RexEvents.Send();
+			event.begin();
+			CompletableFuture<Void> result = submit(frame);
+			sent(event, frame, this, null, result.isCompletedExceptionally());
+			checkRejected(result);
+		}
+	}
+	
+	
+	public static class TCP extends Connection {
 		/** Socket */
 		public final Socket socket;
 		/** Stream de entrada */
 		private final DataInputStream in;
-		/** Stream de saida */
+		/** Stream de saida, escrito apenas pela thread de envio */
 		private final OutputStream out;
+		/** Mensagens aguardando a thread de envio */
+		private final OutboundQueue outbound;
+		/** System.nanoTime() da última mensagem recebida */
+		private volatile long lastReceived = System.nanoTime();
 		
 		public TCP(RexEndpoint rex, Socket socket) throws IOException {
 			super(rex);
 			this.socket = socket;
 			socket.setKeepAlive(true);
 			//System.out.println("KeepAlive: " + socket.getKeepAlive());
-			this.in = new DataInputStream(socket.getInputStream());
-			this.out = socket.getOutputStream();
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+			this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+			this.outbound = new OutboundQueue(this);
+			
+			new Thread("JA200-Send-To-" + socket.getRemoteSocketAddress()) {
+				public void run() {
+					writeLoop();
+				};
+			}.start();
+			connectionOpened(this);
+		}
+		
+		public OutboundQueue getOutboundQueue() {
+			return outbound;
 		}
 		
 		public SocketAddress getRemoteAddress() {
 			return socket.getRemoteSocketAddress();
 		}
 		
-		public synchronized void sendCommand(int cmd, byte[] ... data) throws IOException {
+		public long getLastReceived() {
+			return lastReceived;
+		}
+		
+		public boolean isClosed() {
+			return socket.isClosed();
+		}
+		
+		public CompletableFuture<Void> submit(RexFrame frame) {
+			return outbound.offer(frame);
+		}
+		
+		/** Escreve tudo que estiver pendente na fila e faz um único flush */
+		private void writeLoop() {
+			List<OutboundQueue.Entry> batch = null;
 			try {
-				//System.out.println("Sending Command " + cmd);
-				int len = 0;
-				for (byte[] b : data)
-					len += b.length;
-				Util.writeInt(out, len+16);
-				out.write(PACKET_PROTOCOL);
-				Util.writeInt(out, cmd);
-				Util.writeInt(out, len);
-				for (byte[] b : data)
-					out.write(b);
-				out.flush();
-				//System.out.println("Command " + cmd + " Sent");
+				while (true) {
+					batch = outbound.take(64);
+					for (OutboundQueue.Entry entry : batch) {
+						//System.out.println("Sending Command " + entry.frame.getCommand());
+						entry.frame.writeTcp(out);
+					}
+					out.flush();
+					for (OutboundQueue.Entry entry : batch)
+						entry.future.complete(null);
+					batch = null;
+				}
 			} catch (IOException e) {
-				try {
-					socket.close();
-				} catch (Exception e2) {}
-				throw e;
+				fail(batch, e);
+			} catch (InterruptedException e) {
+				fail(batch, new InterruptedIOException());
+			}
+		}
+		
+		private void fail(List<OutboundQueue.Entry> batch, IOException e) {
+			close();
+			outbound.close(e);
+			if (batch != null) {
+				for (OutboundQueue.Entry entry : batch)
+					entry.future.completeExceptionally(e);
 			}
 		}
 		
@@ -435,18 +799,21 @@ COMMAND_DISPLAY_WRITE            = 0x28;
 			SocketAddress server = socket.getRemoteSocketAddress();
 			System.out.println("============CONNECTED TO " + server + "============");
 			
+			FrameReader reader = new FrameReader(this, in, BufferPool.DEFAULT);
+			IOException cause = null;
 			try {
-				while (true) {			
-					int instrLength = Util.readInt(in) - 4;
-					
-					byte[] packBuf = new byte[instrLength];
-					in.readFully(packBuf);
-					DataInputStream cmdIn = new DataInputStream(new ByteArrayInputStream(packBuf));
-					handleMessage(cmdIn, instrLength); 
+				while (true) {
+					ByteBuffer frame = reader.next();
+					lastReceived = System.nanoTime();
+					handleMessage(frame);
 				}
 			} catch (Exception e) {
 				//e.printStackTrace();
+				cause = e instanceof IOException ? (IOException)e : new IOException(e);
 			} finally {
+				reader.release();
+				outbound.close(new EOFException("Disconnected"));
+				connectionClosed(this, cause);
 				System.out.println("============DISCONNECTED FROM " + server + "============");
 			}
 		}
@@ -455,6 +822,298 @@ COMMAND_DISPLAY_WRITE            = 0x28;
 			try {
 				socket.close();
 			} catch (IOException e) {}
+			outbound.close(new EOFException("Connection closed"));
+		}
+	}
+
+	
+	
+	
+	
+	
+	
+	/**
+	 * Conexão TCP não bloqueante, tratada por um {@link RexEventLoop}.
+	 * Milhares de conexões podem compartilhar o mesmo loop (e a mesma thread).
+	 * 
+	 * Recepção e dispatch acontecem na thread do loop. O envio é enfileirado 
+	 * em uma {@link OutboundQueue} e escrito pelo loop com gathering writes.
+	 */
+	public static class NioTCP extends Connection implements RexEventLoop.Handler {
+		private static final int INITIAL_BUFFER = 16 * 1024;
+		private static final int MAX_BATCH = 64;
+		
+		public final SocketChannel channel;
+		private final RexEventLoop loop;
+		private final OutboundQueue outbound;
+		private final CompletableFuture<Void> closeFuture = new CompletableFuture<Void>();
+		private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+		private final Runnable flushTask = new Runnable() {
+			@Override
+			public void run() {
+				flushScheduled.set(false);
+				flush();
+			}
+		};
+		
+		/** Acessados apenas na thread do loop */
+		private SelectionKey key;
+		private final ByteBuffer smallBuffer = ByteBuffer.allocate(INITIAL_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+		/** smallBuffer, ou um buffer do pool enquanto chega uma mensagem maior */
+		private ByteBuffer readBuffer = smallBuffer;
+		/** Bytes ainda a descartar de uma mensagem acima do limite */
+		private int skipping;
+		/** Bytes descartados procurando "REX0" depois de um cabeçalho inválido, -1 se sincronizado */
+		private int resyncing = -1;
+		private final ArrayDeque<OutboundQueue.Entry> writing = new ArrayDeque<OutboundQueue.Entry>();
+		private final ArrayDeque<ByteBuffer> writingBuffers = new ArrayDeque<ByteBuffer>();
+		
+		private volatile long lastReceived = System.nanoTime();
+		
+		/** Completado quando um connect() pendente termina */
+		private final CompletableFuture<NioTCP> connectFuture;
+		
+		/** O canal deve estar conectado, ex: vindo de ServerSocketChannel.accept() */
+		public NioTCP(RexEndpoint rex, RexEventLoop loop, SocketChannel channel) throws IOException {
+			this(rex, loop, channel, null);
+		}
+		
+		private NioTCP(RexEndpoint rex, final RexEventLoop loop, SocketChannel channel, CompletableFuture<NioTCP> connectFuture) throws IOException {
+			super(rex);
+			this.loop = loop;
+			this.channel = channel;
+			this.connectFuture = connectFuture;
+			this.outbound = new OutboundQueue(this);
+			channel.configureBlocking(false);
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						int ops = NioTCP.this.channel.isConnectionPending() ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ;
+						key = loop.register(NioTCP.this.channel, ops, NioTCP.this);
+						if (ops == SelectionKey.OP_READ) {
+							connectionOpened(NioTCP.this);
+							flush();
+						}
+					} catch (IOException e) {
+						close(e);
+					}
+				}
+			});
+		}
+		
+		/** Conecta sem bloquear. O Future completa quando a conexão estiver estabelecida */
+		public static CompletableFuture<NioTCP> connect(RexEndpoint rex, RexEventLoop loop, SocketAddress address) {
+			final CompletableFuture<NioTCP> result = new CompletableFuture<NioTCP>();
+			try {
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				if (channel.connect(address))
+					result.complete(new NioTCP(rex, loop, channel));
+				else
+					new NioTCP(rex, loop, channel, result);
+			} catch (IOException e) {
+				result.completeExceptionally(e);
+			}
+			return result;
+		}
+		
+		public RexEventLoop getEventLoop() {
+			return loop;
+		}
+		
+		public OutboundQueue getOutboundQueue() {
+			return outbound;
+		}
+		
+		public CompletableFuture<Void> getCloseFuture() {
+			return closeFuture;
+		}
+		
+		public SocketAddress getRemoteAddress() {
+			try {
+				return channel.getRemoteAddress();
+			} catch (IOException e) {
+				return null;
+			}
+		}
+		
+		public long getLastReceived() {
+			return lastReceived;
+		}
+		
+		public boolean isClosed() {
+			return closeFuture.isDone();
+		}
+		
+		public CompletableFuture<Void> submit(RexFrame frame) {
+			CompletableFuture<Void> result = outbound.offer(frame);
+			if (flushScheduled.compareAndSet(false, true))
+				loop.execute(flushTask);
+			return result;
+		}
+		
+		/** A recepção é feita pelo event loop: apenas espera a conexão fechar */
+		public void handleProtocol() throws IOException {
+			try {
+				closeFuture.join();
+			} catch (CompletionException e) {}
+		}
+		
+		@Override
+		public void ready(SelectionKey key) throws IOException {
+			if (key.isConnectable()) {
+				channel.finishConnect();
+				key.interestOps(SelectionKey.OP_READ);
+				connectionOpened(this);
+				if (connectFuture != null)
+					connectFuture.complete(this);
+				flush();
+			}
+			if (key.isValid() && key.isReadable())
+				read();
+			if (key.isValid() && key.isWritable())
+				flush();
+		}
+		
+		@Override
+		public void failed(SelectionKey key, Exception e) {
+			close(e instanceof IOException ? (IOException)e : new IOException(e));
+		}
+		
+		private void read() throws IOException {
+			int n = channel.read(readBuffer);
+			if (n < 0) {
+				close(new EOFException("Disconnected"));
+				return;
+			}
+			lastReceived = System.nanoTime();
+			readBuffer.flip();
+			while (true) {
+				if (skipping > 0) {
+					int skip = Math.min(skipping, readBuffer.remaining());
+					readBuffer.position(readBuffer.position() + skip);
+					skipping -= skip;
+					if (skipping > 0)
+						break;
+				}
+				if (readBuffer.remaining() < 16)
+					break;
+				int start = readBuffer.position();
+				int frameLength = readBuffer.getInt(start);
+				int cmd = readBuffer.getInt(start + 8);
+				int argLength = readBuffer.getInt(start + 12);
+				String error = FrameReader.checkHeader(frameLength, readBuffer.getInt(start + 4), argLength);
+				if (error != null) {
+					//Procura o próximo "REX0", um byte por vez
+					if (resyncing < 0)
+						frameViolation(error);
+					if (++resyncing > FrameReader.MAX_RESYNC)
+						throw new IOException("Lost frame synchronization");
+					readBuffer.position(start + 1);
+					continue;
+				}
+				resyncing = -1;
+				if (argLength > getFrameLimits().getMaxArgs(cmd)) {
+					frameViolation("command 0x" + Integer.toHexString(cmd) + " too large: " + argLength);
+					readBuffer.position(start + 16);
+					skipping = argLength;
+					continue;
+				}
+				if (readBuffer.remaining() < frameLength) {
+					if (frameLength > readBuffer.capacity()) {
+						ByteBuffer bigger = BufferPool.DEFAULT.acquire(frameLength);
+						bigger.clear();
+						bigger.put(readBuffer);
+						bigger.flip();
+						releaseReadBuffer();
+						readBuffer = bigger;
+					}
+					break;
+				}
+				int end = readBuffer.limit();
+				readBuffer.limit(start + frameLength).position(start + 4);
+				handleMessage(readBuffer);
+				readBuffer.limit(end).position(start + frameLength);
+			}
+			//Volta para o buffer pequeno quando a mensagem grande terminou
+			if (readBuffer != smallBuffer && readBuffer.remaining() <= smallBuffer.capacity()
+					&& (readBuffer.remaining() < 4 || readBuffer.getInt(readBuffer.position()) <= smallBuffer.capacity())) {
+				smallBuffer.clear();
+				smallBuffer.put(readBuffer);
+				releaseReadBuffer();
+				readBuffer = smallBuffer;
+			} else {
+				readBuffer.compact();
+			}
+		}
+		
+		private void releaseReadBuffer() {
+			if (readBuffer != smallBuffer)
+				BufferPool.DEFAULT.release(readBuffer);
+			readBuffer = smallBuffer;
+		}
+		
+		/** Escreve o que for possível sem bloquear, na thread do loop */
+		private void flush() {
+			if (key == null || !key.isValid() || channel.isConnectionPending())
+				return;
+			try {
+				while (true) {
+					if (writingBuffers.isEmpty()) {
+						for (OutboundQueue.Entry entry : outbound.poll(MAX_BATCH)) {
+							writing.add(entry);
+							writingBuffers.add(ByteBuffer.wrap(entry.frame.bytes()));
+						}
+						if (writingBuffers.isEmpty())
+							break;
+					}
+					channel.write(writingBuffers.toArray(new ByteBuffer[writingBuffers.size()]));
+					while (!writingBuffers.isEmpty() && !writingBuffers.peek().hasRemaining()) {
+						writingBuffers.poll();
+						writing.poll().future.complete(null);
+					}
+					if (!writingBuffers.isEmpty())
+						break;
+				}
+				if (writingBuffers.isEmpty())
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				else
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			} catch (IOException e) {
+				close(e);
+			}
+		}
+		
+		public void close() {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					close(new EOFException("Connection closed"));
+				}
+			});
+		}
+		
+		private void close(IOException cause) {
+			if (closeFuture.isDone())
+				return;
+			//Antes de fechar o canal, que ainda tem o endereço
+			connectionClosed(this, cause);
+			if (key != null)
+				key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {}
+			outbound.close(cause);
+			releaseReadBuffer();
+			for (OutboundQueue.Entry entry : writing)
+				entry.future.completeExceptionally(cause);
+			writing.clear();
+			writingBuffers.clear();
+			if (connectFuture != null)
+				connectFuture.completeExceptionally(cause);
+			closeFuture.complete(null);
 		}
 	}
 }
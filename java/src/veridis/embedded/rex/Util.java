@@ -1,9 +1,15 @@
 package veridis.embedded.rex;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 
 public class Util {
@@ -12,20 +18,69 @@ public class Util {
 	public static final String ERR_PREFIX   = ">>> ERR >>> ";	
 	
 	/**Charset usado para transmitir Strings nas mensagens: ISO-8859-1*/
-	//public static final Charset ISO_LATIN1 = Charset.availableCharsets().get("ISO-8859-1");
+	public static final Charset ISO_LATIN1 = StandardCharsets.ISO_8859_1;
 	public static final String StringFromBytes(byte[] data) {
-		try {
-			return new String(data, "ISO-8859-1");
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
+		return new String(data, ISO_LATIN1);
+	}
+	public static final String StringFromBytes(byte[] data, int offset, int length) {
+		return new String(data, offset, length, ISO_LATIN1);
+	}
+	/** Lê length bytes a partir de position, avançando o buffer */
+	public static final String StringFromBytes(ByteBuffer in, int length) {
+		if (in.hasArray()) {
+			String s = new String(in.array(), in.arrayOffset() + in.position(), length, ISO_LATIN1);
+			in.position(in.position() + length);
+			return s;
 		}
+		byte[] data = new byte[length];
+		in.get(data);
+		return StringFromBytes(data);
 	}
 	public static final byte[] StringToBytes(String s) {
-		try {
-			return s.getBytes("ISO-8859-1");
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
+		return s.getBytes(ISO_LATIN1);
+	}
+	/**
+	 * Codifica s em ISO-8859-1 direto em dst, sem alocar. Caracteres fora do Latin-1 viram '?'.
+	 * @return Número de bytes escritos (= s.length())
+	 */
+	public static int latin1Encode(String s, byte[] dst, int offset) {
+		int len = s.length();
+		for (int i=0; i<len; i++) {
+			char c = s.charAt(i);
+			dst[offset + i] = c <= 0xFF ? (byte)c : (byte)'?';
 		}
+		return len;
+	}
+	/** Decodifica ISO-8859-1 direto em dst, sem alocar */
+	public static void latin1Decode(byte[] src, int offset, int length, char[] dst, int dstOffset) {
+		for (int i=0; i<length; i++)
+			dst[dstOffset + i] = (char)(src[offset + i] & 0xFF);
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	// Inteiros little-endian em arrays, sem montar byte a byte
+	
+	private static final VarHandle LE_INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	
+	public static int getInt(byte[] buf, int offset) {
+		return (int)LE_INT.get(buf, offset);
+	}
+	public static void putInt(byte[] buf, int offset, int v) {
+		LE_INT.set(buf, offset, v);
+	}
+	/** Cria os argumentos de uma mensagem só com inteiros */
+	public static byte[] ints(int ... values) {
+		byte[] buf = new byte[4 * values.length];
+		for (int i=0; i<values.length; i++)
+			LE_INT.set(buf, 4*i, values[i]);
+		return buf;
+	}
+	/** Lê um buffer little-endian com exatamente length bytes */
+	public static ByteBuffer readBuffer(DataInputStream in, int length) throws IOException {
+		byte[] buf = new byte[length];
+		in.readFully(buf);
+		return ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
 	}
 	
 	public static void prettyDump(DataInputStream in, int len) throws IOException {
@@ -46,37 +101,82 @@ public class Util {
 		}
 		System.out.println();
 	}
+	public static final int ID_LENGTH = 12;
 	public static byte[] formatID(String name)  {
-		byte[] idRaw = StringToBytes(name);
-		byte[] id = new byte[12];
-		for (int i=0; i<id.length; i++) {
-			if (i < idRaw.length)
-				id[i] = idRaw[i];
-			else
-				id[i] = '_';
-		}
+		byte[] id = new byte[ID_LENGTH];
+		formatID(name, id, 0);
 		return id;
 	}
+	/** Escreve o ID com 12 bytes, completado com '_', em dst */
+	public static void formatID(String name, byte[] dst, int offset)  {
+		int len = Math.min(name.length(), ID_LENGTH);
+		for (int i=0; i<len; i++) {
+			char c = name.charAt(i);
+			dst[offset + i] = c <= 0xFF ? (byte)c : (byte)'?';
+		}
+		for (int i=len; i<ID_LENGTH; i++)
+			dst[offset + i] = '_';
+	}
 	public static String macString(byte[] mac)  {
 		return StringFromBytes(macChars(mac));
 	}
-	private static byte[] hexChars = StringToBytes("0123456789ABCDEF");
+	private static final byte[] hexChars = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
+	/** Os dois dígitos hexadecimais de cada byte: HEX_PAIRS[2*b], HEX_PAIRS[2*b+1] */
+	private static final char[] HEX_PAIRS = new char[512];
+	static {
+		for (int b=0; b<256; b++) {
+			HEX_PAIRS[2*b  ] = (char)hexChars[b >> 4];
+			HEX_PAIRS[2*b+1] = (char)hexChars[b & 0xF];
+		}
+	}
 	public static byte[] macChars(byte[] mac)  {
-		 byte[] macStr = new byte[12];
-		 for (int i=0; i<6; i++) {
-			 macStr[2*i  ] = hexChars[(mac[i] >> 4) & 0xF];
-			 macStr[2*i+1] = hexChars[(mac[i] >> 0) & 0xF];
-		 }
-		 return macStr;
+		byte[] macStr = new byte[12];
+		macChars(mac, macStr, 0);
+		return macStr;
+	}
+	/** Escreve os 12 dígitos hexadecimais do MAC em dst */
+	public static void macChars(byte[] mac, byte[] dst, int offset)  {
+		for (int i=0; i<6; i++) {
+			int b = mac[i] & 0xFF;
+			dst[offset + 2*i  ] = (byte)HEX_PAIRS[2*b];
+			dst[offset + 2*i+1] = (byte)HEX_PAIRS[2*b+1];
+		}
+	}
+	/** Mesma coisa, com o MAC nos 48 bits menos significativos */
+	public static void macChars(long mac, byte[] dst, int offset)  {
+		for (int i=0; i<6; i++) {
+			int b = (int)(mac >> (40 - 8*i)) & 0xFF;
+			dst[offset + 2*i  ] = (byte)HEX_PAIRS[2*b];
+			dst[offset + 2*i+1] = (byte)HEX_PAIRS[2*b+1];
+		}
 	}
 	public static String macStringPretty(byte[] mac)  {
-		 String macStr = "";
-		 for (int i=0; i<6; i++) {
-			 macStr+= (char)hexChars[(mac[i] >> 4) & 0xF];
-			 macStr+= (char)hexChars[(mac[i] >> 0) & 0xF];
-			 if (i<5) macStr+= ":";
-		 }
-		 return macStr;
+		char[] macStr = new char[17];
+		for (int i=0; i<6; i++) {
+			int b = mac[i] & 0xFF;
+			macStr[3*i  ] = HEX_PAIRS[2*b];
+			macStr[3*i+1] = HEX_PAIRS[2*b+1];
+			if (i<5) macStr[3*i+2] = ':';
+		}
+		return new String(macStr);
+	}
+	public static String macStringPretty(long mac)  {
+		char[] macStr = new char[17];
+		for (int i=0; i<6; i++) {
+			int b = (int)(mac >> (40 - 8*i)) & 0xFF;
+			macStr[3*i  ] = HEX_PAIRS[2*b];
+			macStr[3*i+1] = HEX_PAIRS[2*b+1];
+			if (i<5) macStr[3*i+2] = ':';
+		}
+		return new String(macStr);
+	}
+	
+	/** IPv4 como inteiro, primeiro elemento no byte mais significativo */
+	public static int ipFromBytes(byte[] ip) {
+		return ((ip[0] & 0xFF) << 24) | ((ip[1] & 0xFF) << 16) | ((ip[2] & 0xFF) << 8) | (ip[3] & 0xFF);
+	}
+	public static byte[] ipToBytes(int ip) {
+		return new byte[] {(byte)(ip >> 24), (byte)(ip >> 16), (byte)(ip >> 8), (byte)ip};
 	}
 	
 	public static int readByte(InputStream in) throws IOException {
@@ -87,12 +187,25 @@ public class Util {
 	
 	
 	public static int readInt(InputStream in) throws IOException {
+		if (in instanceof DataInputStream)
+			return Integer.reverseBytes(((DataInputStream)in).readInt());
 		return readByte(in) | (readByte(in)<<8) | (readByte(in)<<16) | (readByte(in)<<24);
 	}
+	/** Lê um inteiro usando buf (pelo menos 4 bytes) como área de trabalho: uma única leitura em bloco */
+	public static int readInt(InputStream in, byte[] buf) throws IOException {
+		readFully(in, buf, 0, 4);
+		return getInt(buf, 0);
+	}
+	public static void readFully(InputStream in, byte[] buf, int offset, int length) throws IOException {
+		while (length > 0) {
+			int n = in.read(buf, offset, length);
+			if (n < 0)
+				throw new EOFException("End of Stream");
+			offset += n;
+			length -= n;
+		}
+	}
 	public static void writeInt(OutputStream out, int v) throws IOException {
-		out.write( (v>>  0) & 0xFF);
-		out.write( (v>>  8) & 0xFF);
-		out.write( (v>> 16) & 0xFF);
-		out.write( (v>> 24) & 0xFF);
+		out.write(new byte[] {(byte)v, (byte)(v >> 8), (byte)(v >> 16), (byte)(v >> 24)});
 	}
 }
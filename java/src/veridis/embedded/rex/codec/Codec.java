@@ -0,0 +1,30 @@
+package veridis.embedded.rex.codec;
+
+/**
+ * Associa um código de comando ao tipo de mensagem correspondente.
+ * As instâncias do protocolo padrão estão em {@link Codecs}.
+ */
+public abstract class Codec<M extends RexMessage> {
+	private final int command;
+	private final String name;
+
+	public Codec(int command, String name) {
+		this.command = command;
+		this.name = name;
+	}
+
+	public final int getCommand() {
+		return command;
+	}
+
+	public final String getName() {
+		return name;
+	}
+
+	public abstract M newMessage();
+
+	@Override
+	public String toString() {
+		return name + " (0x" + Integer.toHexString(command) + ")";
+	}
+}
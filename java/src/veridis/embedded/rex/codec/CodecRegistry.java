@@ -0,0 +1,40 @@
+package veridis.embedded.rex.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codecs indexados pelo código do comando. Sem reflexão: um array com um Codec por código.
+ */
+public class CodecRegistry {
+	/** Todos os comandos de rex.protocol */
+	public static final CodecRegistry DEFAULT = new CodecRegistry();
+	static {
+		Codecs.registerAll(DEFAULT);
+	}
+
+	private final Codec<?>[] codecs = new Codec<?>[256];
+
+	public synchronized void register(Codec<?> codec) {
+		int cmd = codec.getCommand();
+		if (cmd < 0 || cmd >= codecs.length)
+			throw new IllegalArgumentException("Invalid command code: 0x" + Integer.toHexString(cmd));
+		codecs[cmd] = codec;
+	}
+
+	public Codec<?> get(int cmd) {
+		if (cmd < 0 || cmd >= codecs.length)
+			return null;
+		return codecs[cmd];
+	}
+
+	/** Decodifica os argumentos em uma nova mensagem, ou null se o comando é desconhecido */
+	public RexMessage decode(int cmd, ByteBuffer args) throws IOException {
+		Codec<?> codec = get(cmd);
+		if (codec == null)
+			return null;
+		RexMessage message = codec.newMessage();
+		message.decode(args);
+		return message;
+	}
+}
@@ -0,0 +1,164 @@
+// Gerado por tools/GenerateCodecs.java a partir de rex.protocol. Não edite.
+package veridis.embedded.rex.codec;
+
+public final class Codecs {
+	public static final Codec<Messages.Discovery> DISCOVERY = new Codec<Messages.Discovery>(Messages.COMMAND_DISCOVERY, "Discovery") {
+		@Override
+		public Messages.Discovery newMessage() {
+			return new Messages.Discovery();
+		}
+	};
+	public static final Codec<Messages.ConnectionRequest> CONNECTION_REQUEST = new Codec<Messages.ConnectionRequest>(Messages.COMMAND_CONNECTION_REQUEST, "ConnectionRequest") {
+		@Override
+		public Messages.ConnectionRequest newMessage() {
+			return new Messages.ConnectionRequest();
+		}
+	};
+	public static final Codec<Messages.FeaturesRequest> FEATURES_REQUEST = new Codec<Messages.FeaturesRequest>(Messages.COMMAND_FEATURES_REQUEST, "FeaturesRequest") {
+		@Override
+		public Messages.FeaturesRequest newMessage() {
+			return new Messages.FeaturesRequest();
+		}
+	};
+	public static final Codec<Messages.FeaturesResponse> FEATURES_RESPONSE = new Codec<Messages.FeaturesResponse>(Messages.COMMAND_FEATURES_RESPONSE, "FeaturesResponse") {
+		@Override
+		public Messages.FeaturesResponse newMessage() {
+			return new Messages.FeaturesResponse();
+		}
+	};
+	public static final Codec<Messages.Reset> RESET = new Codec<Messages.Reset>(Messages.COMMAND_RESET, "Reset") {
+		@Override
+		public Messages.Reset newMessage() {
+			return new Messages.Reset();
+		}
+	};
+	public static final Codec<Messages.IdRequest> ID_REQUEST = new Codec<Messages.IdRequest>(Messages.COMMAND_ID_REQUEST, "IdRequest") {
+		@Override
+		public Messages.IdRequest newMessage() {
+			return new Messages.IdRequest();
+		}
+	};
+	public static final Codec<Messages.IdResponse> ID_RESPONSE = new Codec<Messages.IdResponse>(Messages.COMMAND_ID_RESPONSE, "IdResponse") {
+		@Override
+		public Messages.IdResponse newMessage() {
+			return new Messages.IdResponse();
+		}
+	};
+	public static final Codec<Messages.DigitalOutput> DIGITAL_OUTPUT = new Codec<Messages.DigitalOutput>(Messages.COMMAND_DIGITAL_OUTPUT, "DigitalOutput") {
+		@Override
+		public Messages.DigitalOutput newMessage() {
+			return new Messages.DigitalOutput();
+		}
+	};
+	public static final Codec<Messages.DisplayInitialize> DISPLAY_INITIALIZE = new Codec<Messages.DisplayInitialize>(Messages.COMMAND_DISPLAY_INITIALIZE, "DisplayInitialize") {
+		@Override
+		public Messages.DisplayInitialize newMessage() {
+			return new Messages.DisplayInitialize();
+		}
+	};
+	public static final Codec<Messages.DisplayClear> DISPLAY_CLEAR = new Codec<Messages.DisplayClear>(Messages.COMMAND_DISPLAY_CLEAR, "DisplayClear") {
+		@Override
+		public Messages.DisplayClear newMessage() {
+			return new Messages.DisplayClear();
+		}
+	};
+	public static final Codec<Messages.DisplaySetEntryMode> DISPLAY_SET_ENTRY_MODE = new Codec<Messages.DisplaySetEntryMode>(Messages.COMMAND_DISPLAY_SET_ENTRY_MODE, "DisplaySetEntryMode") {
+		@Override
+		public Messages.DisplaySetEntryMode newMessage() {
+			return new Messages.DisplaySetEntryMode();
+		}
+	};
+	public static final Codec<Messages.DisplaySetCursor> DISPLAY_SET_CURSOR = new Codec<Messages.DisplaySetCursor>(Messages.COMMAND_DISPLAY_SET_CURSOR, "DisplaySetCursor") {
+		@Override
+		public Messages.DisplaySetCursor newMessage() {
+			return new Messages.DisplaySetCursor();
+		}
+	};
+	public static final Codec<Messages.DisplayMove> DISPLAY_MOVE = new Codec<Messages.DisplayMove>(Messages.COMMAND_DISPLAY_MOVE, "DisplayMove") {
+		@Override
+		public Messages.DisplayMove newMessage() {
+			return new Messages.DisplayMove();
+		}
+	};
+	public static final Codec<Messages.DisplayWrite> DISPLAY_WRITE = new Codec<Messages.DisplayWrite>(Messages.COMMAND_DISPLAY_WRITE, "DisplayWrite") {
+		@Override
+		public Messages.DisplayWrite newMessage() {
+			return new Messages.DisplayWrite();
+		}
+	};
+	public static final Codec<Messages.RS232Open> RS232_OPEN = new Codec<Messages.RS232Open>(Messages.COMMAND_RS232_OPEN, "RS232Open") {
+		@Override
+		public Messages.RS232Open newMessage() {
+			return new Messages.RS232Open();
+		}
+	};
+	public static final Codec<Messages.RS232SetMode> RS232_SET_MODE = new Codec<Messages.RS232SetMode>(Messages.COMMAND_RS232_SET_MODE, "RS232SetMode") {
+		@Override
+		public Messages.RS232SetMode newMessage() {
+			return new Messages.RS232SetMode();
+		}
+	};
+	public static final Codec<Messages.RS232Read> RS232_READ = new Codec<Messages.RS232Read>(Messages.COMMAND_RS232_READ, "RS232Read") {
+		@Override
+		public Messages.RS232Read newMessage() {
+			return new Messages.RS232Read();
+		}
+	};
+	public static final Codec<Messages.RS232Write> RS232_WRITE = new Codec<Messages.RS232Write>(Messages.COMMAND_RS232_WRITE, "RS232Write") {
+		@Override
+		public Messages.RS232Write newMessage() {
+			return new Messages.RS232Write();
+		}
+	};
+	public static final Codec<Messages.RS232Close> RS232_CLOSE = new Codec<Messages.RS232Close>(Messages.COMMAND_RS232_CLOSE, "RS232Close") {
+		@Override
+		public Messages.RS232Close newMessage() {
+			return new Messages.RS232Close();
+		}
+	};
+	public static final Codec<Messages.InputChanged> INPUT_CHANGED = new Codec<Messages.InputChanged>(Messages.COMMAND_INPUT_CHANGED, "InputChanged") {
+		@Override
+		public Messages.InputChanged newMessage() {
+			return new Messages.InputChanged();
+		}
+	};
+	public static final Codec<Messages.ImageCaptured> IMAGE_CAPTURED = new Codec<Messages.ImageCaptured>(Messages.COMMAND_IMAGE_CAPTURED, "ImageCaptured") {
+		@Override
+		public Messages.ImageCaptured newMessage() {
+			return new Messages.ImageCaptured();
+		}
+	};
+	public static final Codec<Messages.KeyTyped> KEY_TYPED = new Codec<Messages.KeyTyped>(Messages.COMMAND_KEY_TYPED, "KeyTyped") {
+		@Override
+		public Messages.KeyTyped newMessage() {
+			return new Messages.KeyTyped();
+		}
+	};
+
+	private Codecs() {}
+
+	public static void registerAll(CodecRegistry registry) {
+		registry.register(DISCOVERY);
+		registry.register(CONNECTION_REQUEST);
+		registry.register(FEATURES_REQUEST);
+		registry.register(FEATURES_RESPONSE);
+		registry.register(RESET);
+		registry.register(ID_REQUEST);
+		registry.register(ID_RESPONSE);
+		registry.register(DIGITAL_OUTPUT);
+		registry.register(DISPLAY_INITIALIZE);
+		registry.register(DISPLAY_CLEAR);
+		registry.register(DISPLAY_SET_ENTRY_MODE);
+		registry.register(DISPLAY_SET_CURSOR);
+		registry.register(DISPLAY_MOVE);
+		registry.register(DISPLAY_WRITE);
+		registry.register(RS232_OPEN);
+		registry.register(RS232_SET_MODE);
+		registry.register(RS232_READ);
+		registry.register(RS232_WRITE);
+		registry.register(RS232_CLOSE);
+		registry.register(INPUT_CHANGED);
+		registry.register(IMAGE_CAPTURED);
+		registry.register(KEY_TYPED);
+	}
+}
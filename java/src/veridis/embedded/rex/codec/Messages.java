@@ -0,0 +1,872 @@
+// Gerado por tools/GenerateCodecs.java a partir de rex.protocol. Não edite.
+package veridis.embedded.rex.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public final class Messages {
+	public static final int COMMAND_DISCOVERY = 0x01;
+	public static final int COMMAND_CONNECTION_REQUEST = 0x02;
+	public static final int COMMAND_FEATURES_REQUEST = 0x0a;
+	public static final int COMMAND_FEATURES_RESPONSE = 0x0b;
+	public static final int COMMAND_RESET = 0x0c;
+	public static final int COMMAND_ID_REQUEST = 0x0d;
+	public static final int COMMAND_ID_RESPONSE = 0x0e;
+	public static final int COMMAND_DIGITAL_OUTPUT = 0x12;
+	public static final int COMMAND_DISPLAY_INITIALIZE = 0x1e;
+	public static final int COMMAND_DISPLAY_CLEAR = 0x1f;
+	public static final int COMMAND_DISPLAY_SET_ENTRY_MODE = 0x21;
+	public static final int COMMAND_DISPLAY_SET_CURSOR = 0x23;
+	public static final int COMMAND_DISPLAY_MOVE = 0x24;
+	public static final int COMMAND_DISPLAY_WRITE = 0x28;
+	public static final int COMMAND_RS232_OPEN = 0x32;
+	public static final int COMMAND_RS232_SET_MODE = 0x33;
+	public static final int COMMAND_RS232_READ = 0x34;
+	public static final int COMMAND_RS232_WRITE = 0x35;
+	public static final int COMMAND_RS232_CLOSE = 0x36;
+	public static final int COMMAND_INPUT_CHANGED = 0x3c;
+	public static final int COMMAND_IMAGE_CAPTURED = 0x46;
+	public static final int COMMAND_KEY_TYPED = 0x50;
+
+	private Messages() {}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Discovery - 0x01, Rex => Servidor */
+	public static final class Discovery extends RexMessage {
+		public byte[] id = new byte[12];
+		public byte[] mac = new byte[12];
+		public int ip;
+		public int mask;
+		public int gateway;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_DISCOVERY;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 36);
+			id = getBytes(in, 12, id);
+			mac = getBytes(in, 12, mac);
+			ip = getIp(in);
+			mask = getIp(in);
+			gateway = getIp(in);
+		}
+
+		@Override
+		public int encodedLength() {
+			return 36;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			putBytes(out, id, 12);
+			putBytes(out, mac, 12);
+			putIp(out, ip);
+			putIp(out, mask);
+			putIp(out, gateway);
+		}
+
+		@Override
+		public String toString() {
+			return "Discovery[id=" + length(id) + " bytes, mac=" + length(mac) + " bytes, ip=" + ip + ", mask=" + mask + ", gateway=" + gateway + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** ConnectionRequest - 0x02, Servidor => Rex */
+	public static final class ConnectionRequest extends RexMessage {
+		public int unknown;
+		public int address;
+		public int port;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_CONNECTION_REQUEST;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 12);
+			unknown = in.getInt();
+			address = getIpReversed(in);
+			port = in.getInt();
+		}
+
+		@Override
+		public int encodedLength() {
+			return 12;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(unknown);
+			putIpReversed(out, address);
+			out.putInt(port);
+		}
+
+		@Override
+		public String toString() {
+			return "ConnectionRequest[unknown=" + unknown + ", address=" + address + ", port=" + port + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** FeaturesRequest - 0x0a, Servidor => Rex */
+	public static final class FeaturesRequest extends RexMessage {
+		@Override
+		public int getCommand() {
+			return COMMAND_FEATURES_REQUEST;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+		}
+
+		@Override
+		public int encodedLength() {
+			return 0;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+		}
+
+		@Override
+		public String toString() {
+			return "FeaturesRequest[]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** FeaturesResponse - 0x0b, Rex => Servidor */
+	public static final class FeaturesResponse extends RexMessage {
+		public int relays;
+		public int rs232;
+		public int inputs;
+		public int leds;
+		public int readers;
+		public boolean hasKeyboard;
+		public boolean hasDisplay;
+		public boolean hasBuzzer;
+		public boolean hasMP3;
+		public int versionRev;
+		public int versionSub;
+		public int versionMin;
+		public int versionMaj;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_FEATURES_RESPONSE;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 40);
+			relays = in.getInt();
+			rs232 = in.getInt();
+			inputs = in.getInt();
+			leds = in.getInt();
+			readers = in.getInt();
+			hasKeyboard = in.getInt() != 0;
+			hasDisplay = in.getInt() != 0;
+			hasBuzzer = in.getInt() != 0;
+			hasMP3 = in.getInt() != 0;
+			versionRev = in.get() & 0xFF;
+			versionSub = in.get() & 0xFF;
+			versionMin = in.get() & 0xFF;
+			versionMaj = in.get() & 0xFF;
+		}
+
+		@Override
+		public int encodedLength() {
+			return 40;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(relays);
+			out.putInt(rs232);
+			out.putInt(inputs);
+			out.putInt(leds);
+			out.putInt(readers);
+			out.putInt(hasKeyboard ? 1 : 0);
+			out.putInt(hasDisplay ? 1 : 0);
+			out.putInt(hasBuzzer ? 1 : 0);
+			out.putInt(hasMP3 ? 1 : 0);
+			out.put((byte)versionRev);
+			out.put((byte)versionSub);
+			out.put((byte)versionMin);
+			out.put((byte)versionMaj);
+		}
+
+		@Override
+		public String toString() {
+			return "FeaturesResponse[relays=" + relays + ", rs232=" + rs232 + ", inputs=" + inputs + ", leds=" + leds + ", readers=" + readers + ", hasKeyboard=" + hasKeyboard + ", hasDisplay=" + hasDisplay + ", hasBuzzer=" + hasBuzzer + ", hasMP3=" + hasMP3 + ", versionRev=" + versionRev + ", versionSub=" + versionSub + ", versionMin=" + versionMin + ", versionMaj=" + versionMaj + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Reset - 0x0c, Servidor => Rex */
+	public static final class Reset extends RexMessage {
+		@Override
+		public int getCommand() {
+			return COMMAND_RESET;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+		}
+
+		@Override
+		public int encodedLength() {
+			return 0;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+		}
+
+		@Override
+		public String toString() {
+			return "Reset[]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** IdRequest - 0x0d, Servidor => Rex */
+	public static final class IdRequest extends RexMessage {
+		@Override
+		public int getCommand() {
+			return COMMAND_ID_REQUEST;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+		}
+
+		@Override
+		public int encodedLength() {
+			return 0;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+		}
+
+		@Override
+		public String toString() {
+			return "IdRequest[]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** IdResponse - 0x0e, Rex => Servidor */
+	public static final class IdResponse extends RexMessage {
+		public String id;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_ID_RESPONSE;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			id = getString(in);
+		}
+
+		@Override
+		public int encodedLength() {
+			return 0 + getBytes(id).length;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.put(getBytes(id));
+		}
+
+		@Override
+		public String toString() {
+			return "IdResponse[id=" + id + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** DigitalOutput - 0x12, Servidor => Rex */
+	public static final class DigitalOutput extends RexMessage {
+		public int type;
+		public int port;
+		public int timeOn;
+		public int timeOff;
+		public int repeats;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_DIGITAL_OUTPUT;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 20);
+			type = in.getInt();
+			port = in.getInt();
+			timeOn = in.getInt();
+			timeOff = in.getInt();
+			repeats = in.getInt();
+		}
+
+		@Override
+		public int encodedLength() {
+			return 20;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(type);
+			out.putInt(port);
+			out.putInt(timeOn);
+			out.putInt(timeOff);
+			out.putInt(repeats);
+		}
+
+		@Override
+		public String toString() {
+			return "DigitalOutput[type=" + type + ", port=" + port + ", timeOn=" + timeOn + ", timeOff=" + timeOff + ", repeats=" + repeats + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** DisplayInitialize - 0x1e, Servidor => Rex */
+	public static final class DisplayInitialize extends RexMessage {
+		public int width;
+		public int height;
+		public int busWidth;
+		public int font;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_DISPLAY_INITIALIZE;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 16);
+			width = in.getInt();
+			height = in.getInt();
+			busWidth = in.getInt();
+			font = in.getInt();
+		}
+
+		@Override
+		public int encodedLength() {
+			return 16;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(width);
+			out.putInt(height);
+			out.putInt(busWidth);
+			out.putInt(font);
+		}
+
+		@Override
+		public String toString() {
+			return "DisplayInitialize[width=" + width + ", height=" + height + ", busWidth=" + busWidth + ", font=" + font + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** DisplayClear - 0x1f, Servidor => Rex */
+	public static final class DisplayClear extends RexMessage {
+		@Override
+		public int getCommand() {
+			return COMMAND_DISPLAY_CLEAR;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+		}
+
+		@Override
+		public int encodedLength() {
+			return 0;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+		}
+
+		@Override
+		public String toString() {
+			return "DisplayClear[]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** DisplaySetEntryMode - 0x21, Servidor => Rex */
+	public static final class DisplaySetEntryMode extends RexMessage {
+		public int mode;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_DISPLAY_SET_ENTRY_MODE;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 4);
+			mode = in.getInt();
+		}
+
+		@Override
+		public int encodedLength() {
+			return 4;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(mode);
+		}
+
+		@Override
+		public String toString() {
+			return "DisplaySetEntryMode[mode=" + mode + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** DisplaySetCursor - 0x23, Servidor => Rex */
+	public static final class DisplaySetCursor extends RexMessage {
+		public int flags;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_DISPLAY_SET_CURSOR;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 4);
+			flags = in.getInt();
+		}
+
+		@Override
+		public int encodedLength() {
+			return 4;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(flags);
+		}
+
+		@Override
+		public String toString() {
+			return "DisplaySetCursor[flags=" + flags + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** DisplayMove - 0x24, Servidor => Rex */
+	public static final class DisplayMove extends RexMessage {
+		public int mode;
+		public int offset;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_DISPLAY_MOVE;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 8);
+			mode = in.getInt();
+			offset = in.getInt();
+		}
+
+		@Override
+		public int encodedLength() {
+			return 8;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(mode);
+			out.putInt(offset);
+		}
+
+		@Override
+		public String toString() {
+			return "DisplayMove[mode=" + mode + ", offset=" + offset + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** DisplayWrite - 0x28, Servidor => Rex */
+	public static final class DisplayWrite extends RexMessage {
+		public int line;
+		public int col;
+		public int unknown;
+		public String text;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_DISPLAY_WRITE;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 12);
+			line = in.getInt();
+			col = in.getInt();
+			unknown = in.getInt();
+			text = getString(in);
+		}
+
+		@Override
+		public int encodedLength() {
+			return 12 + getBytes(text).length;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(line);
+			out.putInt(col);
+			out.putInt(unknown);
+			out.put(getBytes(text));
+		}
+
+		@Override
+		public String toString() {
+			return "DisplayWrite[line=" + line + ", col=" + col + ", unknown=" + unknown + ", text=" + text + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** RS232Open - 0x32, Servidor => Rex */
+	public static final class RS232Open extends RexMessage {
+		public int port;
+		public int baud;
+		public int parity;
+		public int bits;
+		public int stopBits;
+		public int flowControl;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_RS232_OPEN;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 24);
+			port = in.getInt();
+			baud = in.getInt();
+			parity = in.getInt();
+			bits = in.getInt();
+			stopBits = in.getInt();
+			flowControl = in.getInt();
+		}
+
+		@Override
+		public int encodedLength() {
+			return 24;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(port);
+			out.putInt(baud);
+			out.putInt(parity);
+			out.putInt(bits);
+			out.putInt(stopBits);
+			out.putInt(flowControl);
+		}
+
+		@Override
+		public String toString() {
+			return "RS232Open[port=" + port + ", baud=" + baud + ", parity=" + parity + ", bits=" + bits + ", stopBits=" + stopBits + ", flowControl=" + flowControl + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** RS232SetMode - 0x33, Servidor => Rex */
+	public static final class RS232SetMode extends RexMessage {
+		public int port;
+		public boolean synchronous;
+		public boolean binary;
+		public int packSize;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_RS232_SET_MODE;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 16);
+			port = in.getInt();
+			synchronous = in.getInt() != 0;
+			binary = in.getInt() != 0;
+			packSize = in.getInt();
+		}
+
+		@Override
+		public int encodedLength() {
+			return 16;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(port);
+			out.putInt(synchronous ? 1 : 0);
+			out.putInt(binary ? 1 : 0);
+			out.putInt(packSize);
+		}
+
+		@Override
+		public String toString() {
+			return "RS232SetMode[port=" + port + ", synchronous=" + synchronous + ", binary=" + binary + ", packSize=" + packSize + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** RS232Read - 0x34, Servidor => Rex */
+	public static final class RS232Read extends RexMessage {
+		public int port;
+		public int length;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_RS232_READ;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 8);
+			port = in.getInt();
+			length = in.getInt();
+		}
+
+		@Override
+		public int encodedLength() {
+			return 8;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(port);
+			out.putInt(length);
+		}
+
+		@Override
+		public String toString() {
+			return "RS232Read[port=" + port + ", length=" + length + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** RS232Write - 0x35, Rex <=> Servidor */
+	public static final class RS232Write extends RexMessage {
+		public int port;
+		public byte[] data;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_RS232_WRITE;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 4);
+			port = in.getInt();
+			data = getBytes(in, in.remaining(), data);
+		}
+
+		@Override
+		public int encodedLength() {
+			return 4 + length(data);
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(port);
+			putBytes(out, data, length(data));
+		}
+
+		@Override
+		public String toString() {
+			return "RS232Write[port=" + port + ", data=" + length(data) + " bytes]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** RS232Close - 0x36, Servidor => Rex */
+	public static final class RS232Close extends RexMessage {
+		public int port;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_RS232_CLOSE;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 4);
+			port = in.getInt();
+		}
+
+		@Override
+		public int encodedLength() {
+			return 4;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(port);
+		}
+
+		@Override
+		public String toString() {
+			return "RS232Close[port=" + port + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** InputChanged - 0x3c, Rex => Servidor */
+	public static final class InputChanged extends RexMessage {
+		public int port;
+		public boolean on;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_INPUT_CHANGED;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 8);
+			port = in.getInt();
+			on = in.getInt() != 0;
+		}
+
+		@Override
+		public int encodedLength() {
+			return 8;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(port);
+			out.putInt(on ? 1 : 0);
+		}
+
+		@Override
+		public String toString() {
+			return "InputChanged[port=" + port + ", on=" + on + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** ImageCaptured - 0x46, Rex => Servidor */
+	public static final class ImageCaptured extends RexMessage {
+		public int width;
+		public int height;
+		public int resX;
+		public int resY;
+		public byte[] image;
+		public String sensor;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_IMAGE_CAPTURED;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 16);
+			width = in.getInt();
+			height = in.getInt();
+			resX = in.getInt();
+			resY = in.getInt();
+			image = getBytes(in, (long)width * height, image);
+			sensor = getString(in);
+		}
+
+		@Override
+		public int encodedLength() {
+			return 16 + width * height + getBytes(sensor).length;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(width);
+			out.putInt(height);
+			out.putInt(resX);
+			out.putInt(resY);
+			putBytes(out, image, width * height);
+			out.put(getBytes(sensor));
+		}
+
+		@Override
+		public String toString() {
+			return "ImageCaptured[width=" + width + ", height=" + height + ", resX=" + resX + ", resY=" + resY + ", image=" + length(image) + " bytes, sensor=" + sensor + "]";
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** KeyTyped - 0x50, Rex => Servidor */
+	public static final class KeyTyped extends RexMessage {
+		public int keyCode;
+
+		@Override
+		public int getCommand() {
+			return COMMAND_KEY_TYPED;
+		}
+
+		@Override
+		public void decode(ByteBuffer in) throws IOException {
+			need(in, 4);
+			keyCode = in.getInt();
+		}
+
+		@Override
+		public int encodedLength() {
+			return 4;
+		}
+
+		@Override
+		public void encode(ByteBuffer out) {
+			out.putInt(keyCode);
+		}
+
+		@Override
+		public String toString() {
+			return "KeyTyped[keyCode=" + keyCode + "]";
+		}
+	}
+}
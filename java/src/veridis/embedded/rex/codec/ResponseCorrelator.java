@@ -0,0 +1,112 @@
+package veridis.embedded.rex.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import veridis.embedded.rex.RexEndpoint;
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.RexProtocol.BufferHandler;
+
+/**
+ * Associa respostas a pedidos sem bloquear, para poder enviar vários pedidos de uma vez.
+ *
+ * O protocolo não tem identificador de pedido, mas o Rex responde na ordem: para cada conexão e
+ * cada tipo de resposta há uma fila de futures, e cada resposta completa o mais antigo.
+ * Registre a espera com expect() antes de enviar o pedido.
+ */
+public class ResponseCorrelator {
+	private static class Key {
+		final RexProtocol comm;
+		final int command;
+		Key(RexProtocol comm, int command) {
+			this.comm = comm;
+			this.command = command;
+		}
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(comm) * 31 + command;
+		}
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && ((Key)o).comm == comm && ((Key)o).command == command;
+		}
+	}
+
+	private final ConcurrentHashMap<Key, Queue<CompletableFuture<RexMessage>>> pending = new ConcurrentHashMap<Key, Queue<CompletableFuture<RexMessage>>>();
+	private final Codec<?>[] codecs = new Codec<?>[256];
+	private final RexEndpoint rex;
+
+	/** Cuida das respostas dos codecs indicados, recebidas por rex */
+	public ResponseCorrelator(RexEndpoint rex, Codec<?> ... responses) {
+		this.rex = rex;
+		for (final Codec<?> codec : responses) {
+			codecs[codec.getCommand()] = codec;
+			rex.addMessageHandler(new BufferHandler(codec.getCommand()) {
+				@Override
+				public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+					responseReceived(codec, in, comm);
+				}
+			});
+		}
+	}
+
+	public RexEndpoint getEndpoint() {
+		return rex;
+	}
+
+	/** Future completado pela próxima resposta desse tipo recebida em comm */
+	@SuppressWarnings("unchecked")
+	public <M extends RexMessage> CompletableFuture<M> expect(RexProtocol comm, Codec<M> response) {
+		if (codecs[response.getCommand()] != response)
+			throw new IllegalArgumentException("Not correlated: " + response);
+		Key key = new Key(comm, response.getCommand());
+		Queue<CompletableFuture<RexMessage>> queue = pending.get(key);
+		if (queue == null) {
+			queue = new ConcurrentLinkedQueue<CompletableFuture<RexMessage>>();
+			Queue<CompletableFuture<RexMessage>> old = pending.putIfAbsent(key, queue);
+			if (old != null)
+				queue = old;
+		}
+		CompletableFuture<M> future = new CompletableFuture<M>();
+		queue.add((CompletableFuture<RexMessage>)future);
+		return future;
+	}
+
+	/** Falha tudo que estava esperando resposta de comm. Chamar quando a conexão termina */
+	public void cancel(RexProtocol comm, Throwable cause) {
+		for (int cmd=0; cmd<codecs.length; cmd++) {
+			if (codecs[cmd] == null)
+				continue;
+			Queue<CompletableFuture<RexMessage>> queue = pending.remove(new Key(comm, cmd));
+			if (queue == null)
+				continue;
+			CompletableFuture<RexMessage> future;
+			while ((future = queue.poll()) != null)
+				future.completeExceptionally(cause);
+		}
+	}
+
+	private void responseReceived(Codec<?> codec, ByteBuffer in, RexProtocol comm) throws IOException {
+		Queue<CompletableFuture<RexMessage>> queue = pending.get(new Key(comm, codec.getCommand()));
+		if (queue == null)
+			return;
+		CompletableFuture<RexMessage> future;
+		do {
+			future = queue.poll();
+			if (future == null)
+				return;
+		} while (future.isDone()); //Ex: timeout
+		RexMessage message = codec.newMessage();
+		try {
+			message.decode(in);
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+			throw e;
+		}
+		future.complete(message);
+	}
+}
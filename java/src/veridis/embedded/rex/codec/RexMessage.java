@@ -0,0 +1,90 @@
+package veridis.embedded.rex.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import veridis.embedded.rex.RexFrame;
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.Util;
+
+/**
+ * Mensagem tipada do protocolo. As subclasses são geradas em {@link Messages}.
+ *
+ * As mensagens são mutáveis para poderem ser reaproveitadas: decode() sobrescreve todos os campos.
+ */
+public abstract class RexMessage {
+	public abstract int getCommand();
+
+	/** Lê os argumentos do comando, de position até limit (little-endian) */
+	public abstract void decode(ByteBuffer in) throws IOException;
+
+	/** Tamanho dos argumentos, em bytes */
+	public abstract int encodedLength();
+
+	/** Escreve os argumentos (little-endian) */
+	public abstract void encode(ByteBuffer out);
+
+	public RexFrame toFrame() {
+		byte[] args = new byte[encodedLength()];
+		encode(ByteBuffer.wrap(args).order(ByteOrder.LITTLE_ENDIAN));
+		return RexFrame.encode(getCommand(), args);
+	}
+
+	public void send(RexProtocol comm) throws IOException {
+		comm.sendFrame(toFrame());
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	// Usados pelo código gerado
+
+	protected static void need(ByteBuffer in, int length) throws IOException {
+		if (in.remaining() < length)
+			throw new IOException("Truncated message");
+	}
+
+	protected static byte[] getBytes(ByteBuffer in, long length, byte[] reuse) throws IOException {
+		if (length < 0 || length > in.remaining())
+			throw new IOException("Invalid field length: " + length);
+		byte[] bytes = reuse != null && reuse.length == length ? reuse : new byte[(int)length];
+		in.get(bytes);
+		return bytes;
+	}
+
+	protected static String getString(ByteBuffer in) {
+		return Util.StringFromBytes(in, in.remaining());
+	}
+
+	protected static int getIp(ByteBuffer in) {
+		return (in.get() & 0xFF) << 24 | (in.get() & 0xFF) << 16 | (in.get() & 0xFF) << 8 | (in.get() & 0xFF);
+	}
+
+	protected static int getIpReversed(ByteBuffer in) {
+		return (in.get() & 0xFF) | (in.get() & 0xFF) << 8 | (in.get() & 0xFF) << 16 | (in.get() & 0xFF) << 24;
+	}
+
+	protected static void putIp(ByteBuffer out, int ip) {
+		out.put((byte)(ip >> 24)).put((byte)(ip >> 16)).put((byte)(ip >> 8)).put((byte)ip);
+	}
+
+	protected static void putIpReversed(ByteBuffer out, int ip) {
+		out.put((byte)ip).put((byte)(ip >> 8)).put((byte)(ip >> 16)).put((byte)(ip >> 24));
+	}
+
+	protected static void putBytes(ByteBuffer out, byte[] bytes, int length) {
+		if (bytes == null)
+			bytes = new byte[0];
+		out.put(bytes, 0, Math.min(bytes.length, length));
+		for (int i=bytes.length; i<length; i++)
+			out.put((byte)0);
+	}
+
+	protected static int length(byte[] bytes) {
+		return bytes == null ? 0 : bytes.length;
+	}
+
+	protected static byte[] getBytes(String s) {
+		return s == null ? new byte[0] : Util.StringToBytes(s);
+	}
+}
@@ -0,0 +1,48 @@
+package veridis.embedded.rex.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.RexProtocol.BufferHandler;
+
+/**
+ * MessageHandler que entrega mensagens tipadas.
+ *
+ * Ex: rex.addMessageHandler(new TypedHandler&lt;Messages.InputChanged&gt;(Codecs.INPUT_CHANGED, listener, true));
+ *
+ * Com pooled=true, cada thread reaproveita a mesma instância da mensagem: ela só é válida
+ * durante a chamada do listener.
+ */
+public class TypedHandler<M extends RexMessage> extends BufferHandler {
+	public static interface Listener<M extends RexMessage> {
+		public abstract void messageReceived(RexProtocol comm, M message) throws IOException;
+	}
+
+	private final Codec<M> codec;
+	private final Listener<M> listener;
+	private final ThreadLocal<M> pool;
+
+	public TypedHandler(Codec<M> codec, Listener<M> listener) {
+		this(codec, listener, false);
+	}
+
+	public TypedHandler(final Codec<M> codec, Listener<M> listener, boolean pooled) {
+		super(codec.getCommand());
+		this.codec = codec;
+		this.listener = listener;
+		this.pool = !pooled ? null : new ThreadLocal<M>() {
+			@Override
+			protected M initialValue() {
+				return codec.newMessage();
+			}
+		};
+	}
+
+	@Override
+	public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+		M message = pool != null ? pool.get() : codec.newMessage();
+		message.decode(in);
+		listener.messageReceived(comm, message);
+	}
+}
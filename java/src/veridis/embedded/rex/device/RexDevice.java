@@ -0,0 +1,279 @@
+package veridis.embedded.rex.device;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import veridis.embedded.rex.RexEndpoint;
+import veridis.embedded.rex.RexEventLoop;
+import veridis.embedded.rex.RexFrame;
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.RexProtocol.NioTCP;
+import veridis.embedded.rex.Util;
+import veridis.embedded.rex.messages.MsgBasic;
+import veridis.embedded.rex.messages.MsgDisplay;
+import veridis.embedded.rex.messages.MsgIO;
+import veridis.embedded.rex.messages.MsgRS232;
+import veridis.embedded.rex.messages.MsgBasic.ConnectionRequestListener;
+import veridis.embedded.rex.messages.MsgBasic.FeaturesRequestListener;
+import veridis.embedded.rex.messages.MsgBasic.ResetListener;
+import veridis.embedded.rex.messages.MsgDisplay.DisplayListener;
+import veridis.embedded.rex.messages.MsgIO.DigitalOutputListener;
+import veridis.embedded.rex.messages.MsgRS232.RS232Listener;
+
+/**
+ * Lado do dispositivo do protocolo: faz o papel de um Rex.
+ *
+ * Anuncia-se por Discovery, conecta-se ao servidor quando recebe um ConnectionRequest
+ * e responde a Features/ID. Saídas, display e portas seriais são delegados para um {@link VirtualIO}.
+ *
+ * Todo o I/O roda em um {@link RexEventLoop}, que pode ser compartilhado por milhares de dispositivos.
+ * Para vários dispositivos na mesma máquina, use um IP diferente para cada um (ex: 127.0.x.y),
+ * já que cada um escuta ConnectionRequest na porta 1025 do seu IP.
+ */
+public class RexDevice extends RexEndpoint implements ConnectionRequestListener, FeaturesRequestListener, ResetListener {
+	public static final long DISCOVERY_INTERVAL = 1000;
+
+	public static interface VirtualIO extends DigitalOutputListener, DisplayListener, RS232Listener {
+		public abstract void connected(RexDevice device);
+		public abstract void disconnected(RexDevice device);
+		public abstract void resetRequested(RexDevice device);
+	}
+
+	/** VirtualIO que ignora tudo, para sobrescrever apenas o necessário */
+	public static class VirtualIOAdapter implements VirtualIO {
+		@Override public void connected(RexDevice device) {}
+		@Override public void disconnected(RexDevice device) {}
+		@Override public void resetRequested(RexDevice device) {}
+		@Override public void toggleDigitalOutput(RexProtocol comm, int portType, int portNum, int timeOn, int timeOff, int repeats) {}
+		@Override public void displayClear(RexProtocol comm) {}
+		@Override public void displayInit(RexProtocol comm, int width, int height, int busWidth, boolean font5x10) {}
+		@Override public void displaySetEntryMode(RexProtocol comm, boolean moveMessage, boolean toRight) {}
+		@Override public void displaySetCursor(RexProtocol comm, boolean displayOn, boolean cursorOn, boolean blinking) {}
+		@Override public void displayWrite(RexProtocol comm, int line, int col, int unknown, String str) {}
+		@Override public void displayMove(RexProtocol comm, boolean moveMessage, int offset) {}
+		@Override public void rs232Open(RexProtocol conn, int portNumber, int baud, int parity, int bits, int stopBits, int flowControl) {}
+		@Override public void rs232Close(RexProtocol conn, int portNumber) {}
+		@Override public void rs232Write(RexProtocol conn, int portNumber, byte[] buffer) {}
+		@Override public void rs232SetMode(RexProtocol conn, int portNumber, boolean synchroneous, boolean binary, int packSize) {}
+		@Override public void rs232Read(RexProtocol conn, int portNumber, int bufferLength) {}
+	}
+
+	/** O que o dispositivo informa no FeaturesResponse */
+	public static class Features {
+		public final int relays;
+		public final int rs232;
+		public final int inputs;
+		public final int leds;
+		public final int readers;
+		public final boolean hasKeyboard;
+		public final boolean hasDisplay;
+		public final boolean hasBuzzer;
+
+		public Features(int relays, int rs232, int inputs, int leds, int readers, boolean hasKeyboard, boolean hasDisplay, boolean hasBuzzer) {
+			this.relays = relays;
+			this.rs232 = rs232;
+			this.inputs = inputs;
+			this.leds = leds;
+			this.readers = readers;
+			this.hasKeyboard = hasKeyboard;
+			this.hasDisplay = hasDisplay;
+			this.hasBuzzer = hasBuzzer;
+		}
+	}
+
+	private final RexEventLoop loop;
+	private final String id;
+	private final byte[] mac;
+	private final byte[] ip;
+	private final Features features;
+	private final VirtualIO io;
+
+	private RexProtocol.UDP udp;
+	private RexFrame discoveryFrame;
+	private RexEventLoop.Timer discoveryTimer;
+	private volatile NioTCP conn;
+	private volatile boolean connecting;
+
+	public RexDevice(RexEventLoop loop, String id, byte[] mac, byte[] ip, Features features, VirtualIO io) {
+		this.loop = loop;
+		this.id = id;
+		this.mac = mac.clone();
+		this.ip = ip.clone();
+		this.features = features;
+		this.io = io;
+
+		addMessageHandler(new MsgBasic.ConnectionRequest(this));
+		addMessageHandler(new MsgBasic.FeaturesRequest(this));
+		addMessageHandler(new MsgBasic.IdRequest(this));
+		addMessageHandler(new MsgBasic.ResetRequest(this));
+		addMessageHandler(new MsgIO.DigitalOutput(io));
+		addMessageHandler(new MsgDisplay.Clear(io));
+		addMessageHandler(new MsgDisplay.Initialize(io));
+		addMessageHandler(new MsgDisplay.SetEntryMode(io));
+		addMessageHandler(new MsgDisplay.SetCursor(io));
+		addMessageHandler(new MsgDisplay.Write(io));
+		addMessageHandler(new MsgDisplay.Move(io));
+		addMessageHandler(new MsgRS232.Open(io));
+		addMessageHandler(new MsgRS232.Close(io));
+		addMessageHandler(new MsgRS232.SetMode(io));
+		addMessageHandler(new MsgRS232.Read(io));
+		addMessageHandler(new MsgRS232.Write(io));
+	}
+
+	public String getID() {
+		return id;
+	}
+
+	public Features getFeatures() {
+		return features;
+	}
+
+	public boolean isConnected() {
+		return conn != null;
+	}
+
+	/**
+	 * Escuta ConnectionRequest em ip:1025 e envia Discovery para discoveryTarget
+	 * (ex: 255.255.255.255:2800) a cada segundo, enquanto não estiver conectado.
+	 */
+	public void startDiscovery(InetSocketAddress discoveryTarget, final byte[] mask, final byte[] gateway) throws IOException {
+		udp = new RexProtocol.UDP(this, new InetSocketAddress(InetAddress.getByAddress(ip), RexProtocol.UDP.PORT_CONNECTION_REQUEST));
+		udp.setDestinationAddress(discoveryTarget);
+		udp.register(loop);
+
+		List<RexFrame> frames = RexFrame.record(new RexFrame.Sender() {
+			@Override
+			public void send(RexProtocol comm) throws IOException {
+				MsgBasic.Discovery.send(comm, id, mac, ip, mask, gateway);
+			}
+		});
+		discoveryFrame = frames.get(0);
+		discoveryTimer = loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				broadcastDiscovery();
+			}
+		}, 0, TimeUnit.MILLISECONDS);
+	}
+
+	private void broadcastDiscovery() {
+		if (conn == null && !connecting) {
+			try {
+				udp.sendFrame(discoveryFrame);
+			} catch (IOException e) {
+				System.err.println(Util.ERR_PREFIX + "Discovery from " + id + " failed: " + e.getMessage());
+			}
+		}
+		discoveryTimer = loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				broadcastDiscovery();
+			}
+		}, DISCOVERY_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/** Conecta diretamente a um servidor, sem esperar um ConnectionRequest */
+	public synchronized CompletableFuture<NioTCP> connect(SocketAddress server) {
+		connecting = true;
+		CompletableFuture<NioTCP> result = NioTCP.connect(this, loop, server);
+		result.whenComplete(new BiConsumer<NioTCP, Throwable>() {
+			@Override
+			public void accept(final NioTCP c, Throwable error) {
+				connecting = false;
+				if (error != null)
+					return;
+				conn = c;
+				io.connected(RexDevice.this);
+				c.getCloseFuture().thenRun(new Runnable() {
+					@Override
+					public void run() {
+						conn = null;
+						io.disconnected(RexDevice.this);
+					}
+				});
+			}
+		});
+		return result;
+	}
+
+	public void disconnect() {
+		NioTCP c = conn;
+		if (c != null)
+			c.close();
+	}
+
+	public void shutdown() {
+		if (discoveryTimer != null)
+			discoveryTimer.cancel();
+		if (udp != null)
+			udp.close();
+		disconnect();
+	}
+
+	@Override
+	public void connectionRequested(RexProtocol comm, InetSocketAddress addr, int unknown) {
+		synchronized (this) {
+			if (conn != null || connecting)
+				return;
+			connect(addr);
+		}
+	}
+
+	@Override
+	public void featuresRequested(RexProtocol comm) {
+		try {
+			MsgBasic.FeaturesResponse.send(comm, features.relays, features.rs232, features.inputs, features.leds, features.readers, features.hasKeyboard, features.hasDisplay, features.hasBuzzer);
+		} catch (IOException e) {
+			System.err.println(Util.ERR_PREFIX + "FeaturesResponse from " + id + " failed: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void idRequested(RexProtocol comm) {
+		try {
+			MsgBasic.IdResponse.send(comm, id);
+		} catch (IOException e) {
+			System.err.println(Util.ERR_PREFIX + "IdResponse from " + id + " failed: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void resetRequested(RexProtocol comm) {
+		io.resetRequested(this);
+		disconnect();
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	// Eventos do dispositivo para o servidor
+
+	public void inputChanged(int port, boolean isOn) throws IOException {
+		MsgIO.InputChange.send(getConnection(), port, isOn);
+	}
+
+	public void keyTyped(int keyCode) throws IOException {
+		MsgIO.KeyTyped.send(getConnection(), keyCode);
+	}
+
+	public void imageCaptured(String reader, int width, int height, int resX, int resY, byte[] image) throws IOException {
+		MsgIO.ImageCapture.send(getConnection(), reader, width, height, resX, resY, image);
+	}
+
+	/** Dados recebidos na porta serial */
+	public void rs232Received(int port, byte[] data) throws IOException {
+		MsgRS232.Write.send(getConnection(), port, data);
+	}
+
+	private RexProtocol getConnection() throws IOException {
+		NioTCP c = conn;
+		if (c == null)
+			throw new IOException("Device " + id + " is not connected");
+		return c;
+	}
+}
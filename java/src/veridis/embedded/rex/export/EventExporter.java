@@ -0,0 +1,327 @@
+package veridis.embedded.rex.export;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import veridis.embedded.rex.MessageView;
+import veridis.embedded.rex.RexEndpoint;
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.Util;
+import veridis.embedded.rex.messages.MsgBasic;
+import veridis.embedded.rex.messages.MsgIO;
+import veridis.embedded.rex.messages.MsgRS232;
+
+/**
+ * Exporta os eventos recebidos por um RexEndpoint (Discovery, entradas, teclas, RS232 e imagens)
+ * para um {@link EventLog}, no formato de {@link ExportFormat}.
+ *
+ * Os eventos são lidos direto do buffer de recepção (MessageView) e codificados em um bloco.
+ * Quando enche ou a cada linger ms, o bloco é trocado por outro vazio e gravado na thread
+ * JA200-Export-Flush: as threads de recepção apenas codificam na memória, nunca esperam o disco.
+ */
+public class EventExporter {
+	/** Blocos esperando a gravação. Acima disso (disco lento demais) os blocos são descartados */
+	public static final int MAX_PENDING_BLOCKS = 16;
+
+	private final RexEndpoint rex;
+	private final EventLog log;
+	private final boolean includeImages;
+	private final int blockSize;
+	private final ScheduledExecutorService timer;
+	/** Usado apenas na thread de gravação */
+	private final CRC32 crc = new CRC32();
+	/** Blocos já gravados, para reuso */
+	private final Queue<ByteBuffer> spare = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pending = new AtomicInteger();
+	/** Bloco sendo preenchido, sob o lock do EventExporter */
+	private ByteBuffer block;
+	private int count;
+	/** Alterado apenas na thread de gravação */
+	private volatile long exported;
+
+	private final MessageView.Handler<?>[] handlers;
+
+	/**
+	 * @param blockSize Tamanho do bloco, em bytes. Eventos maiores vão sozinhos em um bloco maior
+	 * @param linger Tempo máximo, em ms, que um evento espera no bloco antes de ser gravado
+	 * @param includeImages Inclui os pixels em IMAGE_CAPTURED
+	 */
+	public EventExporter(RexEndpoint rex, EventLog log, int blockSize, long linger, boolean includeImages) {
+		this.rex = rex;
+		this.log = log;
+		this.blockSize = blockSize;
+		this.includeImages = includeImages;
+		this.block = newBlock(blockSize);
+
+		handlers = new MessageView.Handler<?>[] {
+			new MsgBasic.DiscoveryView.Handler(new MessageView.Listener<MsgBasic.DiscoveryView>() {
+				@Override
+				public void received(RexProtocol comm, MsgBasic.DiscoveryView view) throws IOException {
+					discovery(comm, view);
+				}
+			}),
+			new MsgIO.InputChangeView.Handler(new MessageView.Listener<MsgIO.InputChangeView>() {
+				@Override
+				public void received(RexProtocol comm, MsgIO.InputChangeView view) throws IOException {
+					inputChanged(comm, view);
+				}
+			}),
+			new MsgIO.KeyTypedView.Handler(new MessageView.Listener<MsgIO.KeyTypedView>() {
+				@Override
+				public void received(RexProtocol comm, MsgIO.KeyTypedView view) throws IOException {
+					keyTyped(comm, view);
+				}
+			}),
+			new MsgRS232.WriteView.Handler(new MessageView.Listener<MsgRS232.WriteView>() {
+				@Override
+				public void received(RexProtocol comm, MsgRS232.WriteView view) throws IOException {
+					rs232Data(comm, view);
+				}
+			}),
+			new MsgIO.ImageCaptureView.Handler(new MessageView.Listener<MsgIO.ImageCaptureView>() {
+				@Override
+				public void received(RexProtocol comm, MsgIO.ImageCaptureView view) throws IOException {
+					imageCaptured(comm, view);
+				}
+			}),
+		};
+		for (MessageView.Handler<?> handler : handlers)
+			rex.addMessageHandler(handler);
+
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "JA200-Export-Flush");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (EventExporter.this) {
+					ship();
+				}
+			}
+		}, linger, linger, TimeUnit.MILLISECONDS);
+	}
+
+	public EventLog getLog() {
+		return log;
+	}
+
+	/** Eventos gravados no log */
+	public long getExportedCount() {
+		return exported;
+	}
+
+	/** Para de exportar e grava os blocos pendentes */
+	public void close() throws IOException {
+		for (MessageView.Handler<?> handler : handlers)
+			rex.removeMessageHandler(handler);
+		try {
+			flush();
+		} finally {
+			timer.shutdown();
+		}
+	}
+
+	private static ByteBuffer newBlock(int size) {
+		ByteBuffer block = ByteBuffer.allocate(Math.max(size, ExportFormat.BLOCK_HEADER)).order(ByteOrder.LITTLE_ENDIAN);
+		block.position(ExportFormat.BLOCK_HEADER);
+		return block;
+	}
+
+	/** Grava o bloco atual, se tiver algum evento, e espera a gravação dos anteriores */
+	public void flush() throws IOException {
+		Future<?> written;
+		synchronized (this) {
+			written = ship();
+		}
+		try {
+			if (written == null) {
+				//A thread de gravação é única: o que foi passado antes já estará gravado
+				written = timer.submit(new Runnable() {
+					@Override
+					public void run() {}
+				});
+			}
+			written.get();
+		} catch (RejectedExecutionException e) {
+			//Fechado
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/** Passa o bloco atual para a thread de gravação e começa outro. Sob o lock */
+	private Future<Void> ship() {
+		if (count == 0)
+			return null;
+		final ByteBuffer full = block;
+		final int fullCount = count;
+		count = 0;
+		block = spare.poll();
+		if (block == null)
+			block = newBlock(blockSize);
+		block.clear().position(ExportFormat.BLOCK_HEADER);
+
+		if (pending.incrementAndGet() > MAX_PENDING_BLOCKS) {
+			pending.decrementAndGet();
+			recycle(full);
+			System.err.println(Util.ERR_PREFIX + "Event export: log too slow, " + fullCount + " events dropped");
+			return null;
+		}
+		try {
+			return timer.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					try {
+						write(full, fullCount);
+					} catch (IOException e) {
+						//Um erro do log (ex: disco cheio) perde o bloco
+						System.err.println(Util.ERR_PREFIX + "Event export: " + e.getMessage());
+						throw e;
+					}
+					return null;
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			//Fechado
+			pending.decrementAndGet();
+			return null;
+		}
+	}
+
+	/** Na thread de gravação */
+	private void write(ByteBuffer full, int fullCount) throws IOException {
+		try {
+			int end = full.position();
+			crc.reset();
+			crc.update(full.array(), ExportFormat.BLOCK_HEADER, end - ExportFormat.BLOCK_HEADER);
+			full.putInt(0, end);
+			full.putInt(12, fullCount);
+			full.putInt(16, (int)crc.getValue());
+			full.flip();
+			log.append(full, fullCount);
+			exported += fullCount;
+		} finally {
+			pending.decrementAndGet();
+			recycle(full);
+		}
+	}
+
+	/** Blocos maiores (um evento grande) não são reusados */
+	private void recycle(ByteBuffer full) {
+		if (full.capacity() <= Math.max(blockSize, ExportFormat.BLOCK_HEADER))
+			spare.offer(full);
+	}
+
+	/** Começa um evento com bodyLength bytes de campos. Deve ser seguido por end() */
+	private ByteBuffer begin(int type, RexProtocol comm, int bodyLength) throws IOException {
+		int length = ExportFormat.EVENT_HEADER + bodyLength;
+		if (block.remaining() < length) {
+			ship();
+			if (block.remaining() < length) {
+				recycle(block);
+				block = newBlock(ExportFormat.BLOCK_HEADER + length);
+			}
+		}
+		int ip = 0;
+		int port = 0;
+		SocketAddress address = null;
+		if (comm instanceof RexProtocol.Connection)
+			address = ((RexProtocol.Connection)comm).getRemoteAddress();
+		else if (comm instanceof RexProtocol.UDP)
+			address = ((RexProtocol.UDP)comm).getSourceAddress();
+		if (address instanceof InetSocketAddress && ((InetSocketAddress)address).getAddress() != null) {
+			byte[] addr = ((InetSocketAddress)address).getAddress().getAddress();
+			if (addr.length == 4)
+				ip = Util.ipFromBytes(addr);
+			port = ((InetSocketAddress)address).getPort();
+		}
+		block.putInt(length);
+		block.put((byte)type);
+		block.putLong(System.currentTimeMillis());
+		block.putInt(ip);
+		block.putInt(port);
+		return block;
+	}
+
+	private void end() {
+		count++;
+		if (block.position() >= blockSize)
+			ship();
+	}
+
+	private synchronized void discovery(RexProtocol comm, MsgBasic.DiscoveryView view) throws IOException {
+		ByteBuffer out = begin(ExportFormat.DISCOVERY, comm, 12 + 8 + 12);
+		out.put(view.id());
+		out.putLong(view.mac());
+		out.putInt(view.ip());
+		out.putInt(view.mask());
+		out.putInt(view.gateway());
+		end();
+	}
+
+	private synchronized void inputChanged(RexProtocol comm, MsgIO.InputChangeView view) throws IOException {
+		ByteBuffer out = begin(ExportFormat.INPUT_CHANGED, comm, 5);
+		out.putInt(view.port());
+		out.put((byte)(view.isOn() ? 1 : 0));
+		end();
+	}
+
+	private synchronized void keyTyped(RexProtocol comm, MsgIO.KeyTypedView view) throws IOException {
+		ByteBuffer out = begin(ExportFormat.KEY_TYPED, comm, 4);
+		out.putInt(view.keyCode());
+		end();
+	}
+
+	private synchronized void rs232Data(RexProtocol comm, MsgRS232.WriteView view) throws IOException {
+		ByteBuffer data = view.data();
+		ByteBuffer out = begin(ExportFormat.RS232_DATA, comm, 4 + data.remaining());
+		out.putInt(view.port());
+		out.put(data);
+		end();
+	}
+
+	private synchronized void imageCaptured(RexProtocol comm, MsgIO.ImageCaptureView view) throws IOException {
+		ByteBuffer name = view.sensorName();
+		int nameLength = Math.min(255, name.remaining());
+		name.limit(name.position() + nameLength);
+		ByteBuffer pixels = includeImages ? view.pixels() : null;
+		int pixelsLength = pixels == null ? 0 : pixels.remaining();
+		ByteBuffer out = begin(ExportFormat.IMAGE_CAPTURED, comm, 16 + 1 + nameLength + 4 + pixelsLength);
+		out.putInt(view.width());
+		out.putInt(view.height());
+		out.putInt(view.resX());
+		out.putInt(view.resY());
+		out.put((byte)nameLength);
+		out.put(name);
+		out.putInt(pixelsLength);
+		if (pixels != null)
+			out.put(pixels);
+		end();
+	}
+}
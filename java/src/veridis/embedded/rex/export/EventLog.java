@@ -0,0 +1,288 @@
+package veridis.embedded.rex.export;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import veridis.embedded.rex.Util;
+
+/**
+ * Eventos exportados, em arquivos de até segmentBytes bytes. Os segmentos mais antigos são apagados
+ * quando há mais de maxSegments.
+ *
+ * Cada bloco é escrito de uma vez; os leitores ({@link Cursor}) só enxergam blocos completos.
+ * Ao abrir, um bloco incompleto no final do último segmento (queda durante a escrita) é descartado.
+ */
+public class EventLog {
+	private final File directory;
+	private final long segmentBytes;
+	private final int maxSegments;
+	/** Offset do primeiro evento => arquivo */
+	private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+	private FileChannel active;
+	private long activeBase;
+	/** Fim do último bloco completo do segmento ativo */
+	private long activeEnd;
+	private long nextOffset;
+	private boolean closed;
+
+	public EventLog(File directory, long segmentBytes, int maxSegments) throws IOException {
+		if (maxSegments < 1 || segmentBytes <= ExportFormat.FILE_HEADER)
+			throw new IllegalArgumentException("Invalid log limits");
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.maxSegments = maxSegments;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(".rxev") && name.length() == 25) {
+					try {
+						segments.put(Long.parseLong(name.substring(0, 20)), file);
+					} catch (NumberFormatException e) {}
+				}
+			}
+		}
+		if (segments.isEmpty()) {
+			roll(0);
+		} else {
+			Map.Entry<Long, File> last = segments.lastEntry();
+			activeBase = last.getKey();
+			active = FileChannel.open(last.getValue().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			recover();
+		}
+	}
+
+	/** Percorre o último segmento, valida os blocos e descarta o que vier depois do último bloco válido */
+	private void recover() throws IOException {
+		if (active.size() < ExportFormat.FILE_HEADER) {
+			//Queda logo depois de roll(), antes do cabeçalho
+			System.err.println(Util.ERR_PREFIX + "Rewriting the header of " + segments.lastEntry().getValue());
+			active.truncate(0);
+			writeHeader();
+		}
+		ByteBuffer header = ByteBuffer.allocate(ExportFormat.BLOCK_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		long pos = ExportFormat.FILE_HEADER;
+		long offset = activeBase;
+		long size = active.size();
+		CRC32 crc = new CRC32();
+		while (pos + ExportFormat.BLOCK_HEADER <= size) {
+			header.clear();
+			readFully(active, header, pos);
+			int length = header.getInt(0);
+			if (length < ExportFormat.BLOCK_HEADER || pos + length > size || header.getLong(4) != offset)
+				break;
+			ByteBuffer events = ByteBuffer.allocate(length - ExportFormat.BLOCK_HEADER);
+			readFully(active, events, pos + ExportFormat.BLOCK_HEADER);
+			crc.reset();
+			crc.update(events.array());
+			if ((int)crc.getValue() != header.getInt(16))
+				break;
+			offset += header.getInt(12);
+			pos += length;
+		}
+		if (pos < size)
+			System.err.println(Util.ERR_PREFIX + "Discarding " + (size - pos) + " bytes at the end of " + segments.lastEntry().getValue());
+		active.truncate(pos);
+		activeEnd = pos;
+		nextOffset = offset;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer dst, long pos) throws IOException {
+		while (dst.hasRemaining()) {
+			int n = channel.read(dst, pos);
+			if (n < 0)
+				throw new EOFException();
+			pos += n;
+		}
+	}
+
+	private void roll(long base) throws IOException {
+		if (active != null)
+			active.close();
+		File file = new File(directory, ExportFormat.segmentName(base));
+		active = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		writeHeader();
+		activeBase = base;
+		activeEnd = ExportFormat.FILE_HEADER;
+		segments.put(base, file);
+
+		while (segments.size() > maxSegments) {
+			File old = segments.pollFirstEntry().getValue();
+			if (!old.delete())
+				System.err.println(Util.ERR_PREFIX + "Cannot delete " + old);
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(ExportFormat.FILE_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(ExportFormat.MAGIC).putInt(ExportFormat.VERSION).flip();
+		long pos = 0;
+		while (header.hasRemaining())
+			pos += active.write(header, pos);
+	}
+
+	/**
+	 * Acrescenta um bloco já codificado (de position a limit), com count eventos.
+	 * @return Offset do primeiro evento do bloco
+	 */
+	synchronized long append(ByteBuffer block, int count) throws IOException {
+		if (closed)
+			throw new EOFException("Event log closed");
+		int length = block.remaining();
+		if (activeEnd > ExportFormat.FILE_HEADER && activeEnd + length > segmentBytes)
+			roll(nextOffset);
+		long first = nextOffset;
+		block.putLong(block.position() + 4, first);
+		long pos = activeEnd;
+		while (block.hasRemaining())
+			pos += active.write(block, pos);
+		activeEnd = pos;
+		nextOffset += count;
+		notifyAll();
+		return first;
+	}
+
+	/** Offset do próximo evento a ser gravado */
+	public synchronized long getNextOffset() {
+		return nextOffset;
+	}
+
+	/** Offset do evento mais antigo ainda disponível */
+	public synchronized long getFirstOffset() {
+		return segments.firstKey();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/** Leitor a partir do bloco que contém offset. Offsets já apagados começam no evento mais antigo */
+	public Cursor openCursor(long offset) throws IOException {
+		return new Cursor(offset);
+	}
+
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			active.close();
+		} catch (IOException e) {}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Lê os blocos em sequência, esperando pelos novos quando chega ao fim */
+	public class Cursor implements AutoCloseable {
+		private long base;
+		private FileChannel channel;
+		private long position;
+
+		Cursor(long offset) throws IOException {
+			File file;
+			synchronized (EventLog.this) {
+				Map.Entry<Long, File> entry = segments.floorEntry(offset);
+				if (entry == null)
+					entry = segments.firstEntry();
+				base = entry.getKey();
+				file = entry.getValue();
+			}
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			position = ExportFormat.FILE_HEADER;
+			seek(offset);
+		}
+
+		/** Pula os blocos que terminam antes de offset */
+		private void seek(long offset) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(ExportFormat.BLOCK_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			while (position < end()) {
+				header.clear();
+				readFully(channel, header, position);
+				if (header.getLong(4) + header.getInt(12) > offset)
+					return;
+				position += header.getInt(0);
+			}
+		}
+
+		/** Fim dos dados completos neste segmento */
+		private long end() throws IOException {
+			synchronized (EventLog.this) {
+				if (base == activeBase)
+					return activeEnd;
+			}
+			return channel.size();
+		}
+
+		/**
+		 * Transfere blocos completos para target, sem cópias. Espera até timeout ms se não houver nada novo.
+		 * @return Bytes transferidos, 0 se não havia nada
+		 */
+		public long transferTo(WritableByteChannel target, long timeout) throws IOException {
+			long end = awaitData(timeout);
+			if (end <= position)
+				return 0;
+			long n = channel.transferTo(position, end - position, target);
+			position += n;
+			return n;
+		}
+
+		private long awaitData(long timeout) throws IOException {
+			long deadline = System.currentTimeMillis() + timeout;
+			synchronized (EventLog.this) {
+				while (true) {
+					if (base != activeBase) {
+						long end = channel.size();
+						if (position < end)
+							return end;
+						//Segmento terminado: passa para o próximo (ou para o mais antigo, se foi apagado)
+						Map.Entry<Long, File> next = segments.higherEntry(base);
+						if (next == null)
+							next = segments.firstEntry();
+						channel.close();
+						channel = FileChannel.open(next.getValue().toPath(), StandardOpenOption.READ);
+						base = next.getKey();
+						position = ExportFormat.FILE_HEADER;
+						continue;
+					}
+					if (position < activeEnd)
+						return activeEnd;
+					long wait = deadline - System.currentTimeMillis();
+					if (closed || wait <= 0)
+						return position;
+					try {
+						EventLog.this.wait(wait);
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package veridis.embedded.rex.export;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Consumidor do {@link ExportServer}, para aplicações Java.
+ *
+ * next() devolve os eventos em ordem, já pulando os anteriores ao offset pedido.
+ * Para retomar depois de uma desconexão, conecte de novo com getNextOffset().
+ */
+public class ExportClient implements AutoCloseable {
+	/** Evento recebido. Reaproveitado a cada next(): copie o que precisar guardar */
+	public static class Event {
+		long offset;
+		int type;
+		long time;
+		int ip;
+		int port;
+		ByteBuffer body;
+
+		public long getOffset() {
+			return offset;
+		}
+		/** Ver {@link ExportFormat} */
+		public int getType() {
+			return type;
+		}
+		public long getTime() {
+			return time;
+		}
+		public int getIp() {
+			return ip;
+		}
+		public int getPort() {
+			return port;
+		}
+		/** Campos do tipo, entre position e limit, little-endian */
+		public ByteBuffer getBody() {
+			return body;
+		}
+	}
+
+	private final SocketChannel channel;
+	private final CRC32 crc = new CRC32();
+	private final Event event = new Event();
+	private ByteBuffer block = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+	private long nextOffset;
+	/** Eventos restantes no bloco atual */
+	private int remaining;
+	private long lost;
+
+	/** @param offset Primeiro evento desejado; -1 para só os novos */
+	public ExportClient(SocketAddress address, long offset) throws IOException {
+		channel = address instanceof InetSocketAddress ? SocketChannel.open() : SocketChannel.open(StandardProtocolFamily.UNIX);
+		channel.connect(address);
+		ByteBuffer request = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		request.putLong(0, offset);
+		while (request.hasRemaining())
+			channel.write(request);
+
+		ByteBuffer header = ByteBuffer.allocate(ExportFormat.FILE_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(header);
+		for (int i=0; i<ExportFormat.MAGIC.length; i++) {
+			if (header.get(i) != ExportFormat.MAGIC[i])
+				throw new IOException("Not an event export stream");
+		}
+		if (header.getInt(4) != ExportFormat.VERSION)
+			throw new IOException("Unsupported export version: " + header.getInt(4));
+		this.nextOffset = offset;
+	}
+
+	/** Offset do próximo evento esperado */
+	public long getNextOffset() {
+		return nextOffset;
+	}
+
+	/** Eventos pedidos que já tinham sido apagados do log quando o consumidor chegou neles */
+	public long getLostCount() {
+		return lost;
+	}
+
+	/** Bloqueia até o próximo evento */
+	public Event next() throws IOException {
+		while (remaining == 0)
+			readBlock();
+		remaining--;
+		int start = block.position();
+		int length = block.getInt(start);
+		if (length < ExportFormat.EVENT_HEADER || length > block.remaining())
+			throw new IOException("Invalid event size: " + length);
+		event.offset = nextOffset++;
+		event.type = block.get(start + 4) & 0xFF;
+		event.time = block.getLong(start + 5);
+		event.ip = block.getInt(start + 13);
+		event.port = block.getInt(start + 17);
+		block.position(start + length);
+		event.body = block.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		event.body.limit(start + length).position(start + ExportFormat.EVENT_HEADER);
+		return event;
+	}
+
+	/** Lê um bloco e pula os eventos anteriores ao offset esperado */
+	private void readBlock() throws IOException {
+		block.clear().limit(ExportFormat.BLOCK_HEADER);
+		readFully(block);
+		int length = block.getInt(0);
+		long first = block.getLong(4);
+		int count = block.getInt(12);
+		int checksum = block.getInt(16);
+		if (length < ExportFormat.BLOCK_HEADER || count < 0)
+			throw new IOException("Invalid block");
+		if (block.capacity() < length) {
+			ByteBuffer bigger = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+			block.flip();
+			bigger.put(block);
+			block = bigger;
+		}
+		block.limit(length);
+		readFully(block);
+		crc.reset();
+		crc.update(block.array(), ExportFormat.BLOCK_HEADER, length - ExportFormat.BLOCK_HEADER);
+		if ((int)crc.getValue() != checksum)
+			throw new IOException("Corrupted block at offset " + first);
+		block.position(ExportFormat.BLOCK_HEADER);
+
+		if (nextOffset < 0)
+			nextOffset = first;
+		if (first > nextOffset) {
+			lost += first - nextOffset;
+			nextOffset = first;
+		}
+		//Pula os eventos anteriores ao pedido
+		int skip = (int)Math.min(count, nextOffset - first);
+		for (int i=0; i<skip; i++)
+			block.position(block.position() + block.getInt(block.position()));
+		remaining = count - skip;
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new EOFException();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
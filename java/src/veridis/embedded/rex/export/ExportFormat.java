@@ -0,0 +1,50 @@
+package veridis.embedded.rex.export;
+
+import veridis.embedded.rex.Util;
+
+/**
+ * Formato binário dos eventos exportados. Todos os inteiros são little-endian, como no protocolo do Rex.
+ *
+ * Arquivo ou stream: cabeçalho "RXEV" + versão (int), seguido de blocos.
+ *
+ * Bloco:
+ *   tamanho (int, incluindo o cabeçalho) + offset do primeiro evento (long) + número de eventos (int)
+ *   + CRC32 dos eventos (int) + eventos
+ *
+ * Evento:
+ *   tamanho (int, incluindo o cabeçalho) + tipo (byte) + hora (long, ms desde 1970)
+ *   + IP do Rex (int, primeiro elemento no byte mais significativo) + porta do Rex (int) + campos do tipo
+ *
+ * Os offsets são números de sequência dos eventos, e nunca se repetem.
+ * Tipos desconhecidos devem ser ignorados pelo consumidor (o tamanho permite pular o evento).
+ */
+public final class ExportFormat {
+	public static final byte[] MAGIC = Util.StringToBytes("RXEV");
+	public static final int VERSION = 1;
+	/** Magic + versão */
+	public static final int FILE_HEADER = 8;
+	public static final int BLOCK_HEADER = 20;
+	public static final int EVENT_HEADER = 21;
+
+	/** ID (12 bytes) + MAC (long) + IP + máscara + gateway (int) */
+	public static final int DISCOVERY = 1;
+	/** Entrada (int) + valor (byte, 0 ou 1) */
+	public static final int INPUT_CHANGED = 2;
+	/** Código da tecla (int) */
+	public static final int KEY_TYPED = 3;
+	/** Porta (int) + dados (até o fim do evento) */
+	public static final int RS232_DATA = 4;
+	/**
+	 * Largura + altura + resolução X + resolução Y (int) + tamanho do nome do leitor (byte) + nome (Latin-1)
+	 * + tamanho da imagem (int) + pixels, se o exporter incluir imagens
+	 */
+	public static final int IMAGE_CAPTURED = 5;
+
+	private ExportFormat() {
+	}
+
+	/** Nome do arquivo de um segmento, pelo offset do primeiro evento. A ordem alfabética é a dos offsets */
+	public static String segmentName(long firstOffset) {
+		return String.format("%020d.rxev", firstOffset);
+	}
+}
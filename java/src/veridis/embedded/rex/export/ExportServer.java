@@ -0,0 +1,107 @@
+package veridis.embedded.rex.export;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import veridis.embedded.rex.Util;
+import veridis.embedded.rex.server.AcceptBackoff;
+
+/**
+ * Serve o {@link EventLog} para consumidores locais, por TCP (InetSocketAddress)
+ * ou por Unix domain socket (UnixDomainSocketAddress).
+ *
+ * O consumidor envia o offset do primeiro evento que quer (long little-endian; -1 para só os novos)
+ * e recebe o cabeçalho "RXEV" + versão, seguido dos blocos a partir do que contém esse offset,
+ * e depois os novos blocos, à medida que são gravados.
+ * Os eventos do primeiro bloco com offset menor que o pedido devem ser ignorados.
+ */
+public class ExportServer {
+	private final EventLog log;
+	private final ServerSocketChannel server;
+	private int consumers;
+
+	public ExportServer(EventLog log, SocketAddress address) throws IOException {
+		this.log = log;
+		this.server = address instanceof InetSocketAddress ? ServerSocketChannel.open() : ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(address);
+
+		new Thread("JA200-Export-Accept-" + address) {
+			public void run() {
+				acceptLoop();
+			};
+		}.start();
+	}
+
+	public SocketAddress getLocalAddress() throws IOException {
+		return server.getLocalAddress();
+	}
+
+	public void close() {
+		try {
+			server.close();
+		} catch (IOException e) {}
+	}
+
+	private void acceptLoop() {
+		AcceptBackoff backoff = new AcceptBackoff();
+		while (server.isOpen()) {
+			final SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException e) {
+				if (server.isOpen()) {
+					System.err.println(Util.ERR_PREFIX + "Export accept: " + e.getMessage());
+					if (!backoff.pause())
+						break;
+				}
+				continue;
+			}
+			backoff.reset();
+			//Unix domain sockets não têm endereço remoto
+			new Thread("JA200-Export-Consumer-" + (++consumers)) {
+				public void run() {
+					serve(channel);
+				};
+			}.start();
+		}
+	}
+
+	private void serve(SocketChannel channel) {
+		try {
+			ByteBuffer request = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			while (request.hasRemaining()) {
+				if (channel.read(request) < 0)
+					throw new EOFException();
+			}
+			long offset = request.getLong(0);
+			if (offset < 0)
+				offset = log.getNextOffset();
+
+			ByteBuffer header = ByteBuffer.allocate(ExportFormat.FILE_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			header.put(ExportFormat.MAGIC).putInt(ExportFormat.VERSION).flip();
+			while (header.hasRemaining())
+				channel.write(header);
+
+			EventLog.Cursor cursor = log.openCursor(offset);
+			try {
+				while (channel.isOpen() && !log.isClosed())
+					cursor.transferTo(channel, 1000);
+			} finally {
+				cursor.close();
+			}
+		} catch (IOException e) {
+			//Consumidor desconectou
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+}
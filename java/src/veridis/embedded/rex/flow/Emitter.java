@@ -0,0 +1,146 @@
+package veridis.embedded.rex.flow;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lado de baixo de uma Subscription: fila de itens entregues conforme a demanda do Subscriber.
+ *
+ * Não há threads: a fila é esvaziada por quem chamar {@link #drain()} (quem produz ou quem pede mais),
+ * uma thread por vez, então onNext/onComplete/onError nunca são chamados em paralelo.
+ */
+abstract class Emitter<R> implements Flow.Subscription {
+	protected final Flow.Subscriber<? super R> downstream;
+	/** Itens guardados; acima disso o mais antigo é descartado. 0 não tem limite */
+	private final int capacity;
+	private final ArrayDeque<R> queue = new ArrayDeque<R>();
+	private final AtomicLong demand = new AtomicLong();
+	private final AtomicInteger wip = new AtomicInteger();
+	private volatile boolean cancelled;
+	/** Protegidos por queue */
+	private boolean done;
+	private Throwable error;
+	private long dropped;
+
+	Emitter(Flow.Subscriber<? super R> downstream, int capacity) {
+		this.downstream = downstream;
+		this.capacity = capacity;
+	}
+
+	/** Enfileira sem entregar. Chamar drain() depois */
+	final void enqueue(R item) {
+		synchronized (queue) {
+			if (done || cancelled)
+				return;
+			if (capacity > 0 && queue.size() >= capacity) {
+				queue.poll();
+				dropped++;
+			}
+			queue.add(item);
+		}
+	}
+
+	final void emit(R item) {
+		enqueue(item);
+		drain();
+	}
+
+	/** Termina depois de entregar o que está na fila. error null: onComplete() */
+	final void complete(Throwable error) {
+		synchronized (queue) {
+			if (done)
+				return;
+			done = true;
+			this.error = error;
+		}
+		drain();
+	}
+
+	final boolean isCancelled() {
+		return cancelled;
+	}
+
+	final long getDropped() {
+		synchronized (queue) {
+			return dropped;
+		}
+	}
+
+	@Override
+	public final void request(long n) {
+		if (cancelled)
+			return;
+		if (n <= 0) {
+			cancel();
+			downstream.onError(new IllegalArgumentException("Non-positive request: " + n));
+			return;
+		}
+		long current, next;
+		do {
+			current = demand.get();
+			if (current == Long.MAX_VALUE)
+				break;
+			next = current + n < 0 ? Long.MAX_VALUE : current + n;
+		} while (!demand.compareAndSet(current, next));
+		requested(n);
+		drain();
+	}
+
+	@Override
+	public final void cancel() {
+		if (cancelled)
+			return;
+		cancelled = true;
+		synchronized (queue) {
+			queue.clear();
+		}
+		cancelled();
+	}
+
+	/** Demanda nova do Subscriber */
+	protected void requested(long n) {}
+	/** Um item acabou de ser entregue */
+	protected void delivered(R item) {}
+	/** Cancelado pelo Subscriber, ou porque ele lançou uma exceção */
+	protected void cancelled() {}
+
+	final void drain() {
+		if (wip.getAndIncrement() != 0)
+			return;
+		do {
+			while (!cancelled && demand.get() > 0) {
+				R item;
+				synchronized (queue) {
+					item = queue.poll();
+				}
+				if (item == null)
+					break;
+				if (demand.get() != Long.MAX_VALUE)
+					demand.decrementAndGet();
+				try {
+					downstream.onNext(item);
+				} catch (Throwable t) {
+					cancel();
+					downstream.onError(t);
+					return;
+				}
+				delivered(item);
+			}
+			boolean finished;
+			Throwable error;
+			synchronized (queue) {
+				finished = done && queue.isEmpty();
+				error = this.error;
+			}
+			if (finished && !cancelled) {
+				cancelled = true;
+				if (error != null)
+					downstream.onError(error);
+				else
+					downstream.onComplete();
+			}
+		} while (wip.decrementAndGet() != 0);
+	}
+}
@@ -0,0 +1,93 @@
+package veridis.embedded.rex.flow;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+
+/**
+ * Publisher com vários Subscribers, alimentado pela thread de recepção via {@link #offer}.
+ *
+ * offer() nunca bloqueia: cada Subscriber tem uma fila de bufferSize itens, entregues conforme
+ * a demanda (request). Se o Subscriber não acompanha, os itens mais antigos são descartados
+ * e contados em {@link #getDroppedCount()}.
+ *
+ * onNext() roda na thread que chamou offer() ou request(): deve ser rápido, ou o Subscriber
+ * deve pedir itens da sua própria thread (ver {@link PullSubscriber}).
+ */
+public class EventPublisher<T> implements Flow.Publisher<T> {
+	private final int bufferSize;
+	private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	private volatile boolean closed;
+	/** Descartes de Subscriptions já canceladas */
+	private long droppedBefore;
+
+	public EventPublisher(int bufferSize) {
+		if (bufferSize < 1)
+			throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+		this.bufferSize = bufferSize;
+	}
+
+	private class Subscription extends Emitter<T> {
+		Subscription(Flow.Subscriber<? super T> subscriber) {
+			super(subscriber, bufferSize);
+		}
+
+		@Override
+		protected void cancelled() {
+			if (subscriptions.remove(this)) {
+				synchronized (EventPublisher.this) {
+					droppedBefore += getDropped();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException();
+		Subscription subscription = new Subscription(subscriber);
+		subscriptions.add(subscription);
+		subscriber.onSubscribe(subscription);
+		if (closed) {
+			subscriptions.remove(subscription);
+			subscription.complete(null);
+		}
+	}
+
+	/** Há alguém inscrito? Permite evitar decodificar eventos que ninguém vai ler */
+	public boolean hasSubscribers() {
+		return !subscriptions.isEmpty();
+	}
+
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	/** Entrega o item a todos os Subscribers. Não bloqueia */
+	public void offer(T item) {
+		if (closed)
+			return;
+		for (Subscription subscription : subscriptions)
+			subscription.emit(item);
+	}
+
+	/** Itens descartados porque algum Subscriber estava com a fila cheia */
+	public long getDroppedCount() {
+		long dropped;
+		synchronized (this) {
+			dropped = droppedBefore;
+		}
+		for (Subscription subscription : subscriptions)
+			dropped += subscription.getDropped();
+		return dropped;
+	}
+
+	/** onComplete() para todos, depois de entregar o que já está nas filas */
+	public void close() {
+		closed = true;
+		for (Subscription subscription : subscriptions) {
+			subscriptions.remove(subscription);
+			subscription.complete(null);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package veridis.embedded.rex.flow;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.function.Predicate;
+
+import veridis.embedded.rex.RexEndpoint;
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.RexProtocol.BufferHandler;
+import veridis.embedded.rex.codec.Codec;
+import veridis.embedded.rex.codec.Codecs;
+import veridis.embedded.rex.codec.Messages;
+import veridis.embedded.rex.codec.RexMessage;
+
+/**
+ * Eventos de um RexEndpoint como Flow.Publisher, uma alternativa aos Listeners.
+ *
+ * Há um Publisher por tipo de evento com os eventos de todos os Rex; {@link #forDevice} filtra um Rex.
+ * A thread de recepção só decodifica a mensagem se houver alguém inscrito, e nunca espera pelos Subscribers:
+ * cada um tem uma fila de bufferSize eventos (ver {@link EventPublisher}).
+ *
+ * Ex: Flows.bufferTimeout(streams.keys(), 100, 50, TimeUnit.MILLISECONDS, loop).subscribe(...)
+ */
+public class EventStreams {
+	public static final int DEFAULT_BUFFER = 1024;
+
+	private final RexEndpoint rex;
+	private final Source<Messages.Discovery> discoveries;
+	private final Source<Messages.InputChanged> inputs;
+	private final Source<Messages.KeyTyped> keys;
+	private final Source<Messages.RS232Write> rs232;
+	private final Source<Messages.ImageCaptured> images;
+	private final Source<?>[] sources;
+
+	public EventStreams(RexEndpoint rex) {
+		this(rex, DEFAULT_BUFFER);
+	}
+
+	public EventStreams(RexEndpoint rex, int bufferSize) {
+		this.rex = rex;
+		discoveries = new Source<Messages.Discovery>(Codecs.DISCOVERY, bufferSize);
+		inputs = new Source<Messages.InputChanged>(Codecs.INPUT_CHANGED, bufferSize);
+		keys = new Source<Messages.KeyTyped>(Codecs.KEY_TYPED, bufferSize);
+		rs232 = new Source<Messages.RS232Write>(Codecs.RS232_WRITE, bufferSize);
+		images = new Source<Messages.ImageCaptured>(Codecs.IMAGE_CAPTURED, bufferSize);
+		sources = new Source<?>[] {discoveries, inputs, keys, rs232, images};
+		for (Source<?> source : sources)
+			rex.addMessageHandler(source);
+	}
+
+	/** Decodifica e publica as mensagens de um comando */
+	private static class Source<M extends RexMessage> extends BufferHandler {
+		final Codec<M> codec;
+		final EventPublisher<RexEvent<M>> publisher;
+
+		Source(Codec<M> codec, int bufferSize) {
+			super(codec.getCommand());
+			this.codec = codec;
+			this.publisher = new EventPublisher<RexEvent<M>>(bufferSize);
+		}
+
+		@Override
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			if (!publisher.hasSubscribers())
+				return;
+			M message = codec.newMessage();
+			message.decode(in);
+			publisher.offer(new RexEvent<M>(comm, message));
+		}
+	}
+
+	public EventPublisher<RexEvent<Messages.Discovery>> discoveries() {
+		return discoveries.publisher;
+	}
+	public EventPublisher<RexEvent<Messages.InputChanged>> inputs() {
+		return inputs.publisher;
+	}
+	public EventPublisher<RexEvent<Messages.KeyTyped>> keys() {
+		return keys.publisher;
+	}
+	/** Dados recebidos pelas portas seriais */
+	public EventPublisher<RexEvent<Messages.RS232Write>> rs232() {
+		return rs232.publisher;
+	}
+	public EventPublisher<RexEvent<Messages.ImageCaptured>> images() {
+		return images.publisher;
+	}
+
+	/** Eventos de uma conexão */
+	public static <M extends RexMessage> Flow.Publisher<RexEvent<M>> forDevice(Flow.Publisher<RexEvent<M>> events, final RexProtocol device) {
+		return Flows.filter(events, new Predicate<RexEvent<M>>() {
+			@Override
+			public boolean test(RexEvent<M> event) {
+				return event.getSource() == device;
+			}
+		});
+	}
+
+	/** Eventos do Rex nesse IP, inclusive depois de reconexões */
+	public static <M extends RexMessage> Flow.Publisher<RexEvent<M>> forDevice(Flow.Publisher<RexEvent<M>> events, final InetAddress device) {
+		return Flows.filter(events, new Predicate<RexEvent<M>>() {
+			@Override
+			public boolean test(RexEvent<M> event) {
+				return device.equals(event.getInetAddress());
+			}
+		});
+	}
+
+	/** Eventos descartados, somando todos os tipos, porque algum Subscriber não acompanhou */
+	public long getDroppedCount() {
+		long dropped = 0;
+		for (Source<?> source : sources)
+			dropped += source.publisher.getDroppedCount();
+		return dropped;
+	}
+
+	/** Remove os handlers e completa todos os Publishers */
+	public void close() {
+		for (Source<?> source : sources) {
+			rex.removeMessageHandler(source);
+			source.publisher.close();
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package veridis.embedded.rex.flow;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import veridis.embedded.rex.RexEventLoop;
+
+/**
+ * Operadores sobre Flow.Publisher, sem threads intermediárias: cada item passa pelo operador
+ * na thread de quem o produziu, e a demanda de baixo é repassada para cima.
+ */
+public final class Flows {
+	private Flows() {}
+
+	/** Itens que passam no predicado. Os rejeitados são repostos com request(1) */
+	public static <T> Flow.Publisher<T> filter(final Flow.Publisher<T> source, final Predicate<? super T> predicate) {
+		return new Flow.Publisher<T>() {
+			@Override
+			public void subscribe(final Flow.Subscriber<? super T> subscriber) {
+				source.subscribe(new Flow.Subscriber<T>() {
+					private Flow.Subscription upstream;
+
+					@Override
+					public void onSubscribe(Flow.Subscription subscription) {
+						upstream = subscription;
+						subscriber.onSubscribe(subscription);
+					}
+
+					@Override
+					public void onNext(T item) {
+						if (predicate.test(item))
+							subscriber.onNext(item);
+						else
+							upstream.request(1);
+					}
+
+					@Override
+					public void onError(Throwable error) {
+						subscriber.onError(error);
+					}
+
+					@Override
+					public void onComplete() {
+						subscriber.onComplete();
+					}
+				});
+			}
+		};
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Itens de todas as fontes, na ordem em que chegam. Cada fonte tem até prefetch itens pedidos;
+	 * cada item entregue é reposto na fonte de onde veio. Termina quando todas terminam.
+	 */
+	@SafeVarargs
+	public static <T> Flow.Publisher<T> merge(int prefetch, Flow.Publisher<? extends T>... sources) {
+		List<Flow.Publisher<? extends T>> list = new ArrayList<Flow.Publisher<? extends T>>(sources.length);
+		for (Flow.Publisher<? extends T> source : sources)
+			list.add(source);
+		return merge(prefetch, list);
+	}
+
+	public static <T> Flow.Publisher<T> merge(final int prefetch, final List<? extends Flow.Publisher<? extends T>> sources) {
+		if (prefetch < 1)
+			throw new IllegalArgumentException("Invalid prefetch: " + prefetch);
+		return new Flow.Publisher<T>() {
+			@Override
+			public void subscribe(Flow.Subscriber<? super T> subscriber) {
+				Merge<T> merge = new Merge<T>(subscriber, prefetch, sources.size());
+				subscriber.onSubscribe(merge);
+				for (Flow.Publisher<? extends T> source : sources)
+					source.subscribe(merge.new Inner());
+				if (sources.isEmpty())
+					merge.complete(null);
+			}
+		};
+	}
+
+	private static class Merge<T> extends Emitter<T> {
+		private final int prefetch;
+		/** Fonte de cada item na fila, na mesma ordem */
+		private final ArrayDeque<Inner> origins = new ArrayDeque<Inner>();
+		private final List<Inner> inners = new ArrayList<Inner>();
+		private int active;
+
+		Merge(Flow.Subscriber<? super T> downstream, int prefetch, int sources) {
+			super(downstream, 0);
+			this.prefetch = prefetch;
+			this.active = sources;
+		}
+
+		@Override
+		protected void delivered(T item) {
+			Inner origin;
+			synchronized (origins) {
+				origin = origins.poll();
+			}
+			if (origin != null)
+				origin.upstream.request(1);
+		}
+
+		@Override
+		protected void cancelled() {
+			cancelSources();
+		}
+
+		private void cancelSources() {
+			List<Inner> inners;
+			synchronized (origins) {
+				inners = new ArrayList<Inner>(this.inners);
+				origins.clear();
+			}
+			for (Inner inner : inners)
+				inner.upstream.cancel();
+		}
+
+		class Inner implements Flow.Subscriber<T> {
+			private volatile Flow.Subscription upstream;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				upstream = subscription;
+				synchronized (origins) {
+					inners.add(this);
+				}
+				if (isCancelled())
+					subscription.cancel();
+				else
+					subscription.request(prefetch);
+			}
+
+			@Override
+			public void onNext(T item) {
+				synchronized (origins) {
+					origins.add(this);
+					enqueue(item);
+				}
+				drain();
+			}
+
+			@Override
+			public void onError(Throwable error) {
+				complete(error);
+				cancelSources();
+			}
+
+			@Override
+			public void onComplete() {
+				boolean last;
+				synchronized (origins) {
+					last = --active == 0;
+				}
+				if (last)
+					complete(null);
+			}
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Agrupa os itens em listas de até maxSize, entregues quando enchem ou timeout depois do primeiro item.
+	 * O timer roda no event loop indicado (ex: o shard dos Rex), sem criar threads.
+	 */
+	public static <T> Flow.Publisher<List<T>> bufferTimeout(final Flow.Publisher<T> source, final int maxSize, final long timeout, final TimeUnit unit, final RexEventLoop timer) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("Invalid batch size: " + maxSize);
+		return new Flow.Publisher<List<T>>() {
+			@Override
+			public void subscribe(Flow.Subscriber<? super List<T>> subscriber) {
+				source.subscribe(new Buffer<T>(subscriber, maxSize, unit.toNanos(timeout), timer));
+			}
+		};
+	}
+
+	private static class Buffer<T> extends Emitter<List<T>> implements Flow.Subscriber<T> {
+		private final int maxSize;
+		private final long timeout;
+		private final RexEventLoop loop;
+		private volatile Flow.Subscription upstream;
+		/** Protegidos por this */
+		private List<T> batch;
+		private RexEventLoop.Timer timer;
+
+		private final Runnable flushTask = new Runnable() {
+			@Override
+			public void run() {
+				List<T> full;
+				synchronized (Buffer.this) {
+					full = batch;
+					batch = null;
+					timer = null;
+				}
+				if (full != null)
+					emit(full);
+			}
+		};
+
+		Buffer(Flow.Subscriber<? super List<T>> downstream, int maxSize, long timeout, RexEventLoop loop) {
+			super(downstream, 0);
+			this.maxSize = maxSize;
+			this.timeout = timeout;
+			this.loop = loop;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			upstream = subscription;
+			downstream.onSubscribe(this);
+		}
+
+		@Override
+		protected void requested(long n) {
+			upstream.request(n > Long.MAX_VALUE / maxSize ? Long.MAX_VALUE : n * maxSize);
+		}
+
+		@Override
+		protected void cancelled() {
+			synchronized (this) {
+				if (timer != null)
+					timer.cancel();
+				batch = null;
+			}
+			upstream.cancel();
+		}
+
+		@Override
+		public void onNext(T item) {
+			List<T> full = null;
+			synchronized (this) {
+				if (batch == null) {
+					batch = new ArrayList<T>(Math.min(maxSize, 64));
+					timer = loop.schedule(flushTask, timeout, TimeUnit.NANOSECONDS);
+				}
+				batch.add(item);
+				if (batch.size() >= maxSize) {
+					full = batch;
+					batch = null;
+					timer.cancel();
+					timer = null;
+				}
+			}
+			if (full != null)
+				emit(full);
+		}
+
+		@Override
+		public void onError(Throwable error) {
+			flushTask.run();
+			complete(error);
+		}
+
+		@Override
+		public void onComplete() {
+			flushTask.run();
+			complete(null);
+		}
+	}
+}
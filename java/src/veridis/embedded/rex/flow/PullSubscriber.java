@@ -0,0 +1,102 @@
+package veridis.embedded.rex.flow;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscriber para quem prefere buscar os itens em lotes, no seu ritmo, da sua própria thread.
+ *
+ * Pede até capacity itens; onNext() apenas os guarda, sem bloquear quem publica.
+ * Cada {@link #take} devolve o que chegou e pede a mesma quantidade de novo.
+ */
+public class PullSubscriber<T> implements Flow.Subscriber<T> {
+	private final int capacity;
+	private final ArrayDeque<T> items = new ArrayDeque<T>();
+	private Flow.Subscription subscription;
+	private boolean done;
+	private Throwable error;
+
+	public PullSubscriber(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		this.capacity = capacity;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		synchronized (this) {
+			if (this.subscription != null) {
+				subscription.cancel();
+				return;
+			}
+			this.subscription = subscription;
+		}
+		subscription.request(capacity);
+	}
+
+	@Override
+	public synchronized void onNext(T item) {
+		items.add(item);
+		if (items.size() == 1)
+			notifyAll();
+	}
+
+	@Override
+	public synchronized void onError(Throwable error) {
+		this.error = error;
+		done = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void onComplete() {
+		done = true;
+		notifyAll();
+	}
+
+	/**
+	 * Até max itens. Espera até timeout se não houver nenhum.
+	 * @return Lista vazia no timeout, ou null quando o Publisher terminou e não há mais itens
+	 */
+	public List<T> take(int max, long timeout, TimeUnit unit) throws InterruptedException {
+		List<T> result;
+		Flow.Subscription subscription;
+		synchronized (this) {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			while (items.isEmpty() && !done) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					break;
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			if (items.isEmpty() && done)
+				return null;
+			result = new ArrayList<T>(Math.min(max, items.size()));
+			while (result.size() < max && !items.isEmpty())
+				result.add(items.poll());
+			subscription = this.subscription;
+		}
+		if (!result.isEmpty())
+			subscription.request(result.size());
+		return result;
+	}
+
+	/** Erro do Publisher, se terminou com erro */
+	public synchronized Throwable getError() {
+		return error;
+	}
+
+	public void cancel() {
+		Flow.Subscription subscription;
+		synchronized (this) {
+			subscription = this.subscription;
+			done = true;
+			notifyAll();
+		}
+		if (subscription != null)
+			subscription.cancel();
+	}
+}
@@ -0,0 +1,54 @@
+package veridis.embedded.rex.flow;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.codec.RexMessage;
+
+/**
+ * Evento publicado por {@link EventStreams}: a mensagem decodificada e a conexão de onde veio.
+ * A mensagem é uma instância nova, pode ser guardada.
+ */
+public class RexEvent<M extends RexMessage> {
+	private final RexProtocol source;
+	private final SocketAddress address;
+	/** System.currentTimeMillis() da recepção */
+	private final long timestamp;
+	private final M message;
+
+	public RexEvent(RexProtocol source, M message) {
+		this.source = source;
+		this.address = source instanceof RexProtocol.Connection ? ((RexProtocol.Connection)source).getRemoteAddress() : null;
+		this.timestamp = System.currentTimeMillis();
+		this.message = message;
+	}
+
+	public RexProtocol getSource() {
+		return source;
+	}
+
+	/** Endereço do Rex, ou null para mensagens UDP (Discovery) */
+	public SocketAddress getAddress() {
+		return address;
+	}
+
+	/** IP do Rex, ou null */
+	public InetAddress getInetAddress() {
+		return address instanceof InetSocketAddress ? ((InetSocketAddress)address).getAddress() : null;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public M getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return (address != null ? address + " " : "") + message;
+	}
+}
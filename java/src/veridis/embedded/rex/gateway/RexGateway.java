@@ -0,0 +1,268 @@
+package veridis.embedded.rex.gateway;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.SocketFactory;
+
+import veridis.embedded.rex.RexEndpoint;
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.Util;
+import veridis.embedded.rex.messages.MsgBasic;
+import veridis.embedded.rex.messages.MsgBasic.DiscoveryRecord;
+import veridis.embedded.rex.messages.MsgBasic.DiscoveryRecordListener;
+import veridis.embedded.rex.server.RexServerDiscovery;
+
+/**
+ * Gateway de uma filial: faz o Discovery localmente e leva as conexões dos Rex até o servidor central
+ * por um único {@link Tunnel} persistente (opcionalmente comprimido e com TLS).
+ *
+ * Os bytes de cada Rex são repassados sem decodificar; o protocolo é tratado apenas no servidor central,
+ * por um {@link TunnelServer}. Se o túnel cair, as conexões locais são fechadas e o gateway
+ * reconecta com backoff; os Rex voltam a se conectar no próximo Discovery.
+ *
+ * Para TLS, use o SocketFactory de um SSLContext (SSLContext.getSocketFactory()).
+ */
+public class RexGateway extends RexEndpoint implements DiscoveryRecordListener {
+	/** Maior bloco lido de um Rex de uma vez */
+	private static final int CHUNK = 16 * 1024;
+	private static final long MIN_BACKOFF = 1000;
+	private static final long MAX_BACKOFF = 30000;
+
+	private final SocketAddress central;
+	private final SocketFactory socketFactory;
+	private final boolean compress;
+	private final int localPort;
+	private final RexServerDiscovery discovery;
+	private final AtomicInteger nextStream = new AtomicInteger();
+	private final ConcurrentHashMap<Integer, DeviceLink> links = new ConcurrentHashMap<Integer, DeviceLink>();
+	private volatile Tunnel tunnel;
+	private volatile boolean closed;
+
+	public RexGateway(SocketAddress central, int localPort) throws IOException {
+		this(central, SocketFactory.getDefault(), true, RexProtocol.UDP.PORT_DISCOVERY, localPort);
+	}
+
+	/**
+	 * @param central Endereço do TunnelServer
+	 * @param socketFactory Conexão com o servidor central. SSLSocketFactory para TLS
+	 * @param compress Comprime o túnel
+	 * @param discoveryPort Porta UDP do Discovery, normalmente {@link RexProtocol.UDP#PORT_DISCOVERY}
+	 * @param localPort Porta TCP onde os Rex da filial se conectam
+	 */
+	public RexGateway(SocketAddress central, SocketFactory socketFactory, boolean compress, int discoveryPort, int localPort) throws IOException {
+		this.central = central;
+		this.socketFactory = socketFactory;
+		this.compress = compress;
+		addMessageHandler(new MsgBasic.Discovery(this));
+		this.discovery = new RexServerDiscovery(this, discoveryPort, new int[] {localPort}, 1, RexServerDiscovery.DEFAULT_BACKLOG, new RexServerDiscovery.ConnectionHandler() {
+			@Override
+			public void connectionAccepted(Socket socket) throws IOException {
+				deviceConnected(socket);
+			}
+		});
+		this.localPort = discovery.getAcceptors().get(0).getLocalPort();
+
+		new Thread("JA200-Gateway-Tunnel-" + central) {
+			public void run() {
+				connectLoop();
+			};
+		}.start();
+	}
+
+	public RexServerDiscovery getDiscovery() {
+		return discovery;
+	}
+
+	/** Túnel atual, ou null se desconectado */
+	public Tunnel getTunnel() {
+		return tunnel;
+	}
+
+	public int getLocalPort() {
+		return localPort;
+	}
+
+	public int getDeviceCount() {
+		return links.size();
+	}
+
+	@Override
+	public void discoveryReceived(RexProtocol comm, DiscoveryRecord record) {
+		//Sem túnel não adianta o Rex se conectar
+		if (tunnel != null)
+			RexServerDiscovery.sendConnectionRequests((RexProtocol.UDP)comm, record, localPort);
+	}
+
+	public void close() {
+		closed = true;
+		Tunnel tunnel = this.tunnel;
+		if (tunnel != null)
+			tunnel.close();
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	private void connectLoop() {
+		long backoff = MIN_BACKOFF;
+		while (!closed) {
+			try {
+				Socket socket = socketFactory.createSocket();
+				socket.connect(central);
+				Tunnel tunnel = new Tunnel(socket, true, compress, new Devices());
+				System.out.println("Tunnel connected to " + central + (tunnel.isCompressed() ? " (compressed)" : ""));
+				backoff = MIN_BACKOFF;
+				synchronized (this) {
+					this.tunnel = tunnel;
+					while (!tunnel.isClosed() && !closed)
+						wait();
+					this.tunnel = null;
+				}
+			} catch (IOException e) {
+				System.err.println(Util.ERR_PREFIX + "Tunnel to " + central + ": " + e.getMessage());
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (closed)
+				return;
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				return;
+			}
+			backoff = Math.min(MAX_BACKOFF, backoff * 2);
+		}
+	}
+
+	private void deviceConnected(Socket socket) throws IOException {
+		Tunnel tunnel = this.tunnel;
+		if (tunnel == null)
+			throw new IOException("Tunnel is down");
+		socket.setKeepAlive(true);
+		socket.setTcpNoDelay(true);
+
+		byte[] info = new byte[8];
+		InetSocketAddress remote = (InetSocketAddress)socket.getRemoteSocketAddress();
+		System.arraycopy(remote.getAddress().getAddress(), 0, info, 0, 4);
+		Util.putInt(info, 4, remote.getPort());
+
+		int stream = nextStream.incrementAndGet();
+		DeviceLink link = new DeviceLink(tunnel, stream, socket);
+		links.put(stream, link);
+		tunnel.open(stream, info);
+		link.start();
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Conexões locais do túnel atual */
+	private class Devices implements Tunnel.Listener {
+		@Override
+		public void opened(Tunnel tunnel, int stream, byte[] info) {
+			//Só o gateway abre streams
+			tunnel.close(stream);
+		}
+
+		@Override
+		public void data(Tunnel tunnel, int stream, byte[] data) {
+			DeviceLink link = links.get(stream);
+			if (link != null)
+				link.outbound.add(data);
+		}
+
+		@Override
+		public void closed(Tunnel tunnel, int stream) {
+			DeviceLink link = links.remove(stream);
+			if (link != null)
+				link.close();
+		}
+
+		@Override
+		public void tunnelClosed(Tunnel tunnel, IOException cause) {
+			System.err.println(Util.ERR_PREFIX + "Tunnel to " + central + " closed: " + cause.getMessage());
+			synchronized (RexGateway.this) {
+				RexGateway.this.notifyAll();
+			}
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Um Rex local: uma thread repassa o que ele envia ao túnel, outra escreve o que vem do túnel */
+	private class DeviceLink {
+		final Tunnel tunnel;
+		final int stream;
+		final Socket socket;
+		final LinkedBlockingQueue<byte[]> outbound = new LinkedBlockingQueue<byte[]>();
+
+		DeviceLink(Tunnel tunnel, int stream, Socket socket) {
+			this.tunnel = tunnel;
+			this.stream = stream;
+			this.socket = socket;
+		}
+
+		void start() {
+			new Thread("JA200-Gateway-Receive-" + socket.getRemoteSocketAddress()) {
+				public void run() {
+					readLoop();
+				};
+			}.start();
+			new Thread("JA200-Gateway-Send-" + socket.getRemoteSocketAddress()) {
+				public void run() {
+					writeLoop();
+				};
+			}.start();
+		}
+
+		private void readLoop() {
+			byte[] buf = new byte[CHUNK];
+			try {
+				InputStream in = socket.getInputStream();
+				int n;
+				while ((n = in.read(buf)) >= 0)
+					tunnel.send(stream, buf, 0, n);
+			} catch (IOException e) {
+			} finally {
+				tunnel.close(stream);
+			}
+		}
+
+		private void writeLoop() {
+			try {
+				OutputStream out = socket.getOutputStream();
+				int consumed = 0;
+				while (true) {
+					byte[] data = outbound.take();
+					if (data.length == 0)
+						return;
+					out.write(data);
+					consumed += data.length;
+					if (outbound.isEmpty()) {
+						out.flush();
+						tunnel.grant(stream, consumed);
+						consumed = 0;
+					}
+				}
+			} catch (IOException e) {
+			} catch (InterruptedException e) {
+			} finally {
+				tunnel.close(stream);
+			}
+		}
+
+		void close() {
+			outbound.add(new byte[0]);
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+}
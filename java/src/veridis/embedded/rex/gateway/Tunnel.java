@@ -0,0 +1,313 @@
+package veridis.embedded.rex.gateway;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import veridis.embedded.rex.Util;
+
+/**
+ * Canal persistente entre um gateway e o servidor central, com várias conexões de Rex multiplexadas.
+ *
+ * Handshake: cada lado envia "RXT1" + 1 byte de flags (o cliente propõe, o servidor responde).
+ * Depois, opcionalmente comprimido com Deflate (sync flush a cada lote), mensagens no formato
+ *   tipo (1 byte) + stream (int) + tamanho (int) + conteúdo
+ * com inteiros big-endian.
+ *
+ * Todas as mensagens pendentes são escritas de uma vez, com um único flush.
+ * Cada stream tem controle de fluxo por crédito: o lado que envia DATA pode ter no máximo
+ * WINDOW bytes não consumidos (mais uma mensagem), e quem recebe devolve crédito ao consumir.
+ */
+public class Tunnel {
+	public static final byte[] MAGIC = Util.StringToBytes("RXT1");
+	public static final int FLAG_COMPRESS = 0x01;
+
+	/** Novo stream. Conteúdo: IP (4 bytes) + porta do Rex (int little-endian, como no protocolo do Rex) */
+	public static final int OPEN = 1;
+	/** Bytes da conexão TCP com o Rex, sem nenhum enquadramento */
+	public static final int DATA = 2;
+	public static final int CLOSE = 3;
+	/** Devolve crédito. Conteúdo: número de bytes */
+	public static final int CREDIT = 4;
+
+	/** Crédito inicial de cada stream, em bytes */
+	public static final int WINDOW = 64 * 1024;
+	/** Maior mensagem aceita */
+	public static final int MAX_PAYLOAD = 1024 * 1024;
+
+	public static interface Listener {
+		public abstract void opened(Tunnel tunnel, int stream, byte[] info);
+		/** data pertence ao listener */
+		public abstract void data(Tunnel tunnel, int stream, byte[] data);
+		/** O stream foi fechado, por qualquer um dos lados */
+		public abstract void closed(Tunnel tunnel, int stream);
+		public abstract void tunnelClosed(Tunnel tunnel, IOException cause);
+	}
+
+	/** Crédito disponível para enviar em um stream */
+	private static class Credit {
+		int available = WINDOW;
+		boolean closed;
+	}
+
+	private final Socket socket;
+	private final Listener listener;
+	private final boolean compressed;
+	private final DataInputStream in;
+	private final OutputStream out;
+	private final LinkedBlockingQueue<byte[]> outbound = new LinkedBlockingQueue<byte[]>();
+	private final ConcurrentHashMap<Integer, Credit> credits = new ConcurrentHashMap<Integer, Credit>();
+	private volatile IOException closed;
+	private volatile long bytesSent;
+	private volatile long batches;
+
+	/**
+	 * Faz o handshake e começa a receber.
+	 * @param client true no gateway, que propõe as flags; false no servidor, que as aceita
+	 * @param compress Proposta de compressão. Ignorado no servidor
+	 */
+	public Tunnel(Socket socket, boolean client, boolean compress, Listener listener) throws IOException {
+		this.socket = socket;
+		this.listener = listener;
+		socket.setKeepAlive(true);
+		socket.setTcpNoDelay(true);
+
+		InputStream rawIn = new BufferedInputStream(socket.getInputStream(), 8192);
+		OutputStream rawOut = new BufferedOutputStream(socket.getOutputStream(), 8192);
+		int flags;
+		if (client) {
+			flags = compress ? FLAG_COMPRESS : 0;
+			writeHandshake(rawOut, flags);
+			if (readHandshake(rawIn) != flags)
+				throw new IOException("Tunnel flags rejected");
+		} else {
+			flags = readHandshake(rawIn) & FLAG_COMPRESS;
+			writeHandshake(rawOut, flags);
+		}
+		this.compressed = (flags & FLAG_COMPRESS) != 0;
+		if (compressed) {
+			this.in = new DataInputStream(new InflaterInputStream(rawIn));
+			this.out = new DeflaterOutputStream(rawOut, new Deflater(Deflater.BEST_SPEED), 8192, true);
+		} else {
+			this.in = new DataInputStream(rawIn);
+			this.out = rawOut;
+		}
+
+		new Thread("JA200-Tunnel-Send-" + socket.getRemoteSocketAddress()) {
+			public void run() {
+				writeLoop();
+			};
+		}.start();
+		new Thread("JA200-Tunnel-Receive-" + socket.getRemoteSocketAddress()) {
+			public void run() {
+				readLoop();
+			};
+		}.start();
+	}
+
+	private static void writeHandshake(OutputStream out, int flags) throws IOException {
+		out.write(MAGIC);
+		out.write(flags);
+		out.flush();
+	}
+
+	private static int readHandshake(InputStream in) throws IOException {
+		byte[] magic = new byte[MAGIC.length + 1];
+		new DataInputStream(in).readFully(magic);
+		for (int i=0; i<MAGIC.length; i++) {
+			if (magic[i] != MAGIC[i])
+				throw new IOException("Not a Rex tunnel");
+		}
+		return magic[MAGIC.length] & 0xFF;
+	}
+
+	public SocketAddress getRemoteAddress() {
+		return socket.getRemoteSocketAddress();
+	}
+	public boolean isCompressed() {
+		return compressed;
+	}
+	public boolean isClosed() {
+		return closed != null;
+	}
+	/** Bytes enviados antes da compressão */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+	/** Número de flushes */
+	public long getBatches() {
+		return batches;
+	}
+
+	public void open(int stream, byte[] info) throws IOException {
+		credits.put(stream, new Credit());
+		enqueue(OPEN, stream, info, 0, info.length);
+	}
+
+	/** Envia bytes no stream. Bloqueia enquanto o outro lado não devolver crédito */
+	public void send(int stream, byte[] data, int offset, int length) throws IOException {
+		Credit credit = credits.get(stream);
+		if (credit == null)
+			throw new EOFException("Stream closed");
+		synchronized (credit) {
+			try {
+				while (credit.available <= 0 && !credit.closed)
+					credit.wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			if (credit.closed)
+				throw new EOFException("Stream closed");
+			credit.available -= length;
+		}
+		enqueue(DATA, stream, data, offset, length);
+	}
+
+	/** Devolve crédito ao outro lado, depois de consumir bytes recebidos */
+	public void grant(int stream, int bytes) throws IOException {
+		byte[] b = new byte[4];
+		b[0] = (byte)(bytes >>> 24);
+		b[1] = (byte)(bytes >>> 16);
+		b[2] = (byte)(bytes >>> 8);
+		b[3] = (byte)bytes;
+		enqueue(CREDIT, stream, b, 0, 4);
+	}
+
+	/** Fecha o stream dos dois lados. Não faz nada se já estiver fechado */
+	public void close(int stream) {
+		if (!closeCredit(stream))
+			return;
+		try {
+			enqueue(CLOSE, stream, new byte[0], 0, 0);
+		} catch (IOException e) {}
+		listener.closed(this, stream);
+	}
+
+	private boolean closeCredit(int stream) {
+		Credit credit = credits.remove(stream);
+		if (credit == null)
+			return false;
+		synchronized (credit) {
+			credit.closed = true;
+			credit.notifyAll();
+		}
+		return true;
+	}
+
+	/** Fecha o túnel e todos os streams */
+	public void close() {
+		fail(new EOFException("Tunnel closed"));
+	}
+
+	private void enqueue(int type, int stream, byte[] data, int offset, int length) throws IOException {
+		IOException closed = this.closed;
+		if (closed != null)
+			throw closed;
+		byte[] msg = new byte[9 + length];
+		msg[0] = (byte)type;
+		msg[1] = (byte)(stream >>> 24);
+		msg[2] = (byte)(stream >>> 16);
+		msg[3] = (byte)(stream >>> 8);
+		msg[4] = (byte)stream;
+		msg[5] = (byte)(length >>> 24);
+		msg[6] = (byte)(length >>> 16);
+		msg[7] = (byte)(length >>> 8);
+		msg[8] = (byte)length;
+		System.arraycopy(data, offset, msg, 9, length);
+		outbound.add(msg);
+	}
+
+	private void writeLoop() {
+		try {
+			while (closed == null) {
+				byte[] msg = outbound.take();
+				if (closed != null)
+					return;
+				long sent = 0;
+				do {
+					out.write(msg);
+					sent += msg.length;
+				} while ((msg = outbound.poll()) != null);
+				out.flush();
+				bytesSent += sent;
+				batches++;
+			}
+		} catch (IOException e) {
+			fail(e);
+		} catch (InterruptedException e) {
+			fail(new InterruptedIOException());
+		}
+	}
+
+	private void readLoop() {
+		try {
+			while (true) {
+				int type = in.readUnsignedByte();
+				int stream = in.readInt();
+				int length = in.readInt();
+				if (length < 0 || length > MAX_PAYLOAD)
+					throw new IOException("Invalid tunnel message size: " + length);
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+
+				switch (type) {
+					case OPEN:
+						credits.put(stream, new Credit());
+						listener.opened(this, stream, payload);
+						break;
+					case DATA:
+						listener.data(this, stream, payload);
+						break;
+					case CLOSE:
+						if (closeCredit(stream))
+							listener.closed(this, stream);
+						break;
+					case CREDIT:
+						if (length != 4)
+							throw new IOException("Invalid credit");
+						Credit credit = credits.get(stream);
+						if (credit != null) {
+							synchronized (credit) {
+								credit.available += (payload[0] & 0xFF) << 24 | (payload[1] & 0xFF) << 16 | (payload[2] & 0xFF) << 8 | (payload[3] & 0xFF);
+								credit.notifyAll();
+							}
+						}
+						break;
+					default:
+						throw new IOException("Invalid tunnel message: " + type);
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void fail(IOException cause) {
+		synchronized (this) {
+			if (closed != null)
+				return;
+			closed = cause;
+		}
+		outbound.add(new byte[0]); //Acorda a thread de envio
+		try {
+			socket.close();
+		} catch (IOException e) {}
+		for (Integer stream : credits.keySet()) {
+			if (closeCredit(stream))
+				listener.closed(this, stream);
+		}
+		listener.tunnelClosed(this, cause);
+	}
+}
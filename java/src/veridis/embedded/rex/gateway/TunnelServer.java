@@ -0,0 +1,143 @@
+package veridis.embedded.rex.gateway;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ServerSocketFactory;
+
+import veridis.embedded.rex.Util;
+import veridis.embedded.rex.server.AcceptBackoff;
+import veridis.embedded.rex.server.RexServer;
+
+/**
+ * Lado central do gateway: aceita túneis e entrega cada Rex ao RexServer como uma conexão normal.
+ *
+ * Para TLS, use o ServerSocketFactory de um SSLContext (SSLContext.getServerSocketFactory()).
+ */
+public class TunnelServer {
+	private final RexServer rex;
+	private final ServerSocket serverSocket;
+	private final Set<Tunnel> tunnels = Collections.newSetFromMap(new ConcurrentHashMap<Tunnel, Boolean>());
+
+	public TunnelServer(RexServer rex, int port) throws IOException {
+		this(rex, port, ServerSocketFactory.getDefault());
+	}
+
+	public TunnelServer(RexServer rex, int port, ServerSocketFactory factory) throws IOException {
+		this.rex = rex;
+		this.serverSocket = factory.createServerSocket(port);
+
+		new Thread("JA200-Tunnel-Accept-" + port) {
+			public void run() {
+				acceptLoop();
+			};
+		}.start();
+	}
+
+	public int getLocalPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/** Túneis abertos, um por filial */
+	public Set<Tunnel> getTunnels() {
+		return Collections.unmodifiableSet(tunnels);
+	}
+
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {}
+		for (Tunnel tunnel : tunnels)
+			tunnel.close();
+	}
+
+	private void acceptLoop() {
+		AcceptBackoff backoff = new AcceptBackoff();
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					System.err.println(Util.ERR_PREFIX + "Tunnel accept: " + e.getMessage());
+					if (!backoff.pause())
+						break;
+				}
+				continue;
+			}
+			backoff.reset();
+			//O handshake (e o TLS) não deve segurar os próximos accepts
+			new Thread("JA200-Tunnel-Handshake-" + socket.getRemoteSocketAddress()) {
+				public void run() {
+					try {
+						tunnels.add(new Tunnel(socket, false, false, new Streams()));
+						System.out.println("Tunnel opened: " + socket.getRemoteSocketAddress());
+					} catch (IOException e) {
+						System.err.println(Util.ERR_PREFIX + "Tunnel from " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+						try {
+							socket.close();
+						} catch (IOException e2) {}
+					}
+				};
+			}.start();
+		}
+	}
+
+	/** Endereço do Rex na filial, enviado no OPEN */
+	static SocketAddress decodeAddress(byte[] info) throws IOException {
+		if (info.length != 8)
+			throw new IOException("Invalid stream info");
+		byte[] ip = new byte[4];
+		System.arraycopy(info, 0, ip, 0, 4);
+		return new InetSocketAddress(InetAddress.getByAddress(ip), Util.getInt(info, 4));
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Streams de um túnel */
+	private class Streams implements Tunnel.Listener {
+		private final ConcurrentHashMap<Integer, TunnelStream> streams = new ConcurrentHashMap<Integer, TunnelStream>();
+
+		@Override
+		public void opened(Tunnel tunnel, int stream, byte[] info) {
+			SocketAddress address;
+			try {
+				address = decodeAddress(info);
+			} catch (IOException e) {
+				System.err.println(Util.ERR_PREFIX + "Tunnel " + tunnel.getRemoteAddress() + ": " + e.getMessage());
+				tunnel.close(stream);
+				return;
+			}
+			TunnelStream conn = new TunnelStream(rex, tunnel, stream, address);
+			streams.put(stream, conn);
+			rex.serve(conn);
+		}
+
+		@Override
+		public void data(Tunnel tunnel, int stream, byte[] data) {
+			TunnelStream conn = streams.get(stream);
+			if (conn != null)
+				conn.received(data);
+		}
+
+		@Override
+		public void closed(Tunnel tunnel, int stream) {
+			TunnelStream conn = streams.remove(stream);
+			if (conn != null)
+				conn.remoteClosed();
+		}
+
+		@Override
+		public void tunnelClosed(Tunnel tunnel, IOException cause) {
+			tunnels.remove(tunnel);
+			System.out.println("Tunnel closed: " + tunnel.getRemoteAddress() + " (" + cause.getMessage() + ")");
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package veridis.embedded.rex.gateway;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import veridis.embedded.rex.BufferPool;
+import veridis.embedded.rex.FrameReader;
+import veridis.embedded.rex.OutboundQueue;
+import veridis.embedded.rex.RexEndpoint;
+import veridis.embedded.rex.RexFrame;
+import veridis.embedded.rex.RexProtocol;
+
+/**
+ * Conexão com um Rex de uma filial, recebida por um {@link Tunnel}.
+ * Para o servidor é igual a uma conexão TCP direta.
+ *
+ * As mensagens enfileiradas são enviadas em lotes, uma mensagem DATA por lote, respeitando o crédito do stream.
+ * Os bytes recebidos são remontados em mensagens por handleProtocol(), que devolve o crédito ao consumir.
+ */
+public class TunnelStream extends RexProtocol.Connection {
+	private static final int MAX_BATCH = 64;
+	/** Marca de fim na fila de recepção */
+	private static final byte[] EOF = new byte[0];
+
+	private final Tunnel tunnel;
+	private final int stream;
+	private final SocketAddress remoteAddress;
+	private final OutboundQueue outbound;
+	/** Bytes recebidos, ainda não consumidos */
+	private final LinkedBlockingQueue<byte[]> inbound = new LinkedBlockingQueue<byte[]>();
+	private volatile long lastReceived = System.nanoTime();
+	private volatile boolean closed;
+
+	public TunnelStream(RexEndpoint rex, Tunnel tunnel, int stream, SocketAddress remoteAddress) {
+		super(rex);
+		this.tunnel = tunnel;
+		this.stream = stream;
+		this.remoteAddress = remoteAddress;
+		this.outbound = new OutboundQueue(this);
+
+		new Thread("JA200-Send-To-" + remoteAddress + "-via-" + tunnel.getRemoteAddress()) {
+			public void run() {
+				writeLoop();
+			};
+		}.start();
+	}
+
+	public Tunnel getTunnel() {
+		return tunnel;
+	}
+	public int getStream() {
+		return stream;
+	}
+
+	@Override
+	public OutboundQueue getOutboundQueue() {
+		return outbound;
+	}
+	/** Endereço do Rex na rede da filial */
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+	@Override
+	public long getLastReceived() {
+		return lastReceived;
+	}
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+	@Override
+	public CompletableFuture<Void> submit(RexFrame frame) {
+		return outbound.offer(frame);
+	}
+
+	/** Chamado pelo Tunnel com os bytes recebidos do Rex */
+	void received(byte[] data) {
+		if (!closed)
+			inbound.add(data);
+	}
+
+	/** O gateway fechou o stream */
+	void remoteClosed() {
+		closed = true;
+		inbound.add(EOF);
+		outbound.close(new EOFException("Disconnected"));
+	}
+
+	private void writeLoop() {
+		ByteArrayOutputStream batchBytes = new ByteArrayOutputStream(8192);
+		List<OutboundQueue.Entry> batch = null;
+		try {
+			while (true) {
+				batch = outbound.take(MAX_BATCH);
+				batchBytes.reset();
+				for (OutboundQueue.Entry entry : batch)
+					entry.getFrame().writeTcp(batchBytes);
+				byte[] b = batchBytes.toByteArray();
+				tunnel.send(stream, b, 0, b.length);
+				for (OutboundQueue.Entry entry : batch)
+					entry.getFuture().complete(null);
+				batch = null;
+			}
+		} catch (IOException e) {
+			fail(batch, e);
+		} catch (InterruptedException e) {
+			fail(batch, new InterruptedIOException());
+		}
+	}
+
+	private void fail(List<OutboundQueue.Entry> batch, IOException e) {
+		close();
+		outbound.close(e);
+		if (batch != null) {
+			for (OutboundQueue.Entry entry : batch)
+				entry.getFuture().completeExceptionally(e);
+		}
+	}
+
+	@Override
+	public void handleProtocol() throws IOException {
+		FrameReader reader = new FrameReader(this, new DataInputStream(new ChunkInputStream()), BufferPool.DEFAULT);
+		System.out.println("============CONNECTED TO " + remoteAddress + " VIA " + tunnel.getRemoteAddress() + "============");
+		try {
+			while (true) {
+				ByteBuffer frame = reader.next();
+				lastReceived = System.nanoTime();
+				handleMessage(frame);
+			}
+		} catch (Exception e) {
+			//e.printStackTrace();
+		} finally {
+			reader.release();
+			close();
+			System.out.println("============DISCONNECTED FROM " + remoteAddress + " VIA " + tunnel.getRemoteAddress() + "============");
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		inbound.add(EOF);
+		tunnel.close(stream);
+		outbound.close(new EOFException("Connection closed"));
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Lê da fila de recepção, e devolve o crédito a cada WINDOW/4 bytes consumidos */
+	private class ChunkInputStream extends InputStream {
+		private byte[] chunk = EOF;
+		private int pos;
+		private int consumed;
+
+		private boolean next() throws IOException {
+			if (chunk == EOF && pos < 0)
+				return false;
+			while (pos >= chunk.length) {
+				consumed += chunk.length;
+				if (consumed >= Tunnel.WINDOW / 4) {
+					tunnel.grant(stream, consumed);
+					consumed = 0;
+				}
+				try {
+					chunk = inbound.take();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				pos = 0;
+				if (chunk == EOF) {
+					pos = -1;
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!next())
+				return -1;
+			return chunk[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!next())
+				return -1;
+			int n = Math.min(len, chunk.length - pos);
+			System.arraycopy(chunk, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+	}
+}
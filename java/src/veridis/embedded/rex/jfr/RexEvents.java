@@ -0,0 +1,168 @@
+package veridis.embedded.rex.jfr;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.SocketAddress;
+import java.text.ParseException;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import veridis.embedded.rex.RexProtocol;
+
+/**
+ * Eventos do Java Flight Recorder emitidos pelo protocolo.
+ *
+ * Todos vêm desligados (@Enabled(false)): sem gravação, ou com os eventos desligados, o custo é
+ * um teste de isEnabled()/shouldCommit(). Para ligá-los, usar o perfil {@link #PROFILE}, junto com
+ * o padrão da JVM, ex: -XX:StartFlightRecording:settings=default,settings=/caminho/rex.jfc
+ * ou, dentro do processo, new Recording({@link #configuration()}).
+ */
+public final class RexEvents {
+	/** Perfil .jfc, no código-fonte ao lado desta classe, para -XX:StartFlightRecording e jcmd */
+	public static final String PROFILE = "rex.jfc";
+
+	/**
+	 * O mesmo perfil, embutido: javac não copia recursos para o diretório de saída.
+	 * Manter igual a {@link #PROFILE}
+	 */
+	private static final String PROFILE_XML =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<configuration version=\"2.0\" label=\"Rex\" description=\"Rex protocol events: framing, dispatch, send, connections and discovery\" provider=\"Veridis\">\n" +
+		"  <event name=\"veridis.rex.FrameReceived\"><setting name=\"enabled\">true</setting></event>\n" +
+		"  <event name=\"veridis.rex.Dispatch\"><setting name=\"enabled\">true</setting><setting name=\"threshold\">0 ms</setting></event>\n" +
+		"  <event name=\"veridis.rex.Send\"><setting name=\"enabled\">true</setting><setting name=\"threshold\">0 ms</setting></event>\n" +
+		"  <event name=\"veridis.rex.ConnectionOpened\"><setting name=\"enabled\">true</setting></event>\n" +
+		"  <event name=\"veridis.rex.ConnectionClosed\"><setting name=\"enabled\">true</setting></event>\n" +
+		"  <event name=\"veridis.rex.DiscoveryReply\"><setting name=\"enabled\">true</setting><setting name=\"threshold\">0 ms</setting></event>\n" +
+		"</configuration>\n";
+
+	private RexEvents() {}
+
+	/** O perfil {@link #PROFILE}, sem depender do arquivo */
+	public static Configuration configuration() throws IOException {
+		try {
+			return Configuration.create(new StringReader(PROFILE_XML));
+		} catch (ParseException e) {
+			throw new IOException("Invalid " + PROFILE + ": " + e.getMessage(), e);
+		}
+	}
+
+	/** Endereço do Rex, ou null. Chamar apenas com o evento ligado */
+	public static String device(RexProtocol comm) {
+		SocketAddress address = null;
+		if (comm instanceof RexProtocol.Connection)
+			address = ((RexProtocol.Connection)comm).getRemoteAddress();
+		else if (comm instanceof RexProtocol.UDP)
+			address = ((RexProtocol.UDP)comm).getSourceAddress();
+		return address == null ? null : address.toString();
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	@Name("veridis.rex.FrameReceived")
+	@Label("Frame Received")
+	@Category({"Rex", "Protocol"})
+	@Enabled(false)
+	@StackTrace(false)
+	public static class FrameReceived extends Event {
+		@Label("Command")
+		public int command;
+		@Label("Size")
+		@DataAmount
+		public int size;
+		@Label("Device")
+		public String device;
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	@Name("veridis.rex.Dispatch")
+	@Label("Handler Dispatch")
+	@Description("Execução de um MessageHandler")
+	@Category({"Rex", "Protocol"})
+	@Enabled(false)
+	@StackTrace(false)
+	public static class Dispatch extends Event {
+		@Label("Command")
+		public int command;
+		@Label("Handler")
+		public Class<?> handler;
+		@Label("Device")
+		public String device;
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	@Name("veridis.rex.Send")
+	@Label("Send Command")
+	@Description("Envio de uma mensagem. A duração é o tempo que quem enviou ficou bloqueado")
+	@Category({"Rex", "Protocol"})
+	@Enabled(false)
+	@StackTrace(false)
+	public static class Send extends Event {
+		@Label("Command")
+		public int command;
+		@Label("Bytes")
+		@DataAmount
+		public int bytes;
+		@Label("Device")
+		public String device;
+		@Label("Rejected")
+		public boolean rejected;
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	@Name("veridis.rex.ConnectionOpened")
+	@Label("Connection Opened")
+	@Category({"Rex", "Connection"})
+	@Enabled(false)
+	@StackTrace(false)
+	public static class ConnectionOpened extends Event {
+		@Label("Device")
+		public String device;
+		@Label("Transport")
+		public String transport;
+	}
+
+	@Name("veridis.rex.ConnectionClosed")
+	@Label("Connection Closed")
+	@Category({"Rex", "Connection"})
+	@Enabled(false)
+	@StackTrace(false)
+	public static class ConnectionClosed extends Event {
+		@Label("Device")
+		public String device;
+		@Label("Transport")
+		public String transport;
+		@Label("Cause")
+		public String cause;
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	@Name("veridis.rex.DiscoveryReply")
+	@Label("Discovery Reply")
+	@Description("ConnectionRequests enviados em resposta a um Discovery")
+	@Category({"Rex", "Discovery"})
+	@Enabled(false)
+	@StackTrace(false)
+	public static class DiscoveryReply extends Event {
+		@Label("Rex ID")
+		public String id;
+		@Label("Device")
+		public String device;
+		@Label("MAC")
+		public String mac;
+		@Label("Connection Requests")
+		public int requests;
+	}
+}
@@ -1,15 +1,18 @@
 package veridis.embedded.rex.messages;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.concurrent.Semaphore;
 
+import veridis.embedded.rex.MessageView;
+import veridis.embedded.rex.RexFrame;
 import veridis.embedded.rex.RexProtocol;
 import veridis.embedded.rex.Util;
-import veridis.embedded.rex.RexProtocol.MessageHandler;
+import veridis.embedded.rex.RexProtocol.BufferHandler;
 
 public class MsgBasic {
 	public static final int COMMAND_DISCOVERY          = 0x01;
@@ -24,6 +27,10 @@ public class MsgBasic {
 	public static interface DiscoveryListener {
 		public abstract void discoveryReceived(RexProtocol comm, String name, byte[] mac, byte[] ip, byte[] mask, byte[] gateway);
 	}
+	//Enviada pelo dispositivo e recebida pelo servidor, sem alocações: o record é reaproveitado e só é válido durante a chamada
+	public static interface DiscoveryRecordListener {
+		public abstract void discoveryReceived(RexProtocol comm, DiscoveryRecord record);
+	}
 	//Enviada pelo servidor e recebida pela dispositivo
 	public static interface ConnectionRequestListener {
 		public abstract void connectionRequested(RexProtocol comm, final InetSocketAddress addr, final int unknown);
@@ -46,93 +53,136 @@ public class MsgBasic {
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////
-	public static class Discovery extends MessageHandler {
+	/** Conteúdo de um Discovery, com MAC e IPs como primitivos */
+	public static class DiscoveryRecord {
+		public static final int LENGTH = 36;
+		
+		/** ID, 12 bytes ASCII */
+		public final byte[] id = new byte[12];
+		/** MAC nos 48 bits menos significativos. Ex: 00:1e:33:1d:0f:b6 => 0x001e331d0fb6 */
+		public long mac;
+		/** IPv4 com o primeiro elemento no byte mais significativo. Ex: 192.168.1.56 => 0xC0A80138 */
+		public int ip;
+		public int mask;
+		public int gateway;
+		
+		public void parse(ByteBuffer in) throws IOException {
+			if (in.remaining() < LENGTH)
+				throw new IOException("Invalid discovery size");
+			in.get(id);
+			long mac = 0;
+			for (int i=0; i<12; i++) {
+				int nibble = Character.digit(in.get(), 16);
+				if (nibble < 0)
+					throw new IOException("Invalid MAC");
+				mac = (mac << 4) | nibble;
+			}
+			this.mac = mac;
+			ByteOrder order = in.order();
+			in.order(ByteOrder.BIG_ENDIAN);
+			ip      = in.getInt();
+			mask    = in.getInt();
+			gateway = in.getInt();
+			in.order(order);
+		}
+		
+		public void copyFrom(DiscoveryRecord other) {
+			System.arraycopy(other.id, 0, id, 0, id.length);
+			mac     = other.mac;
+			ip      = other.ip;
+			mask    = other.mask;
+			gateway = other.gateway;
+		}
+		
+		public String getId() {
+			return Util.StringFromBytes(id);
+		}
+		public byte[] getMacBytes() {
+			byte[] bytes = new byte[6];
+			for (int i=0; i<6; i++)
+				bytes[i] = (byte)(mac >> (40 - 8*i));
+			return bytes;
+		}
+		public InetAddress getInetAddress() throws UnknownHostException {
+			return InetAddress.getByAddress(Util.ipToBytes(ip));
+		}
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	public static class Discovery extends BufferHandler {
 		private DiscoveryListener listener;
+		private DiscoveryRecordListener recordListener;
+		/** Reaproveitado a cada mensagem. Discovery só é recebido pela thread do UDP */
+		private final DiscoveryRecord record = new DiscoveryRecord();
+		
 		public Discovery(DiscoveryListener listener) {
 			super(COMMAND_DISCOVERY);
 			this.listener = listener;
 		}
+		public Discovery(DiscoveryRecordListener listener) {
+			super(COMMAND_DISCOVERY);
+			this.recordListener = listener;
+		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			byte[] _name = new byte[12];
-			in.readFully(_name);
-			String name = Util.StringFromBytes(_name);
-			
-			byte[] _macChars = new byte[12];
-			in.readFully(_macChars);
-			String macChars = Util.StringFromBytes(_macChars);
-			byte[] mac = new byte[6];
-			for (int i=0; i<6; i++) {
-				mac[i] = (byte)Integer.parseInt(macChars.substring(2*i, 2*i+2), 16);
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			record.parse(in);
+			if (recordListener != null) {
+				recordListener.discoveryReceived(comm, record);
+			} else {
+				listener.discoveryReceived(comm, record.getId(), record.getMacBytes(), Util.ipToBytes(record.ip), Util.ipToBytes(record.mask), Util.ipToBytes(record.gateway));
 			}
-			
-			byte[] ip = new byte[4];
-			in.readFully(ip);
-			byte[] mask = new byte[4];
-			in.readFully(mask);
-			byte[] gateway = new byte[4];
-			in.readFully(gateway);
-
-			listener.discoveryReceived(comm, name, mac, ip, mask, gateway);
 		}
 		public static void send(RexProtocol comm, String name, byte[] mac, byte[] ip, byte[] mask, byte[] gateway) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			cmdOut.write(Util.formatID(name));
-			cmdOut.write(Util.macChars(mac));
-			cmdOut.write(ip);
-			cmdOut.write(mask);
-			cmdOut.write(gateway);
+			byte[] args = new byte[DiscoveryRecord.LENGTH];
+			Util.formatID(name, args, 0);
+			Util.macChars(mac, args, 12);
+			System.arraycopy(ip,      0, args, 24, 4);
+			System.arraycopy(mask,    0, args, 28, 4);
+			System.arraycopy(gateway, 0, args, 32, 4);
 			
-			comm.sendCommand(COMMAND_DISCOVERY, cmdOut.toByteArray());
+			comm.sendCommand(COMMAND_DISCOVERY, args);
 		}
 	}
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////
-	public static class ConnectionRequest extends MessageHandler {
+	public static class ConnectionRequest extends BufferHandler {
 		private ConnectionRequestListener listener;
 		public ConnectionRequest(ConnectionRequestListener listener) {
 			super(COMMAND_CONNECTION_REQUEST);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int blah = Util.readInt(in); //FIXME O que é esse argumento?
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int blah = in.getInt(); //FIXME O que é esse argumento?
 			
-			byte[] ip = new byte[4];
-			ip[3] = (byte)Util.readByte(in);
-			ip[2] = (byte)Util.readByte(in);
-			ip[1] = (byte)Util.readByte(in);
-			ip[0] = (byte)Util.readByte(in);
+			byte[] ip = Util.ipToBytes(in.getInt()); //Ordem contrária: little-endian
 
-			int port = Util.readInt(in);
+			int port = in.getInt();
 			
 			InetSocketAddress sockAddr = new InetSocketAddress(InetAddress.getByAddress(ip), port);
 			listener.connectionRequested(comm, sockAddr, blah);
 		}
 		public static void send(RexProtocol comm, int blah, InetSocketAddress addr) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, blah);
-			byte[] ip = addr.getAddress().getAddress();
-			cmdOut.write(ip[3]);
-			cmdOut.write(ip[2]);
-			cmdOut.write(ip[1]);
-			cmdOut.write(ip[0]);
-			Util.writeInt(cmdOut, addr.getPort());
-			comm.sendCommand(COMMAND_CONNECTION_REQUEST, cmdOut.toByteArray());
+			comm.sendFrame(frame(blah, addr));
+		}
+		public static RexFrame frame(int blah, InetSocketAddress addr) {
+			int ip = Util.ipFromBytes(addr.getAddress().getAddress()); //Ordem contrária: little-endian
+			return RexFrame.ofInts(COMMAND_CONNECTION_REQUEST, blah, ip, addr.getPort());
 		}
 	}
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////
-	public static class FeaturesRequest extends MessageHandler {
+	public static class FeaturesRequest extends BufferHandler {
 		private FeaturesRequestListener listener;
 		public FeaturesRequest(FeaturesRequestListener listener) {
 			super(COMMAND_FEATURES_REQUEST);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
 			listener.featuresRequested(comm);
 		}
 		public static void send(RexProtocol comm) throws IOException {
@@ -142,68 +192,60 @@ public class MsgBasic {
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////
-	public static class FeaturesResponse extends MessageHandler {
+	public static class FeaturesResponse extends BufferHandler {
 		private FeaturesResponseListener listener;
 		public FeaturesResponse(FeaturesResponseListener listener) {
 			super(COMMAND_FEATURES_RESPONSE);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int relays          = Util.readInt(in);
-			int rs232           = Util.readInt(in);
-			int inputs          = Util.readInt(in);
-			int leds            = Util.readInt(in);
-			int readers         = Util.readInt(in);
-			boolean hasKeyboard = Util.readInt(in) != 0;
-			boolean hasDisplay  = Util.readInt(in) != 0;
-			boolean hasBuzzer   = Util.readInt(in) != 0;
-			boolean hasMP3      = Util.readInt(in) != 0;
-			int versionRev      = Util.readByte(in);
-			int versionSub      = Util.readByte(in);
-			int versionMin      = Util.readByte(in);
-			int versionMaj      = Util.readByte(in);
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int relays          = in.getInt();
+			int rs232           = in.getInt();
+			int inputs          = in.getInt();
+			int leds            = in.getInt();
+			int readers         = in.getInt();
+			boolean hasKeyboard = in.getInt() != 0;
+			boolean hasDisplay  = in.getInt() != 0;
+			boolean hasBuzzer   = in.getInt() != 0;
+			boolean hasMP3      = in.getInt() != 0;
+			int versionRev      = in.get() & 0xFF;
+			int versionSub      = in.get() & 0xFF;
+			int versionMin      = in.get() & 0xFF;
+			int versionMaj      = in.get() & 0xFF;
 			listener.featuresReceived(comm, relays, rs232, inputs, leds, readers, hasKeyboard, hasDisplay, hasBuzzer, hasMP3, versionRev, versionSub, versionMin, versionMaj);			
 		}
 		public static void send(RexProtocol comm, int relays, int rs232, int inputs, int leds, int readers, boolean hasKeyboard, boolean hasDisplay, boolean hasBuzzer) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, relays);
-			Util.writeInt(cmdOut, rs232);
-			Util.writeInt(cmdOut, inputs);
-			Util.writeInt(cmdOut, leds);
-			Util.writeInt(cmdOut, readers);
-			Util.writeInt(cmdOut, hasKeyboard?1:0);
-			Util.writeInt(cmdOut, hasDisplay?1:0);
-			Util.writeInt(cmdOut, hasBuzzer?1:0); 
-			Util.writeInt(cmdOut, 0); //MP3 -> Não tem			
-			cmdOut.write(RexProtocol.VERSION_REV);
-			cmdOut.write(RexProtocol.VERSION_SUB);
-			cmdOut.write(RexProtocol.VERSION_MINOR);
-			cmdOut.write(RexProtocol.VERSION_MAJOR);
-			comm.sendCommand(COMMAND_FEATURES_RESPONSE, cmdOut.toByteArray());
+			int version = RexProtocol.VERSION_REV | RexProtocol.VERSION_SUB << 8 | RexProtocol.VERSION_MINOR << 16 | RexProtocol.VERSION_MAJOR << 24;
+			comm.sendFrame(RexFrame.ofInts(COMMAND_FEATURES_RESPONSE, relays, rs232, inputs, leds, readers, 
+					hasKeyboard?1:0, hasDisplay?1:0, hasBuzzer?1:0, 
+					0, //MP3 -> Não tem
+					version));
 		}
 	}
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////
-	public static class IdRequest extends MessageHandler {
+	public static class IdRequest extends BufferHandler {
 		private FeaturesRequestListener listener;
 		public IdRequest(FeaturesRequestListener listener) {
 			super(COMMAND_ID_REQUEST);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
 			listener.idRequested(comm);
 		}
 		public static void send(RexProtocol comm) throws IOException {
 			comm.sendCommand(COMMAND_ID_REQUEST);
 		}
-		public static String sendAndWait(RexProtocol comm) throws IOException, InterruptedException {
+		public static String sendAndWait(final RexProtocol comm) throws IOException, InterruptedException {
 			final Semaphore sem = new Semaphore(0);
 			final String[] ptrResult = new String[1];
 			final IdResponse response = new IdResponse(new FeaturesResponseListener() {
 				@Override
-				public void idReceived(RexProtocol comm, String id) {
+				public void idReceived(RexProtocol from, String id) {
+					if (from != comm) //Resposta de outra conexão
+						return;
 					ptrResult[0] = id;
 					sem.release();
 				}
@@ -221,17 +263,15 @@ public class MsgBasic {
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////
-	public static class IdResponse extends MessageHandler {
+	public static class IdResponse extends BufferHandler {
 		private FeaturesResponseListener listener;
 		public IdResponse(FeaturesResponseListener listener) {
 			super(COMMAND_ID_RESPONSE);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			byte[] buf = new byte[inLength];
-			in.readFully(buf);
-			listener.idReceived(comm, Util.StringFromBytes(buf));
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			listener.idReceived(comm, Util.StringFromBytes(in, inLength));
 		}
 		public static void send(RexProtocol comm, String ID) throws IOException {
 			comm.sendCommand(COMMAND_ID_RESPONSE, Util.formatID(ID));
@@ -240,18 +280,69 @@ public class MsgBasic {
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class ResetRequest extends MessageHandler {
+	public static class ResetRequest extends BufferHandler {
 		private ResetListener listener;
 		public ResetRequest(ResetListener listener) {
 			super(COMMAND_RESET);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
 			listener.resetRequested(comm);
 		}
 		public static void send(RexProtocol comm) throws IOException {
 			comm.sendCommand(COMMAND_RESET);
 		}
 	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Discovery lido direto do buffer de recepção. Válido apenas durante o callback */
+	public static class DiscoveryView extends MessageView {
+		public static class Handler extends MessageView.Handler<DiscoveryView> {
+			public Handler(Listener<DiscoveryView> listener) {
+				super(COMMAND_DISCOVERY, listener);
+			}
+			@Override
+			protected DiscoveryView newView() {
+				return new DiscoveryView();
+			}
+		}
+		@Override
+		protected void validate() throws IOException {
+			need(DiscoveryRecord.LENGTH);
+		}
+		/** ID, 12 bytes ASCII, entre position e limit */
+		public ByteBuffer id() {
+			return region(0, 0, 12);
+		}
+		/** MAC em hexadecimal, 12 bytes ASCII, entre position e limit */
+		public ByteBuffer macChars() {
+			return region(1, 12, 12);
+		}
+		/** MAC nos 48 bits menos significativos, ou -1 se não for hexadecimal */
+		public long mac() {
+			long mac = 0;
+			for (int i=0; i<12; i++) {
+				int nibble = Character.digit(getByte(12 + i), 16);
+				if (nibble < 0)
+					return -1;
+				mac = (mac << 4) | nibble;
+			}
+			return mac;
+		}
+		public int ip() {
+			return getIp(24);
+		}
+		public int mask() {
+			return getIp(28);
+		}
+		public int gateway() {
+			return getIp(32);
+		}
+		/** IPv4 na ordem normal, como em DiscoveryRecord */
+		private int getIp(int pos) {
+			return getByte(pos) << 24 | getByte(pos + 1) << 16 | getByte(pos + 2) << 8 | getByte(pos + 3);
+		}
+	}
 }
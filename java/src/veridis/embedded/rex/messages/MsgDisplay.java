@@ -1,20 +1,20 @@
 package veridis.embedded.rex.messages;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
+import veridis.embedded.rex.RexFrame;
 import veridis.embedded.rex.RexProtocol;
 import veridis.embedded.rex.Util;
-import veridis.embedded.rex.RexProtocol.MessageHandler;
+import veridis.embedded.rex.RexProtocol.BufferHandler;
 
 public class MsgDisplay {
-	private static final int COMMAND_DISPLAY_INITIALIZE       = 0x1e;
-	private static final int COMMAND_DISPLAY_CLEAR            = 0x1f;
-	private static final int COMMAND_DISPLAY_SET_ENTRY_MODE   = 0x21;
-	private static final int COMMAND_DISPLAY_SET_CURSOR       = 0x23;
-	private static final int COMMAND_DISPLAY_MOVE             = 0x24;
-	private static final int COMMAND_DISPLAY_WRITE            = 0x28;
+	public static final int COMMAND_DISPLAY_INITIALIZE       = 0x1e;
+	public static final int COMMAND_DISPLAY_CLEAR            = 0x1f;
+	public static final int COMMAND_DISPLAY_SET_ENTRY_MODE   = 0x21;
+	public static final int COMMAND_DISPLAY_SET_CURSOR       = 0x23;
+	public static final int COMMAND_DISPLAY_MOVE             = 0x24;
+	public static final int COMMAND_DISPLAY_WRITE            = 0x28;
 	
 	public static interface DisplayListener {
 		public abstract void displayClear(RexProtocol comm);
@@ -27,14 +27,14 @@ public class MsgDisplay {
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class Clear extends MessageHandler {
+	public static class Clear extends BufferHandler {
 		private DisplayListener listener;
 		public Clear(DisplayListener listener) {
 			super(COMMAND_DISPLAY_CLEAR);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
 			listener.displayClear(comm);
 		}
 		public static void send(RexProtocol comm) throws IOException {
@@ -44,34 +44,29 @@ public class MsgDisplay {
 
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class Initialize extends MessageHandler {
+	public static class Initialize extends BufferHandler {
 		private DisplayListener listener;
 		public Initialize(DisplayListener listener) {
 			super(COMMAND_DISPLAY_INITIALIZE);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int width = Util.readInt(in);
-			int height = Util.readInt(in);
-			int busWidth = Util.readInt(in);//4 ou 8
-			int font = Util.readInt(in); //5x7=0, 5x10=1
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int width = in.getInt();
+			int height = in.getInt();
+			int busWidth = in.getInt();//4 ou 8
+			int font = in.getInt(); //5x7=0, 5x10=1
 			
 			listener.displayInit(comm, width, height, busWidth, font!=0);
 		}
 		public static void send(RexProtocol comm, int width, int height, boolean font5x10) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, width);
-			Util.writeInt(cmdOut, height);
-			Util.writeInt(cmdOut, 8);
-			Util.writeInt(cmdOut, font5x10?1:0);
-			comm.sendCommand(COMMAND_DISPLAY_INITIALIZE, cmdOut.toByteArray());
+			comm.sendFrame(RexFrame.ofInts(COMMAND_DISPLAY_INITIALIZE, width, height, 8, font5x10?1:0));
 		}
 	}
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class SetEntryMode extends MessageHandler {
+	public static class SetEntryMode extends BufferHandler {
 		public static final int DISPLAY_ENTRY_MODE_CURSOR_LEFT = 4;
 		public static final int DISPLAY_ENTRY_MODE_MESSAGE_LEFT = 5;
 		public static final int DISPLAY_ENTRY_MODE_CURSOR_RIGHT = 6;
@@ -83,42 +78,42 @@ public class MsgDisplay {
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int mode = Util.readInt(in);
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int mode = in.getInt();
 			listener.displaySetEntryMode(comm, 
 					mode == DISPLAY_ENTRY_MODE_MESSAGE_LEFT  || mode == DISPLAY_ENTRY_MODE_MESSAGE_RIGHT, 
 					mode == DISPLAY_ENTRY_MODE_MESSAGE_RIGHT || mode == DISPLAY_ENTRY_MODE_CURSOR_RIGHT);
 		}
 		public static void send(RexProtocol comm, boolean moveMessage, boolean toRight) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
+			int mode;
 			if (moveMessage) {
 				if (toRight) {
-					Util.writeInt(cmdOut, DISPLAY_ENTRY_MODE_MESSAGE_RIGHT);
+					mode = DISPLAY_ENTRY_MODE_MESSAGE_RIGHT;
 				} else {
-					Util.writeInt(cmdOut, DISPLAY_ENTRY_MODE_MESSAGE_LEFT);
+					mode = DISPLAY_ENTRY_MODE_MESSAGE_LEFT;
 				}
 			} else {
 				if (toRight) {
-					Util.writeInt(cmdOut, DISPLAY_ENTRY_MODE_CURSOR_RIGHT);
+					mode = DISPLAY_ENTRY_MODE_CURSOR_RIGHT;
 				} else { 
-					Util.writeInt(cmdOut, DISPLAY_ENTRY_MODE_CURSOR_LEFT);
+					mode = DISPLAY_ENTRY_MODE_CURSOR_LEFT;
 				}
 			}
-			comm.sendCommand(COMMAND_DISPLAY_SET_ENTRY_MODE, cmdOut.toByteArray());			
+			comm.sendFrame(RexFrame.ofInts(COMMAND_DISPLAY_SET_ENTRY_MODE, mode));
 		}
 	}
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class SetCursor extends MessageHandler {
+	public static class SetCursor extends BufferHandler {
 		private DisplayListener listener;
 		public SetCursor(DisplayListener listener) {
 			super(COMMAND_DISPLAY_SET_CURSOR);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int cur = Util.readInt(in); //off=12, offblinking=13, on=14, cmOnBlinking=15
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int cur = in.getInt(); //off=12, offblinking=13, on=14, cmOnBlinking=15
 			listener.displaySetCursor(comm, (cur&4)!=0, (cur&2)!=0, (cur&1)!=0);
 		}
 		public static void send(RexProtocol comm, boolean displayOn, boolean cursorOn, boolean cursorBlinking) throws IOException {
@@ -127,70 +122,85 @@ public class MsgDisplay {
 			if (cursorOn      ) val |=2;
 			if (cursorBlinking) val |=1;
 			
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, val);
-			comm.sendCommand(COMMAND_DISPLAY_SET_CURSOR, cmdOut.toByteArray());
+			comm.sendFrame(RexFrame.ofInts(COMMAND_DISPLAY_SET_CURSOR, val));
 		}
 	}
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class Write extends MessageHandler {
+	public static class Write extends BufferHandler {
 		private DisplayListener listener;
 		public Write(DisplayListener listener) {
 			super(COMMAND_DISPLAY_WRITE);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int line = Util.readInt(in);
-			int col  = Util.readInt(in);
-			int cri  = Util.readInt(in);
-			byte[] strBytes = new byte[inLength - 12];
-			in.readFully(strBytes);
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int line = in.getInt();
+			int col  = in.getInt();
+			int cri  = in.getInt();
 			
-			listener.displayWrite(comm, line, col, cri, Util.StringFromBytes(strBytes));
+			listener.displayWrite(comm, line, col, cri, Util.StringFromBytes(in, inLength - 12));
 		}
 		public static void send(RexProtocol comm, String message) throws IOException {
 			send(comm, message, -1, -1);
 		}
 		public static void send(RexProtocol comm, String message, int line, int col) throws IOException {
-			byte[] msgBytes = Util.StringToBytes(message);
-
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, line);
-			Util.writeInt(cmdOut, col);
-			Util.writeInt(cmdOut, 0); //Cri?
+			comm.sendFrame(frame(message, line, col));
+		}
+		public static RexFrame frame(String message, int line, int col) {
+			byte[] args = new byte[12 + message.length()];
+			Util.putInt(args, 0, line);
+			Util.putInt(args, 4, col);
+			Util.putInt(args, 8, 0); //Cri?
+			Util.latin1Encode(message, args, 12);
 			
-			comm.sendCommand(COMMAND_DISPLAY_WRITE, cmdOut.toByteArray(), msgBytes);
+			return RexFrame.encode(COMMAND_DISPLAY_WRITE, args);
 		}
 	}
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class Move extends MessageHandler {
+	public static class Move extends BufferHandler {
+		public static final int DISPLAY_MOVE_CURSOR_LEFT   = 0x10;
+		public static final int DISPLAY_MOVE_CURSOR_RIGHT  = 0x14;
+		public static final int DISPLAY_MOVE_MESSAGE_LEFT  = 0x18;
+		public static final int DISPLAY_MOVE_MESSAGE_RIGHT = 0x1C;
+		
 		private DisplayListener listener;
 		public Move(DisplayListener listener) {
 			super(COMMAND_DISPLAY_MOVE);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int a = Util.readInt(in);    //a=0x18  => moveMessage, offset Negativo
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int a = in.getInt();    //a=0x18  => moveMessage, offset Negativo
 			//a=0x1c  => moveMessage, offset Positivo
 			//a=0x10  => moveCursor, offset Negativo
 			//a=0x14  => moveCursor, offset Positivo		
-			int offset = Util.readInt(in);
+			int offset = in.getInt();
 
-			if (a == 0x18 || a == 0x10 )
+			if (a == DISPLAY_MOVE_MESSAGE_LEFT || a == DISPLAY_MOVE_CURSOR_LEFT)
 				offset = -offset;
 
-			boolean moveMessage = (a == 0x18 || a == 0x1C );
+			boolean moveMessage = (a == DISPLAY_MOVE_MESSAGE_LEFT || a == DISPLAY_MOVE_MESSAGE_RIGHT);
 
 			listener.displayMove(comm, moveMessage, offset);
 		}
-		public static void send(RexProtocol comm) throws IOException {
-			throw new UnsupportedOperationException(); //FIXME
+		/**
+		 * Desloca o texto do display inteiro (moveMessage) ou só o cursor, offset posições.
+		 * offset negativo: para a esquerda. O conteúdo (DDRAM) não muda: Write continua usando as mesmas colunas
+		 */
+		public static void send(RexProtocol comm, boolean moveMessage, int offset) throws IOException {
+			comm.sendFrame(frame(moveMessage, offset));
+		}
+		public static RexFrame frame(boolean moveMessage, int offset) {
+			int mode;
+			if (moveMessage)
+				mode = offset < 0 ? DISPLAY_MOVE_MESSAGE_LEFT : DISPLAY_MOVE_MESSAGE_RIGHT;
+			else
+				mode = offset < 0 ? DISPLAY_MOVE_CURSOR_LEFT : DISPLAY_MOVE_CURSOR_RIGHT;
+			return RexFrame.ofInts(COMMAND_DISPLAY_MOVE, mode, Math.abs(offset));
 		}
 	}
 }
@@ -1,12 +1,13 @@
 package veridis.embedded.rex.messages;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
+import veridis.embedded.rex.MessageView;
+import veridis.embedded.rex.RexFrame;
 import veridis.embedded.rex.RexProtocol;
 import veridis.embedded.rex.Util;
-import veridis.embedded.rex.RexProtocol.MessageHandler;
+import veridis.embedded.rex.RexProtocol.BufferHandler;
 
 public class MsgIO {
 	public static final int COMMAND_IO                 = 0x12;
@@ -30,7 +31,7 @@ public class MsgIO {
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class DigitalOutput extends MessageHandler {
+	public static class DigitalOutput extends BufferHandler {
 		public static final int IO_TYPE_RELAY = 1;
 		public static final int IO_TYPE_LED = 2;
 		public static final int IO_TYPE_BACKLIGHT = 3;
@@ -52,96 +53,197 @@ public class MsgIO {
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int tipo = Util.readInt(in); //Rel�=1, Led=2, Backlight=3, Buzina=4
-			int qual = Util.readInt(in);
-			int timeOn = Util.readInt(in);
-			int timeOff = Util.readInt(in);
-			int repeats = Util.readInt(in);
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int tipo = in.getInt(); //Rel�=1, Led=2, Backlight=3, Buzina=4
+			int qual = in.getInt();
+			int timeOn = in.getInt();
+			int timeOff = in.getInt();
+			int repeats = in.getInt();
 			listener.toggleDigitalOutput(comm, tipo, qual, timeOn, timeOff, repeats);
 		}
 		public static void send(RexProtocol comm, int tipo, int qual, int timeOn, int timeOff, int repeats) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, tipo);
-			Util.writeInt(cmdOut, qual);
-			Util.writeInt(cmdOut, timeOn);
-			Util.writeInt(cmdOut, timeOff);
-			Util.writeInt(cmdOut, repeats);		
-			comm.sendCommand(COMMAND_IO, cmdOut.toByteArray());
+			comm.sendFrame(RexFrame.ofInts(COMMAND_IO, tipo, qual, timeOn, timeOff, repeats));
 		}
 	}
 		
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class InputChange extends MessageHandler {
+	public static class InputChange extends BufferHandler {
 		private InputListener listener;
 		public InputChange(InputListener listener) {
 			super(COMMAND_INPUT_CHANGED);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int     port = Util.readInt(in);
-			boolean isOn = Util.readInt(in) != 0;
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int     port = in.getInt();
+			boolean isOn = in.getInt() != 0;
 			listener.inputChanged(comm, port, isOn);
 		}
 		public static void send(RexProtocol comm, int port, boolean isOn) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, port);
-			Util.writeInt(cmdOut, isOn?1:0);		
-			comm.sendCommand(COMMAND_INPUT_CHANGED, cmdOut.toByteArray());
+			comm.sendFrame(RexFrame.ofInts(COMMAND_INPUT_CHANGED, port, isOn?1:0));
 		}
 	}
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class KeyTyped extends MessageHandler {
+	public static class KeyTyped extends BufferHandler {
 		private InputListener listener;
 		public KeyTyped(InputListener listener) {
 			super(COMMAND_KEY_TYPED);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int keyCode = Util.readInt(in);
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int keyCode = in.getInt();
 			listener.keyTyped(comm, keyCode);
 		}
 		public static void send(RexProtocol comm, int keyCode) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, keyCode);		
-			comm.sendCommand(COMMAND_KEY_TYPED, cmdOut.toByteArray());
+			comm.sendFrame(RexFrame.ofInts(COMMAND_KEY_TYPED, keyCode));
 		}
 	}
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class ImageCapture extends MessageHandler {
+	public static class ImageCapture extends BufferHandler {
 		private ImageCaptureListener listener;
 		public ImageCapture(ImageCaptureListener listener) {
 			super(COMMAND_IMAGE_ACQUIRED);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int width  = Util.readInt(in);
-			int height = Util.readInt(in);
-			int resX   = Util.readInt(in);
-			int resY   = Util.readInt(in);
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int width  = in.getInt();
+			int height = in.getInt();
+			int resX   = in.getInt();
+			int resY   = in.getInt();
+			long pixels = (long)width * height;
+			if (width < 0 || height < 0 || pixels > inLength - 16)
+				throw new IOException("Invalid image size: " + width + "x" + height);
 			byte[] imgBuf = new byte[width*height];
-			in.readFully(imgBuf);
-			byte[] nameBytes = new byte[inLength - 16 - width*height];
-			in.readFully(nameBytes);
-			String name = Util.StringFromBytes(nameBytes);
+			in.get(imgBuf);
+			String name = Util.StringFromBytes(in, inLength - 16 - width*height);
 			listener.imageCaptured(comm, width, height, resX, resY, imgBuf, name);
 		}
 		public static void send(RexProtocol comm, String reader, int width, int height, int resX, int resY, byte[] buffer) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, width);
-			Util.writeInt(cmdOut, height);
-			Util.writeInt(cmdOut, resX);
-			Util.writeInt(cmdOut, resY);	
-			
-			comm.sendCommand(COMMAND_IMAGE_ACQUIRED, cmdOut.toByteArray(), buffer, Util.StringToBytes(reader));
+			comm.sendCommand(COMMAND_IMAGE_ACQUIRED, Util.ints(width, height, resX, resY), buffer, Util.StringToBytes(reader));
+		}
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	// Views: leitura direta do buffer de recepção, sem cópias. Válidas apenas durante o callback.
+	
+	/** Ex: rex.addMessageHandler(new MsgIO.InputChangeView.Handler(listener)) */
+	public static class InputChangeView extends MessageView {
+		public static class Handler extends MessageView.Handler<InputChangeView> {
+			public Handler(Listener<InputChangeView> listener) {
+				super(COMMAND_INPUT_CHANGED, listener);
+			}
+			@Override
+			protected InputChangeView newView() {
+				return new InputChangeView();
+			}
+		}
+		@Override
+		protected void validate() throws IOException {
+			need(8);
+		}
+		public int port() {
+			return getInt(0);
+		}
+		public boolean isOn() {
+			return getInt(4) != 0;
+		}
+	}
+	
+	public static class KeyTypedView extends MessageView {
+		public static class Handler extends MessageView.Handler<KeyTypedView> {
+			public Handler(Listener<KeyTypedView> listener) {
+				super(COMMAND_KEY_TYPED, listener);
+			}
+			@Override
+			protected KeyTypedView newView() {
+				return new KeyTypedView();
+			}
+		}
+		@Override
+		protected void validate() throws IOException {
+			need(4);
+		}
+		public int keyCode() {
+			return getInt(0);
+		}
+	}
+	
+	public static class DigitalOutputView extends MessageView {
+		public static class Handler extends MessageView.Handler<DigitalOutputView> {
+			public Handler(Listener<DigitalOutputView> listener) {
+				super(COMMAND_IO, listener);
+			}
+			@Override
+			protected DigitalOutputView newView() {
+				return new DigitalOutputView();
+			}
+		}
+		@Override
+		protected void validate() throws IOException {
+			need(20);
+		}
+		public int portType() {
+			return getInt(0);
+		}
+		public int port() {
+			return getInt(4);
+		}
+		public int timeOn() {
+			return getInt(8);
+		}
+		public int timeOff() {
+			return getInt(12);
+		}
+		public int repeats() {
+			return getInt(16);
+		}
+	}
+	
+	public static class ImageCaptureView extends MessageView {
+		public static class Handler extends MessageView.Handler<ImageCaptureView> {
+			public Handler(Listener<ImageCaptureView> listener) {
+				super(COMMAND_IMAGE_ACQUIRED, listener);
+			}
+			@Override
+			protected ImageCaptureView newView() {
+				return new ImageCaptureView();
+			}
+		}
+		@Override
+		protected void validate() throws IOException {
+			need(16);
+			long pixels = (long)width() * height();
+			if (width() < 0 || height() < 0 || pixels > length() - 16)
+				throw new IOException("Invalid image size: " + width() + "x" + height());
+		}
+		public int width() {
+			return getInt(0);
+		}
+		public int height() {
+			return getInt(4);
+		}
+		public int resX() {
+			return getInt(8);
+		}
+		public int resY() {
+			return getInt(12);
+		}
+		/** Pixels (width*height bytes), entre position e limit */
+		public ByteBuffer pixels() {
+			return region(0, 16, width() * height());
+		}
+		/** Nome do sensor, ISO-8859-1, entre position e limit */
+		public ByteBuffer sensorName() {
+			int start = 16 + width() * height();
+			return region(1, start, length() - start);
 		}
 	}
 }
@@ -1,12 +1,13 @@
 package veridis.embedded.rex.messages;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
+import veridis.embedded.rex.MessageView;
+import veridis.embedded.rex.RexFrame;
 import veridis.embedded.rex.RexProtocol;
 import veridis.embedded.rex.Util;
-import veridis.embedded.rex.RexProtocol.MessageHandler;
+import veridis.embedded.rex.RexProtocol.BufferHandler;
 
 public class MsgRS232 {
 	public static final int COMMAND_RS232_OPEN     = 0x32;
@@ -37,122 +38,129 @@ public class MsgRS232 {
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class Open extends MessageHandler {
+	public static class Open extends BufferHandler {
 		private RS232Listener listener;
 		public Open(RS232Listener listener) {
 			super(COMMAND_RS232_OPEN);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int portNumber = Util.readInt(in);
-			int baud = Util.readInt(in);
-			int parity = Util.readInt(in); //None=0, Odd=1, Even2
-			int bits = Util.readInt(in);
-			int stopBits = Util.readInt(in);
-			int flowControl = Util.readInt(in); //None=0, Soft=1, Hard=2
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int portNumber = in.getInt();
+			int baud = in.getInt();
+			int parity = in.getInt(); //None=0, Odd=1, Even2
+			int bits = in.getInt();
+			int stopBits = in.getInt();
+			int flowControl = in.getInt(); //None=0, Soft=1, Hard=2
 					
 			listener.rs232Open(comm, portNumber, baud, parity, bits, stopBits, flowControl);
 		}
 		public static void send(RexProtocol comm, int portNumber, int baud, int parity, int bits, int stopBits, int flowControl) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, portNumber);
-			Util.writeInt(cmdOut, baud);
-			Util.writeInt(cmdOut, parity);
-			Util.writeInt(cmdOut, bits);
-			Util.writeInt(cmdOut, stopBits);
-			Util.writeInt(cmdOut, flowControl);
-			comm.sendCommand(COMMAND_RS232_OPEN, cmdOut.toByteArray());
+			comm.sendFrame(RexFrame.ofInts(COMMAND_RS232_OPEN, portNumber, baud, parity, bits, stopBits, flowControl));
 		}
 	}
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class Close extends MessageHandler {
+	public static class Close extends BufferHandler {
 		private RS232Listener listener;
 		public Close(RS232Listener listener) {
 			super(COMMAND_RS232_CLOSE);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int portNumber = Util.readInt(in);
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int portNumber = in.getInt();
 			listener.rs232Close(comm, portNumber);
 		}
 		public static void send(RexProtocol comm, int portNumber) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, portNumber);
-			comm.sendCommand(COMMAND_RS232_CLOSE, cmdOut.toByteArray()); 
+			comm.sendFrame(RexFrame.ofInts(COMMAND_RS232_CLOSE, portNumber));
 		}
 	}
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class SetMode extends MessageHandler {
+	public static class SetMode extends BufferHandler {
 		private RS232Listener listener;
 		public SetMode(RS232Listener listener) {
 			super(COMMAND_RS232_SET_MODE);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int portNumber        = Util.readInt(in);
-			boolean synchroneous  = Util.readInt(in) != 0; //Async=0, Sync = 1, 
-			boolean binaryMode    = Util.readInt(in) != 0; //Ascii=0, Bin=1
-			int packSize          = Util.readInt(in);
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int portNumber        = in.getInt();
+			boolean synchroneous  = in.getInt() != 0; //Async=0, Sync = 1, 
+			boolean binaryMode    = in.getInt() != 0; //Ascii=0, Bin=1
+			int packSize          = in.getInt();
 			
 			listener.rs232SetMode(comm, portNumber, !synchroneous, binaryMode, packSize);
 		}
 		public static void send(RexProtocol comm, int portNumber, boolean asynchroneous, boolean binaryMode, int packSize) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, portNumber);
-			Util.writeInt(cmdOut, !asynchroneous ? 1 : 0);
-			Util.writeInt(cmdOut, binaryMode ? 1 : 0);
-			Util.writeInt(cmdOut, packSize);
-			comm.sendCommand(COMMAND_RS232_SET_MODE, cmdOut.toByteArray()); 
+			comm.sendFrame(RexFrame.ofInts(COMMAND_RS232_SET_MODE, portNumber, !asynchroneous ? 1 : 0, binaryMode ? 1 : 0, packSize));
 		}
 	}
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class Read extends MessageHandler {
+	public static class Read extends BufferHandler {
 		private RS232Listener listener;
 		public Read(RS232Listener listener) {
 			super(COMMAND_RS232_READ);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int portNumber = Util.readInt(in);
-			int bufferLength = Util.readInt(in);
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int portNumber = in.getInt();
+			int bufferLength = in.getInt();
 			listener.rs232Read(comm, portNumber, bufferLength);
 		}
 		public static void send(RexProtocol comm, int portNumber, int bufferLength) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, portNumber);
-			Util.writeInt(cmdOut, bufferLength);
-			comm.sendCommand(COMMAND_RS232_READ, cmdOut.toByteArray()); 
+			comm.sendFrame(RexFrame.ofInts(COMMAND_RS232_READ, portNumber, bufferLength));
 		}
 	}
 	
 	
 	///////////////////////////////////////////////////////////////////////////////////////////////	
-	public static class Write extends MessageHandler {
+	public static class Write extends BufferHandler {
 		private RS232Listener listener;
 		public Write(RS232Listener listener) {
 			super(COMMAND_RS232_WRITE);
 			this.listener = listener;
 		}
 		@Override
-		public void handle(DataInputStream in, int inLength, RexProtocol comm) throws IOException {
-			int portNumber = Util.readInt(in);
+		public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+			int portNumber = in.getInt();
 			byte[] buffer = new byte[inLength-4];
-			in.readFully(buffer);
+			in.get(buffer);
 			listener.rs232Write(comm, portNumber, buffer);
 		}
 		public static void send(RexProtocol comm, int port, byte[] buffer) throws IOException {
-			ByteArrayOutputStream cmdOut = new ByteArrayOutputStream();
-			Util.writeInt(cmdOut, port);
-			comm.sendCommand(COMMAND_RS232_WRITE, cmdOut.toByteArray(), buffer); 
+			comm.sendCommand(COMMAND_RS232_WRITE, Util.ints(port), buffer);
+		}
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** RS232Write lido direto do buffer de recepção. Válido apenas durante o callback */
+	public static class WriteView extends MessageView {
+		public static class Handler extends MessageView.Handler<WriteView> {
+			public Handler(Listener<WriteView> listener) {
+				super(COMMAND_RS232_WRITE, listener);
+			}
+			@Override
+			protected WriteView newView() {
+				return new WriteView();
+			}
+		}
+		@Override
+		protected void validate() throws IOException {
+			need(4);
+		}
+		public int port() {
+			return getInt(0);
+		}
+		/** Dados, entre position e limit */
+		public ByteBuffer data() {
+			return region(0, 4, length() - 4);
 		}
 	}
 }
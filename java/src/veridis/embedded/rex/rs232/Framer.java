@@ -0,0 +1,254 @@
+package veridis.embedded.rex.rs232;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Separa os pacotes de uma porta serial, lendo direto do buffer, sem copiar.
+ *
+ * {@link #scan} olha os bytes entre start e end e diz se há um pacote completo no início.
+ * Os framers não guardam estado, então uma instância pode ser usada por várias portas e conexões.
+ */
+public abstract class Framer {
+	/** Pacote ainda incompleto */
+	public static final int NEED_MORE = 0;
+
+	/**
+	 * @param payload Recebe o início e o tamanho do conteúdo do pacote (sem delimitadores, cabeçalho e checksum)
+	 * @return Tamanho do pacote completo no início, {@link #NEED_MORE}, ou -n para descartar n bytes inválidos
+	 */
+	public abstract int scan(ByteBuffer buf, int start, int end, int[] payload);
+
+	/** Maior pacote aceito; o buffer de cada porta deve comportá-lo */
+	public abstract int getMaxLength();
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Pacotes terminados por "\r\n", ex: leitores de código de barras */
+	public static Framer crlf(int maxLength) {
+		return new Delimiter(new byte[] {'\r', '\n'}, maxLength);
+	}
+
+	public static Framer delimiter(String delimiter, int maxLength) {
+		return new Delimiter(delimiter.getBytes(StandardCharsets.ISO_8859_1), maxLength);
+	}
+
+	public static class Delimiter extends Framer {
+		private final byte[] delimiter;
+		private final int maxLength;
+
+		public Delimiter(byte[] delimiter, int maxLength) {
+			if (delimiter.length == 0)
+				throw new IllegalArgumentException("Empty delimiter");
+			this.delimiter = delimiter.clone();
+			this.maxLength = maxLength;
+		}
+
+		@Override
+		public int scan(ByteBuffer buf, int start, int end, int[] payload) {
+			int last = Math.min(end, start + maxLength) - delimiter.length;
+			int i = find(buf, start, last);
+			if (i >= 0) {
+				payload[0] = start;
+				payload[1] = i - start;
+				return i + delimiter.length - start;
+			}
+			if (end - start < maxLength)
+				return NEED_MORE;
+			//Grande demais: descarta até o fim do próximo delimitador, sem perder os pacotes depois dele.
+			//Sem delimitador, só o que não pode conter o início de um
+			i = find(buf, last + 1, end - delimiter.length);
+			if (i >= 0)
+				return -(i + delimiter.length - start);
+			return -Math.max(1, last + 1 - start);
+		}
+
+		/** Posição do delimitador que começa entre from e to, inclusive, ou -1 */
+		private int find(ByteBuffer buf, int from, int to) {
+			byte first = delimiter[0];
+			search:
+			for (int i=from; i<=to; i++) {
+				if (buf.get(i) != first)
+					continue;
+				for (int j=1; j<delimiter.length; j++) {
+					if (buf.get(i + j) != delimiter[j])
+						continue search;
+				}
+				return i;
+			}
+			return -1;
+		}
+
+		@Override
+		public int getMaxLength() {
+			return maxLength;
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	public static Framer fixed(int length) {
+		return new Fixed(length);
+	}
+
+	public static class Fixed extends Framer {
+		private final int length;
+
+		public Fixed(int length) {
+			if (length < 1)
+				throw new IllegalArgumentException("Invalid length: " + length);
+			this.length = length;
+		}
+
+		@Override
+		public int scan(ByteBuffer buf, int start, int end, int[] payload) {
+			if (end - start < length)
+				return NEED_MORE;
+			payload[0] = start;
+			payload[1] = length;
+			return length;
+		}
+
+		@Override
+		public int getMaxLength() {
+			return length;
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Tamanho do conteúdo em prefixSize (1, 2 ou 4) bytes, seguido do conteúdo */
+	public static Framer lengthPrefixed(int prefixSize, ByteOrder order, int maxLength) {
+		return new LengthPrefixed(prefixSize, order, maxLength);
+	}
+
+	public static class LengthPrefixed extends Framer {
+		private final int prefixSize;
+		private final boolean bigEndian;
+		private final int maxLength;
+
+		public LengthPrefixed(int prefixSize, ByteOrder order, int maxLength) {
+			if (prefixSize != 1 && prefixSize != 2 && prefixSize != 4)
+				throw new IllegalArgumentException("Invalid prefix size: " + prefixSize);
+			this.prefixSize = prefixSize;
+			this.bigEndian = order == ByteOrder.BIG_ENDIAN;
+			this.maxLength = maxLength;
+		}
+
+		@Override
+		public int scan(ByteBuffer buf, int start, int end, int[] payload) {
+			if (end - start < prefixSize)
+				return NEED_MORE;
+			long length = 0;
+			for (int i=0; i<prefixSize; i++) {
+				int b = buf.get(start + (bigEndian ? i : prefixSize - 1 - i)) & 0xFF;
+				length = (length << 8) | b;
+			}
+			//Tamanho impossível: provavelmente fora de sincronia, avança um byte
+			if (length > maxLength - prefixSize)
+				return -1;
+			int total = prefixSize + (int)length;
+			if (end - start < total)
+				return NEED_MORE;
+			payload[0] = start + prefixSize;
+			payload[1] = (int)length;
+			return total;
+		}
+
+		@Override
+		public int getMaxLength() {
+			return maxLength;
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	public static enum Checksum {
+		NONE,
+		/** XOR (LRC) dos bytes depois do STX até o ETX, inclusive */
+		XOR,
+		/** Soma, módulo 256, dos mesmos bytes */
+		SUM
+	}
+
+	public static final int STX = 0x02;
+	public static final int ETX = 0x03;
+
+	/**
+	 * STX [tamanho] conteúdo ETX [checksum], ex: leitores de cartão.
+	 * Com lengthField, um byte com o tamanho do conteúdo vem depois do STX.
+	 */
+	public static Framer stxEtx(boolean lengthField, Checksum checksum, int maxLength) {
+		return new StxEtx(lengthField, checksum, maxLength);
+	}
+
+	public static class StxEtx extends Framer {
+		private final boolean lengthField;
+		private final Checksum checksum;
+		private final int maxLength;
+
+		public StxEtx(boolean lengthField, Checksum checksum, int maxLength) {
+			this.lengthField = lengthField;
+			this.checksum = checksum;
+			this.maxLength = maxLength;
+		}
+
+		@Override
+		public int scan(ByteBuffer buf, int start, int end, int[] payload) {
+			if (buf.get(start) != STX) {
+				//Lixo antes do STX
+				for (int i=start+1; i<end; i++) {
+					if (buf.get(i) == STX)
+						return -(i - start);
+				}
+				return -(end - start);
+			}
+			int checksumSize = checksum == Checksum.NONE ? 0 : 1;
+			int etx;
+			if (lengthField) {
+				if (end - start < 2)
+					return NEED_MORE;
+				etx = start + 2 + (buf.get(start + 1) & 0xFF);
+				if (etx + 1 + checksumSize - start > maxLength)
+					return -1;
+				if (etx + 1 + checksumSize > end)
+					return NEED_MORE;
+				if (buf.get(etx) != ETX)
+					return -1;
+			} else {
+				etx = -1;
+				int last = Math.min(end, start + maxLength - checksumSize);
+				for (int i=start+1; i<last; i++) {
+					if (buf.get(i) == ETX) {
+						etx = i;
+						break;
+					}
+				}
+				if (etx < 0)
+					return end - start >= maxLength ? -1 : NEED_MORE;
+				if (etx + 1 + checksumSize > end)
+					return NEED_MORE;
+			}
+			if (checksumSize > 0) {
+				int sum = 0;
+				for (int i=start+1; i<=etx; i++) {
+					if (checksum == Checksum.XOR)
+						sum ^= buf.get(i);
+					else
+						sum += buf.get(i);
+				}
+				if ((byte)sum != buf.get(etx + 1))
+					return -1;
+			}
+			payload[0] = start + (lengthField ? 2 : 1);
+			payload[1] = etx - payload[0];
+			return etx + 1 + checksumSize - start;
+		}
+
+		@Override
+		public int getMaxLength() {
+			return maxLength;
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package veridis.embedded.rex.rs232;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.Util;
+import veridis.embedded.rex.RexProtocol.BufferHandler;
+import veridis.embedded.rex.messages.MsgRS232;
+
+/**
+ * Remonta os pacotes das portas seriais, independente de como o Rex dividiu os dados (SetMode packSize).
+ *
+ * Substitui MsgRS232.Write: rex.addMessageHandler(new SerialFramer(listener, 500).setFramer(0, Framer.crlf(256)))
+ *
+ * Pacotes que chegam inteiros numa mensagem são entregues como fatias do próprio buffer de recepção.
+ * Só o resto incompleto é guardado no buffer da porta, e os pacotes montados ali também são fatias dele:
+ * nenhum byte[] é criado. Um pacote incompleto por mais de partialTimeout ms é descartado.
+ *
+ * Portas sem framer recebem cada mensagem como um pacote.
+ */
+public class SerialFramer extends BufferHandler {
+	public static interface Listener {
+		/** O pacote fica entre position e limit, e só é válido durante a chamada */
+		public abstract void packetReceived(RexProtocol comm, int port, ByteBuffer packet) throws IOException;
+
+		/** Bytes descartados: lixo entre pacotes, checksum errado, pacote grande demais ou incompleto por muito tempo */
+		public abstract void discarded(RexProtocol comm, int port, ByteBuffer data, String reason);
+	}
+
+	public static final int MAX_PORTS = 16;
+	public static final int DEFAULT_BUFFER = 4096;
+
+	/** Dados pendentes de uma porta de uma conexão */
+	private static class Port {
+		final ByteBuffer buf;
+		/** System.nanoTime() em que o pacote incompleto começou */
+		long partialSince;
+
+		Port(int size) {
+			buf = ByteBuffer.allocate(size);
+		}
+	}
+
+	private final Listener listener;
+	private final long partialTimeout;
+	private final Framer[] framers = new Framer[MAX_PORTS];
+	private final Map<RexProtocol, Port[]> ports = new ConcurrentHashMap<RexProtocol, Port[]>();
+	private final ScheduledExecutorService timer;
+	private final AtomicLong packets = new AtomicLong();
+	private final AtomicLong discardedBytes = new AtomicLong();
+
+	/**
+	 * @param partialTimeout Tempo máximo, em ms, de um pacote incompleto
+	 */
+	public SerialFramer(Listener listener, long partialTimeout) {
+		super(MsgRS232.COMMAND_RS232_WRITE);
+		this.listener = listener;
+		this.partialTimeout = TimeUnit.MILLISECONDS.toNanos(partialTimeout);
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "JA200-RS232-Framer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(10, partialTimeout / 4);
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				expire();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/** Framer da porta, em todas as conexões. null: sem framer */
+	public SerialFramer setFramer(int port, Framer framer) {
+		if (port < 0 || port >= MAX_PORTS)
+			throw new IllegalArgumentException("Invalid port: " + port);
+		if (framer != null && framer.getMaxLength() > DEFAULT_BUFFER)
+			throw new IllegalArgumentException("Packets larger than " + DEFAULT_BUFFER + " bytes");
+		framers[port] = framer;
+		return this;
+	}
+
+	/** Esquece os dados pendentes da conexão. Chamar quando ela fecha */
+	public void remove(RexProtocol comm) {
+		ports.remove(comm);
+	}
+
+	public void close() {
+		timer.shutdownNow();
+		ports.clear();
+	}
+
+	public long getPacketCount() {
+		return packets.get();
+	}
+
+	public long getDiscardedBytes() {
+		return discardedBytes.get();
+	}
+
+	private Port getPort(RexProtocol comm, int port) {
+		Port[] list = ports.get(comm);
+		if (list == null) {
+			list = new Port[MAX_PORTS];
+			Port[] previous = ((ConcurrentHashMap<RexProtocol, Port[]>)ports).putIfAbsent(comm, list);
+			if (previous != null)
+				list = previous;
+		}
+		synchronized (list) {
+			if (list[port] == null)
+				list[port] = new Port(DEFAULT_BUFFER);
+			return list[port];
+		}
+	}
+
+	@Override
+	public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+		int portNumber = in.getInt();
+		int start = in.position();
+		int end = start + inLength - 4;
+		Framer framer = portNumber >= 0 && portNumber < MAX_PORTS ? framers[portNumber] : null;
+		if (framer == null) {
+			ByteBuffer packet = in.asReadOnlyBuffer();
+			packet.limit(end).position(start);
+			packets.incrementAndGet();
+			listener.packetReceived(comm, portNumber, packet);
+			return;
+		}
+
+		Port port = getPort(comm, portNumber);
+		synchronized (port) {
+			ByteBuffer buf = port.buf;
+			int pos = start;
+			while (buf.position() > 0 && pos < end) {
+				//Pacote pendente: copia só o que cabe no buffer da porta
+				int pending = buf.position();
+				int n = Math.min(buf.remaining(), end - pos);
+				if (n == 0) {
+					discard(comm, portNumber, buf, 0, pending, "buffer overflow");
+					buf.clear();
+					break;
+				}
+				ByteBuffer data = in.duplicate();
+				data.limit(pos + n).position(pos);
+				buf.put(data);
+				pos += n;
+				int done = frames(comm, portNumber, framer, buf, 0, buf.position());
+				if (done >= pending) {
+					//O pendente acabou: o que foi copiado depois dele volta a ser lido direto de in
+					pos -= buf.position() - done;
+					buf.clear();
+				} else if (done > 0) {
+					compact(buf, done);
+					port.partialSince = System.nanoTime();
+				}
+			}
+			if (buf.position() == 0 && pos < end) {
+				//Nada pendente: os pacotes completos saem direto do buffer de recepção
+				ByteBuffer view = in.asReadOnlyBuffer();
+				pos = frames(comm, portNumber, framer, view, pos, end);
+				if (pos < end) {
+					if (end - pos > buf.capacity()) {
+						discard(comm, portNumber, view, pos, end, "buffer overflow");
+					} else {
+						view.limit(end).position(pos);
+						buf.put(view);
+						port.partialSince = System.nanoTime();
+					}
+				}
+			}
+		}
+	}
+
+	/** Move para o início só o resto incompleto, depois de done */
+	private static void compact(ByteBuffer buf, int done) {
+		int pending = buf.position() - done;
+		buf.limit(buf.position()).position(done);
+		buf.compact();
+		buf.position(pending);
+		buf.limit(buf.capacity());
+	}
+
+	/** Entrega os pacotes completos entre start e end. Devolve o início do que sobrou */
+	private int frames(RexProtocol comm, int portNumber, Framer framer, ByteBuffer buf, int start, int end) throws IOException {
+		int[] payload = new int[2];
+		ByteBuffer view = buf.asReadOnlyBuffer();
+		int pos = start;
+		while (pos < end) {
+			int n = framer.scan(buf, pos, end, payload);
+			if (n == Framer.NEED_MORE)
+				break;
+			if (n < 0) {
+				discard(comm, portNumber, buf, pos, pos - n, "invalid data");
+				pos -= n;
+				continue;
+			}
+			view.limit(payload[0] + payload[1]).position(payload[0]);
+			packets.incrementAndGet();
+			try {
+				listener.packetReceived(comm, portNumber, view);
+			} finally {
+				view.clear();
+			}
+			pos += n;
+		}
+		return pos;
+	}
+
+	private void discard(RexProtocol comm, int portNumber, ByteBuffer buf, int start, int end, String reason) {
+		discardedBytes.addAndGet(end - start);
+		ByteBuffer data = buf.asReadOnlyBuffer();
+		data.limit(end).position(start);
+		try {
+			listener.discarded(comm, portNumber, data, reason);
+		} catch (Exception e) {
+			System.err.println(Util.ERR_PREFIX + "RS232 discard listener failed: " + e);
+		}
+	}
+
+	/** Descarta os pacotes incompletos há mais de partialTimeout */
+	private void expire() {
+		long now = System.nanoTime();
+		Iterator<Map.Entry<RexProtocol, Port[]>> it = ports.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<RexProtocol, Port[]> entry = it.next();
+			RexProtocol comm = entry.getKey();
+			if (comm instanceof RexProtocol.Connection && ((RexProtocol.Connection)comm).isClosed()) {
+				it.remove();
+				continue;
+			}
+			Port[] list = entry.getValue();
+			for (int i=0; i<list.length; i++) {
+				Port port;
+				synchronized (list) {
+					port = list[i];
+				}
+				if (port == null)
+					continue;
+				synchronized (port) {
+					if (port.buf.position() > 0 && now - port.partialSince > partialTimeout) {
+						discard(comm, i, port.buf, 0, port.buf.position(), "partial packet timeout");
+						port.buf.clear();
+					}
+				}
+			}
+		}
+	}
+}
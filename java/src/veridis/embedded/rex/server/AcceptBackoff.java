@@ -0,0 +1,32 @@
+package veridis.embedded.rex.server;
+
+/**
+ * Espera entre tentativas de accept que falharam (ex: EMFILE, que se repete até alguém fechar um socket),
+ * dobrando a cada falha até MAX. Uma instância por loop de accept, usada apenas na thread dele.
+ */
+public class AcceptBackoff {
+	public static final long MIN = 100;
+	public static final long MAX = 5000;
+
+	private long delay = MIN;
+
+	/**
+	 * Espera antes de repetir o accept.
+	 * @return false se a thread foi interrompida: o loop deve parar (o interrupt continua marcado)
+	 */
+	public boolean pause() {
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		delay = Math.min(delay * 2, MAX);
+		return true;
+	}
+
+	/** Depois de um accept bem sucedido */
+	public void reset() {
+		delay = MIN;
+	}
+}
@@ -0,0 +1,223 @@
+package veridis.embedded.rex.server;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.Util;
+import veridis.embedded.rex.messages.MsgBasic.DiscoveryRecord;
+
+/**
+ * Controla o ritmo das reconexões depois que o servidor reinicia.
+ *
+ * Sem isso, o próximo Discovery de cada Rex gera um ConnectionRequest imediato, e todas as sessões
+ * inicializam ao mesmo tempo. Aqui os Discovery entram em uma fila de prioridade (um por MAC),
+ * e os ConnectionRequests saem de um token bucket: no máximo rate por segundo, com rajadas de até burst.
+ * Além disso, no máximo maxInitializing sessões podem estar em connectionStarted ao mesmo tempo.
+ */
+public class AdmissionController {
+	/** Menor valor = maior prioridade. Ex: portas antes de displays */
+	public static interface Prioritizer {
+		public abstract int priority(DiscoveryRecord record);
+	}
+
+	/** Envia o ConnectionRequest para o Rex admitido */
+	public static interface Admitter {
+		public abstract void admit(RexProtocol comm, DiscoveryRecord record);
+	}
+
+	public static final Prioritizer NO_PRIORITY = new Prioritizer() {
+		@Override
+		public int priority(DiscoveryRecord record) {
+			return 0;
+		}
+	};
+
+	private static class Request implements Comparable<Request> {
+		final long mac;
+		final long sequence;
+		int priority;
+		RexProtocol comm;
+		final DiscoveryRecord record = new DiscoveryRecord();
+
+		Request(long mac, long sequence) {
+			this.mac = mac;
+			this.sequence = sequence;
+		}
+		@Override
+		public int compareTo(Request o) {
+			if (priority != o.priority)
+				return priority < o.priority ? -1 : 1;
+			return Long.compare(sequence, o.sequence);
+		}
+	}
+
+	private final Admitter admitter;
+	private final double rate;
+	private final double burst;
+	private final long cooldown;
+	private final Semaphore initializing;
+	private final int maxInitializing;
+	private volatile Prioritizer prioritizer = NO_PRIORITY;
+
+	private final PriorityQueue<Request> queue = new PriorityQueue<Request>();
+	private final Map<Long, Request> pending = new HashMap<Long, Request>();
+	/** MAC => System.nanoTime() da admissão, para ignorar os Discovery repetidos enquanto o Rex conecta */
+	private final Map<Long, Long> admitted = new HashMap<Long, Long>();
+	private final ScheduledExecutorService timer;
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+	private long sequence;
+	private long admittedCount;
+	private long duplicateCount;
+	/** Tamanho de admitted em que as entradas vencidas são removidas */
+	private int expireAt = 1024;
+
+	/**
+	 * @param rate ConnectionRequests por segundo
+	 * @param burst Máximo de ConnectionRequests de uma vez
+	 * @param maxInitializing Sessões inicializando ao mesmo tempo
+	 * @param cooldown Tempo, em ms, em que novos Discovery do mesmo MAC são ignorados depois da admissão
+	 */
+	public AdmissionController(Admitter admitter, double rate, int burst, int maxInitializing, long cooldown) {
+		if (rate <= 0 || burst < 1 || maxInitializing < 1)
+			throw new IllegalArgumentException("Invalid admission limits");
+		this.admitter = admitter;
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.cooldown = TimeUnit.MILLISECONDS.toNanos(cooldown);
+		this.maxInitializing = maxInitializing;
+		this.initializing = new Semaphore(maxInitializing, true);
+
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "JA200-Admission");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1, (long)(1000000 / rate));
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, period, period, TimeUnit.MICROSECONDS);
+	}
+
+	public void setPrioritizer(Prioritizer prioritizer) {
+		this.prioritizer = prioritizer == null ? NO_PRIORITY : prioritizer;
+	}
+
+	/**
+	 * Coloca o Rex na fila. Um Discovery de um MAC que já está na fila só atualiza os dados.
+	 * O record é copiado, então pode ser reaproveitado pelo chamador.
+	 */
+	public void offer(RexProtocol comm, DiscoveryRecord record) {
+		int priority = prioritizer.priority(record);
+		synchronized (this) {
+			Long mac = record.mac;
+			Long when = admitted.get(mac);
+			if (when != null) {
+				if (System.nanoTime() - when < cooldown) {
+					duplicateCount++;
+					return;
+				}
+				admitted.remove(mac);
+			}
+			Request request = pending.get(mac);
+			if (request == null) {
+				request = new Request(record.mac, sequence++);
+				request.priority = priority;
+				pending.put(mac, request);
+				queue.add(request);
+			} else {
+				duplicateCount++;
+				if (request.priority != priority) {
+					queue.remove(request);
+					request.priority = priority;
+					queue.add(request);
+				}
+			}
+			request.comm = comm;
+			request.record.copyFrom(record);
+		}
+		drain();
+	}
+
+	/** Esquece o MAC: o próximo Discovery dele é admitido sem esperar o cooldown. Ex: ao desconectar */
+	public synchronized void forget(long mac) {
+		admitted.remove(mac);
+	}
+
+	private void drain() {
+		while (true) {
+			Request request;
+			synchronized (this) {
+				long now = System.nanoTime();
+				tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+				lastRefill = now;
+				if (tokens < 1 || queue.isEmpty())
+					return;
+				tokens -= 1;
+				request = queue.poll();
+				pending.remove(request.mac);
+				admitted.put(request.mac, now);
+				admittedCount++;
+				if (admitted.size() >= expireAt) {
+					expireAdmitted(now);
+					expireAt = Math.max(1024, 2 * admitted.size());
+				}
+			}
+			try {
+				admitter.admit(request.comm, request.record);
+			} catch (RuntimeException e) {
+				System.err.println(Util.ERR_PREFIX + "Admission of " + request.record.getId() + " failed: " + e);
+			}
+		}
+	}
+
+	private void expireAdmitted(long now) {
+		Iterator<Long> it = admitted.values().iterator();
+		while (it.hasNext()) {
+			if (now - it.next() >= cooldown)
+				it.remove();
+		}
+	}
+
+	/** Bloqueia até haver vaga para inicializar uma sessão. Chamar endSessionInit() ao terminar */
+	public void beginSessionInit() throws InterruptedException {
+		initializing.acquire();
+	}
+
+	public void endSessionInit() {
+		initializing.release();
+	}
+
+	public synchronized int getQueueSize() {
+		return queue.size();
+	}
+	public synchronized long getAdmittedCount() {
+		return admittedCount;
+	}
+	/** Discovery ignorados por já estarem na fila ou terem sido admitidos há pouco */
+	public synchronized long getDuplicateCount() {
+		return duplicateCount;
+	}
+	public int getInitializingCount() {
+		return maxInitializing - initializing.availablePermits();
+	}
+
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+}
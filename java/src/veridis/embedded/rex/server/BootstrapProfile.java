@@ -0,0 +1,185 @@
+package veridis.embedded.rex.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import veridis.embedded.rex.RexFrame;
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.codec.Codecs;
+import veridis.embedded.rex.codec.Messages;
+import veridis.embedded.rex.codec.ResponseCorrelator;
+import veridis.embedded.rex.messages.MsgBasic;
+import veridis.embedded.rex.messages.MsgDisplay;
+import veridis.embedded.rex.messages.MsgIO;
+import veridis.embedded.rex.messages.MsgRS232;
+
+/**
+ * Inicialização de uma sessão, descrita de forma declarativa:
+ *
+ *   BootstrapProfile profile = new BootstrapProfile()
+ *       .requestId()
+ *       .displayInit(16, 2, false)
+ *       .displayWrite("Bem-vindo", 0, 0)
+ *       .rs232Open(0, 9600, MsgRS232.RS232_PARITY_NONE, 8, 1, MsgRS232.RS232_FLOW_CONTROL_NONE);
+ *
+ * Os comandos são codificados uma única vez e compartilhados por todas as conexões.
+ * run() enfileira todos de uma vez, sem esperar nenhuma resposta, e as respostas (ID, Features)
+ * são associadas depois pelo ResponseCorrelator: a sessão fica pronta em cerca de um RTT.
+ */
+public class BootstrapProfile {
+	/** Escolhe o perfil de cada Rex, pelo ID anunciado no Discovery (null se desconhecido) */
+	public static interface Selector {
+		public abstract BootstrapProfile select(String discoveredId);
+	}
+
+	/** Respostas recebidas durante a inicialização */
+	public static class Result {
+		private final String id;
+		private final Messages.FeaturesResponse features;
+
+		Result(String id, Messages.FeaturesResponse features) {
+			this.id = id;
+			this.features = features;
+		}
+		/** null se o perfil não pede o ID */
+		public String getId() {
+			return id;
+		}
+		/** null se o perfil não pede as features */
+		public Messages.FeaturesResponse getFeatures() {
+			return features;
+		}
+	}
+
+	private static final RexFrame FEATURES_REQUEST = RexFrame.encode(MsgBasic.COMMAND_FEATURES_REQUEST);
+	private static final RexFrame ID_REQUEST = RexFrame.encode(MsgBasic.COMMAND_ID_REQUEST);
+
+	private boolean requestFeatures;
+	private boolean requestId;
+	private final List<RexFrame> frames = new ArrayList<RexFrame>();
+
+	public BootstrapProfile requestFeatures() {
+		requestFeatures = true;
+		return this;
+	}
+
+	public BootstrapProfile requestId() {
+		requestId = true;
+		return this;
+	}
+
+	public BootstrapProfile displayInit(final int width, final int height, final boolean font5x10) throws IOException {
+		return add(new RexFrame.Sender() {
+			@Override
+			public void send(RexProtocol comm) throws IOException {
+				MsgDisplay.Initialize.send(comm, width, height, font5x10);
+			}
+		});
+	}
+
+	public BootstrapProfile displayClear() throws IOException {
+		return add(new RexFrame.Sender() {
+			@Override
+			public void send(RexProtocol comm) throws IOException {
+				MsgDisplay.Clear.send(comm);
+			}
+		});
+	}
+
+	/** line e col -1: na posição atual do cursor */
+	public BootstrapProfile displayWrite(final String message, final int line, final int col) throws IOException {
+		return add(new RexFrame.Sender() {
+			@Override
+			public void send(RexProtocol comm) throws IOException {
+				MsgDisplay.Write.send(comm, message, line, col);
+			}
+		});
+	}
+
+	public BootstrapProfile rs232Open(final int port, final int baud, final int parity, final int bits, final int stopBits, final int flowControl) throws IOException {
+		return add(new RexFrame.Sender() {
+			@Override
+			public void send(RexProtocol comm) throws IOException {
+				MsgRS232.Open.send(comm, port, baud, parity, bits, stopBits, flowControl);
+			}
+		});
+	}
+
+	public BootstrapProfile rs232Mode(final int port, final boolean asynchronous, final boolean binary, final int packSize) throws IOException {
+		return add(new RexFrame.Sender() {
+			@Override
+			public void send(RexProtocol comm) throws IOException {
+				MsgRS232.SetMode.send(comm, port, asynchronous, binary, packSize);
+			}
+		});
+	}
+
+	public BootstrapProfile output(final int type, final int port, final int timeOn, final int timeOff, final int repeats) throws IOException {
+		return add(new RexFrame.Sender() {
+			@Override
+			public void send(RexProtocol comm) throws IOException {
+				MsgIO.DigitalOutput.send(comm, type, port, timeOn, timeOff, repeats);
+			}
+		});
+	}
+
+	/** Qualquer outra sequência de comandos */
+	public BootstrapProfile add(RexFrame.Sender sender) throws IOException {
+		frames.addAll(RexFrame.record(sender));
+		return this;
+	}
+
+	/**
+	 * Envia tudo de uma vez. O future termina quando todos os comandos foram escritos
+	 * e as respostas pedidas chegaram, ou falha depois de timeout ms.
+	 */
+	public CompletableFuture<Result> run(RexProtocol.Connection conn, ResponseCorrelator responses, long timeout) {
+		return run(conn, responses, timeout, null);
+	}
+
+	/**
+	 * @param knownFeatures Features já conhecidas do Rex (ex: de um {@link FleetSnapshot}).
+	 * Se não for null, o FeaturesRequest não é enviado e o resultado traz essas features
+	 */
+	public CompletableFuture<Result> run(RexProtocol.Connection conn, ResponseCorrelator responses, long timeout, Messages.FeaturesResponse knownFeatures) {
+		boolean requestFeatures = this.requestFeatures && knownFeatures == null;
+		//As respostas são esperadas antes de enviar os pedidos
+		final CompletableFuture<Messages.FeaturesResponse> features = requestFeatures ? responses.expect(conn, Codecs.FEATURES_RESPONSE) : CompletableFuture.completedFuture(this.requestFeatures ? knownFeatures : null);
+		final CompletableFuture<Messages.IdResponse> id = requestId ? responses.expect(conn, Codecs.ID_RESPONSE) : CompletableFuture.completedFuture((Messages.IdResponse)null);
+
+		List<CompletableFuture<?>> all = new ArrayList<CompletableFuture<?>>();
+		all.add(features);
+		all.add(id);
+		if (requestFeatures)
+			all.add(conn.submit(FEATURES_REQUEST));
+		if (requestId)
+			all.add(conn.submit(ID_REQUEST));
+		for (RexFrame frame : frames)
+			all.add(conn.submit(frame));
+
+		CompletableFuture<Void> done = CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[all.size()]))
+			.orTimeout(timeout, TimeUnit.MILLISECONDS);
+		done.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable error) {
+				//Uma resposta ainda esperada consumiria a próxima IdResponse/FeaturesResponse da conexão
+				if (error != null) {
+					id.completeExceptionally(error);
+					features.completeExceptionally(error);
+				}
+			}
+		});
+		return done.thenApply(new Function<Void, Result>() {
+			@Override
+			public Result apply(Void v) {
+				Messages.IdResponse idResponse = id.join();
+				return new Result(idResponse == null ? null : idResponse.id, features.join());
+			}
+		});
+	}
+}
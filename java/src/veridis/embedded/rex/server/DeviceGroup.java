@@ -0,0 +1,58 @@
+package veridis.embedded.rex.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import veridis.embedded.rex.RexFrame;
+import veridis.embedded.rex.RexProtocol.Connection;
+
+/**
+ * Conjunto de conexões que recebem os mesmos comandos.
+ *
+ * O comando é codificado uma única vez e o mesmo buffer é enfileirado em cada conexão,
+ * sem bloquear. Cada dispositivo tem o seu próprio Future, então um Rex lento
+ * não atrasa os demais.
+ */
+public class DeviceGroup {
+	private final List<Connection> members;
+
+	public DeviceGroup(Collection<Connection> members) {
+		this.members = Collections.unmodifiableList(new ArrayList<Connection>(members));
+	}
+
+	public List<Connection> getMembers() {
+		return members;
+	}
+
+	public int size() {
+		return members.size();
+	}
+
+	public Map<Connection, Future<Void>> send(int cmd, byte[] ... data) {
+		return send(RexFrame.encode(cmd, data));
+	}
+
+	/** Ex: group.send(new RexFrame.Sender() { ... MsgDisplay.Write.send(comm, "Hello") ... }) */
+	public Map<Connection, Future<Void>> send(RexFrame.Sender sender) throws IOException {
+		List<RexFrame> frames = RexFrame.record(sender);
+		return send(frames.toArray(new RexFrame[frames.size()]));
+	}
+
+	/** O Future de cada dispositivo completa quando a última mensagem é escrita */
+	public Map<Connection, Future<Void>> send(RexFrame ... frames) {
+		Map<Connection, Future<Void>> results = new LinkedHashMap<Connection, Future<Void>>();
+		for (Connection conn : members) {
+			Future<Void> result = null;
+			for (RexFrame frame : frames)
+				result = conn.submit(frame);
+			results.put(conn, result);
+		}
+		return results;
+	}
+}
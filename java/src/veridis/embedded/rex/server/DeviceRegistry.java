@@ -0,0 +1,190 @@
+package veridis.embedded.rex.server;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import veridis.embedded.rex.Util;
+import veridis.embedded.rex.RexProtocol.Connection;
+import veridis.embedded.rex.codec.Messages;
+
+/**
+ * Dispositivos conectados, com tags definidas pela aplicação (ex: "andar-3", "portas")
+ * e os dados de rede anunciados no Discovery.
+ */
+public class DeviceRegistry {
+	public static class Device {
+		public final Connection conn;
+		public final String id;
+		private final Set<String> tags = new CopyOnWriteArraySet<String>();
+
+		Device(Connection conn, String id) {
+			this.conn = conn;
+			this.id = id;
+		}
+		public Set<String> getTags() {
+			return tags;
+		}
+	}
+
+	/** O que se sabe de um Rex, mesmo desconectado: rede do último Discovery e features */
+	public static class Known {
+		public final String id;
+		public final long mac;
+		/** ip e mask como em {@link veridis.embedded.rex.messages.MsgBasic.DiscoveryRecord} */
+		public final int ip;
+		public final int mask;
+		/** null se ainda não foram recebidas */
+		public final Messages.FeaturesResponse features;
+		/** System.currentTimeMillis() do último Discovery ou conexão */
+		public final long lastSeen;
+
+		public Known(String id, long mac, int ip, int mask, Messages.FeaturesResponse features, long lastSeen) {
+			this.id = id;
+			this.mac = mac;
+			this.ip = ip;
+			this.mask = mask;
+			this.features = features;
+			this.lastSeen = lastSeen;
+		}
+	}
+
+	private final Map<Connection, Device> devices = new ConcurrentHashMap<Connection, Device>();
+	/** ID => Known, conforme o último Discovery */
+	private final Map<String, Known> networks = new ConcurrentHashMap<String, Known>();
+	/** ip => ID, conforme o último Discovery */
+	private final Map<Integer, String> ids = new ConcurrentHashMap<Integer, String>();
+
+	public Device register(Connection conn, String id) {
+		Device device = new Device(conn, id);
+		devices.put(conn, device);
+		return device;
+	}
+	public void unregister(Connection conn) {
+		devices.remove(conn);
+	}
+	public Device get(Connection conn) {
+		return devices.get(conn);
+	}
+
+	/** ip e mask como em {@link veridis.embedded.rex.messages.MsgBasic.DiscoveryRecord} */
+	public void discovered(String id, int ip, int mask) {
+		Known net = networks.get(id);
+		discovered(id, net != null ? net.mac : 0, ip, mask);
+	}
+
+	public void discovered(String id, long mac, int ip, int mask) {
+		Known net = networks.get(id);
+		long now = System.currentTimeMillis();
+		//lastSeen só é atualizado a cada segundo, para não alocar a cada Discovery
+		if (net == null || net.ip != ip || net.mask != mask || net.mac != mac || now - net.lastSeen > 1000)
+			networks.put(id, new Known(id, mac, ip, mask, net != null ? net.features : null, now));
+		if (!id.equals(ids.get(ip)))
+			ids.put(ip, id);
+	}
+
+	/** Features do Rex, para não precisar pedir de novo na próxima conexão */
+	public void setFeatures(String id, Messages.FeaturesResponse features) {
+		Known net = networks.get(id);
+		networks.put(id, new Known(id, net != null ? net.mac : 0, net != null ? net.ip : 0, net != null ? net.mask : 0, features, System.currentTimeMillis()));
+	}
+
+	/** Features já conhecidas do Rex, ou null */
+	public Messages.FeaturesResponse getFeatures(String id) {
+		Known net = id != null ? networks.get(id) : null;
+		return net != null ? net.features : null;
+	}
+
+	/** MAC do último Discovery do Rex, ou 0 */
+	public long getMac(String id) {
+		Known net = id != null ? networks.get(id) : null;
+		return net != null ? net.mac : 0;
+	}
+
+	/** Tudo o que se sabe, ex: para gravar um {@link FleetSnapshot} */
+	public Collection<Known> getKnown() {
+		return new ArrayList<Known>(networks.values());
+	}
+
+	/** Carrega o que se sabia antes de reiniciar. Não sobrescreve informações mais novas */
+	public void prewarm(Collection<Known> known) {
+		for (Known k : known) {
+			Known current = networks.get(k.id);
+			if (current != null && current.lastSeen >= k.lastSeen)
+				continue;
+			networks.put(k.id, k);
+			if (k.ip != 0)
+				ids.put(k.ip, k.id);
+		}
+	}
+	
+	/** ID anunciado no último Discovery vindo desse IP, ou null */
+	public String discoveredId(int ip) {
+		return ids.get(ip);
+	}
+
+	public void tag(Connection conn, String ... tags) {
+		Device device = devices.get(conn);
+		if (device == null) return;
+		for (String tag : tags)
+			device.tags.add(tag);
+	}
+	public void untag(Connection conn, String ... tags) {
+		Device device = devices.get(conn);
+		if (device == null) return;
+		for (String tag : tags)
+			device.tags.remove(tag);
+	}
+
+	public DeviceGroup all() {
+		return new DeviceGroup(devices.keySet());
+	}
+
+	public DeviceGroup tagged(String tag) {
+		List<Connection> members = new ArrayList<Connection>();
+		for (Device device : devices.values()) {
+			if (device.tags.contains(tag))
+				members.add(device.conn);
+		}
+		return new DeviceGroup(members);
+	}
+
+	public DeviceGroup subnet(byte[] ip, byte[] mask) {
+		return subnet(Util.ipFromBytes(ip), Util.ipFromBytes(mask));
+	}
+	
+	/** Dispositivos cujo IP (do Discovery ou, na falta, da conexão) está na subrede ip/mask */
+	public DeviceGroup subnet(int ip, int mask) {
+		List<Connection> members = new ArrayList<Connection>();
+		for (Device device : devices.values()) {
+			byte[] devIp = getIp(device);
+			if (devIp != null && devIp.length == 4 && (Util.ipFromBytes(devIp) & mask) == (ip & mask))
+				members.add(device.conn);
+		}
+		return new DeviceGroup(members);
+	}
+
+	/** Mesma subrede do dispositivo informado, segundo a máscara anunciada por ele */
+	public DeviceGroup subnetOf(String id) {
+		Known net = networks.get(id);
+		if (net == null)
+			return new DeviceGroup(new ArrayList<Connection>());
+		return subnet(net.ip, net.mask);
+	}
+
+	private byte[] getIp(Device device) {
+		Known net = networks.get(device.id);
+		if (net != null && net.ip != 0)
+			return Util.ipToBytes(net.ip);
+		SocketAddress addr = device.conn.getRemoteAddress();
+		if (addr instanceof InetSocketAddress && ((InetSocketAddress)addr).getAddress() != null)
+			return ((InetSocketAddress)addr).getAddress().getAddress();
+		return null;
+	}
+}
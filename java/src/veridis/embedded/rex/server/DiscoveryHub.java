@@ -0,0 +1,232 @@
+package veridis.embedded.rex.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import veridis.embedded.rex.RexEndpoint;
+import veridis.embedded.rex.RexEventLoop;
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.RexProtocol.BufferHandler;
+import veridis.embedded.rex.RexProtocol.MessageHandler;
+import veridis.embedded.rex.Util;
+import veridis.embedded.rex.messages.MsgBasic;
+import veridis.embedded.rex.messages.MsgBasic.DiscoveryRecord;
+
+/**
+ * Socket UDP de Discovery compartilhado por vários servidores (tenants) na mesma JVM.
+ *
+ * A porta é aberta uma única vez, e cada Discovery é entregue aos handlers do primeiro tenant cuja
+ * {@link Route} aceita o Rex, na ordem de registro. Se nenhuma aceitar, vai para todos os tenants
+ * registrados sem Route. Os tenants respondem pelo mesmo socket (o RexProtocol.UDP recebido nos handlers).
+ *
+ * {@link #shared(int)} devolve a instância da JVM para uma porta; é o que RexServerDiscovery usa.
+ */
+public class DiscoveryHub {
+	/** Quais Rex pertencem a um tenant */
+	public static interface Route {
+		public abstract boolean accepts(DiscoveryRecord record);
+	}
+
+	/** Rex na sub-rede. Ex: subnet("192.168.10.0", 24) */
+	public static Route subnet(String network, int prefix) {
+		byte[] ip;
+		try {
+			ip = InetAddress.getByName(network).getAddress();
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Invalid network: " + network, e);
+		}
+		if (ip.length != 4)
+			throw new IllegalArgumentException("Not an IPv4 network: " + network);
+		return subnet(Util.ipFromBytes(ip), prefix);
+	}
+
+	/** Rex na sub-rede, com o IP no formato de DiscoveryRecord.ip */
+	public static Route subnet(int network, int prefix) {
+		if (prefix < 0 || prefix > 32)
+			throw new IllegalArgumentException("Invalid prefix: " + prefix);
+		final int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+		final int net = network & mask;
+		return new Route() {
+			@Override
+			public boolean accepts(DiscoveryRecord record) {
+				return (record.ip & mask) == net;
+			}
+		};
+	}
+
+	/** Rex com esses MACs, no formato de DiscoveryRecord.mac */
+	public static Route macs(long... macs) {
+		final Set<Long> allowed = new HashSet<Long>();
+		for (long mac : macs)
+			allowed.add(mac);
+		return new Route() {
+			@Override
+			public boolean accepts(DiscoveryRecord record) {
+				return allowed.contains(record.mac);
+			}
+		};
+	}
+
+	/** Rex com esses IDs. Comparados com os bytes de DiscoveryRecord.id, sem criar uma String por Discovery */
+	public static Route ids(String... ids) {
+		final byte[][] allowed = new byte[ids.length][];
+		for (int i=0; i<ids.length; i++)
+			allowed[i] = Util.StringToBytes(ids[i]);
+		return new Route() {
+			@Override
+			public boolean accepts(DiscoveryRecord record) {
+				for (byte[] id : allowed) {
+					if (Arrays.equals(id, record.id))
+						return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	private static final Map<Integer, DiscoveryHub> sharedHubs = new HashMap<Integer, DiscoveryHub>();
+
+	/** Hub da JVM para a porta, criado no primeiro uso */
+	public static DiscoveryHub shared(int port) throws IOException {
+		synchronized (sharedHubs) {
+			DiscoveryHub hub = sharedHubs.get(port);
+			if (hub == null) {
+				hub = new DiscoveryHub(port, null);
+				sharedHubs.put(port, hub);
+			}
+			return hub;
+		}
+	}
+
+	private static class Tenant {
+		final RexEndpoint endpoint;
+		final Route route;
+
+		Tenant(RexEndpoint endpoint, Route route) {
+			this.endpoint = endpoint;
+			this.route = route;
+		}
+	}
+
+	private final RexProtocol.UDP protocol;
+	private final CopyOnWriteArrayList<Tenant> tenants = new CopyOnWriteArrayList<Tenant>();
+	/** Acessados apenas na thread de recepção */
+	private final DiscoveryRecord record = new DiscoveryRecord();
+	private long routed;
+	private long unrouted;
+
+	/**
+	 * @param loop Event loop que recebe os datagramas. null: uma thread própria
+	 */
+	public DiscoveryHub(int port, RexEventLoop loop) throws IOException {
+		RexEndpoint router = new RexEndpoint() {};
+		router.addMessageHandler(new BufferHandler(MsgBasic.COMMAND_DISCOVERY) {
+			@Override
+			public void handle(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+				route(in, inLength, comm);
+			}
+		});
+		this.protocol = new RexProtocol.UDP(router, port);
+		if (loop != null) {
+			protocol.register(loop);
+		} else {
+			Thread threadReceiveDiscovery = new Thread("JA200-Discovery-Receive") {
+				public void run() {
+					try {
+						protocol.handleProtocol();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				};
+			};
+			threadReceiveDiscovery.setDaemon(true);
+			threadReceiveDiscovery.start();
+		}
+	}
+
+	/**
+	 * Passa a entregar ao tenant os Discovery aceitos pela route. null: recebe os que nenhuma Route aceitar.
+	 * Registrar de novo o mesmo tenant troca a Route.
+	 */
+	public void register(RexEndpoint tenant, Route route) {
+		synchronized (tenants) {
+			unregister(tenant);
+			tenants.add(new Tenant(tenant, route));
+		}
+	}
+
+	public void unregister(RexEndpoint tenant) {
+		synchronized (tenants) {
+			for (Tenant t : tenants) {
+				if (t.endpoint == tenant)
+					tenants.remove(t);
+			}
+		}
+	}
+
+	public int getTenantCount() {
+		return tenants.size();
+	}
+
+	/** Socket compartilhado, para enviar ConnectionRequests */
+	public RexProtocol.UDP getProtocol() {
+		return protocol;
+	}
+
+	private void route(ByteBuffer in, int inLength, RexProtocol comm) throws IOException {
+		int start = in.position();
+		record.parse(in);
+		int end = in.limit();
+		boolean delivered = false;
+		for (Tenant tenant : tenants) {
+			if (tenant.route != null && tenant.route.accepts(record)) {
+				deliver(tenant, in, start, end, inLength, comm);
+				delivered = true;
+				break;
+			}
+		}
+		if (!delivered) {
+			for (Tenant tenant : tenants) {
+				if (tenant.route == null) {
+					deliver(tenant, in, start, end, inLength, comm);
+					delivered = true;
+				}
+			}
+		}
+		synchronized (this) {
+			if (delivered)
+				routed++;
+			else
+				unrouted++;
+		}
+	}
+
+	private static void deliver(Tenant tenant, ByteBuffer in, int start, int end, int inLength, RexProtocol comm) {
+		for (MessageHandler handler : tenant.endpoint.getMessageHandlers(MsgBasic.COMMAND_DISCOVERY)) {
+			in.limit(end).position(start);
+			try {
+				handler.handle(in, inLength, comm);
+			} catch (IOException e) {
+				System.err.println(Util.ERR_PREFIX + "Discovery handler failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/** Discovery entregues a algum tenant */
+	public synchronized long getRoutedCount() {
+		return routed;
+	}
+
+	/** Discovery que nenhum tenant aceitou */
+	public synchronized long getUnroutedCount() {
+		return unrouted;
+	}
+}
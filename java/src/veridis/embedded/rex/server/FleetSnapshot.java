@@ -0,0 +1,198 @@
+package veridis.embedded.rex.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import veridis.embedded.rex.Quarantine;
+import veridis.embedded.rex.Util;
+import veridis.embedded.rex.codec.Messages;
+import veridis.embedded.rex.messages.MsgBasic.DiscoveryRecord;
+
+/**
+ * Cópia local do que o servidor sabe da frota, para reiniciar sem esperar os Discovery.
+ *
+ * O arquivo é gravado periodicamente (em um temporário, depois renomeado). Na inicialização,
+ * {@link #restore()} o mapeia em memória, preenche o {@link DeviceRegistry} e manda ConnectionRequests
+ * aos IPs conhecidos, pelo AdmissionController. Com as features já conhecidas, a inicialização
+ * da sessão não envia FeaturesRequest.
+ *
+ * Formato, little-endian: cabeçalho de HEADER bytes ("RXFS", versão, número de registros, CRC32 dos
+ * registros, data da gravação) e registros de RECORD bytes: ID (12), MAC (8), IP (4), máscara (4),
+ * lastSeen (8), flags (4) e FeaturesResponse codificado (40).
+ */
+public class FleetSnapshot {
+	public static final byte[] MAGIC = {'R', 'X', 'F', 'S'};
+	public static final int VERSION = 1;
+	public static final int HEADER = 24;
+	public static final int RECORD = 80;
+	private static final int FLAG_FEATURES = 1;
+	private static final int FEATURES_LENGTH = 40;
+
+	private final RexServer server;
+	private final File file;
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * @param interval Intervalo entre gravações, em ms
+	 */
+	public FleetSnapshot(RexServer server, File file, long interval) {
+		this.server = server;
+		this.file = file;
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "JA200-Fleet-Snapshot");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					save();
+				} catch (IOException e) {
+					System.err.println(Util.ERR_PREFIX + "Fleet snapshot: " + e.getMessage());
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Carrega o arquivo, se existir, e pede a conexão dos Rex conhecidos.
+	 * @return Número de Rex carregados
+	 */
+	public int restore() throws IOException {
+		List<DeviceRegistry.Known> known = read(file);
+		server.getRegistry().prewarm(known);
+
+		RexServerDiscovery discovery = server.getDiscovery();
+		Quarantine quarantine = server.getQuarantine();
+		DiscoveryRecord record = new DiscoveryRecord();
+		for (DeviceRegistry.Known k : known) {
+			//Sem MAC o AdmissionController não tem como evitar pedidos duplicados
+			if (k.ip == 0 || k.mac == 0)
+				continue;
+			if (quarantine != null && quarantine.isQuarantined(k.ip))
+				continue;
+			Util.formatID(k.id, record.id, 0);
+			record.mac = k.mac;
+			record.ip = k.ip;
+			record.mask = k.mask;
+			record.gateway = 0;
+			server.getAdmission().offer(discovery.getHub().getProtocol(), record);
+		}
+		return known.size();
+	}
+
+	/** Grava agora */
+	public void save() throws IOException {
+		write(file, server.getRegistry().getKnown());
+	}
+
+	/** Para as gravações periódicas, e grava uma última vez */
+	public void close() throws IOException {
+		timer.shutdownNow();
+		save();
+	}
+
+	public static void write(File file, Collection<DeviceRegistry.Known> known) throws IOException {
+		ByteBuffer records = ByteBuffer.allocate(known.size() * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+		byte[] id = new byte[Util.ID_LENGTH];
+		for (DeviceRegistry.Known k : known) {
+			Util.formatID(k.id, id, 0);
+			records.put(id);
+			records.putLong(k.mac);
+			records.putInt(k.ip);
+			records.putInt(k.mask);
+			records.putLong(k.lastSeen);
+			records.putInt(k.features != null ? FLAG_FEATURES : 0);
+			int start = records.position();
+			if (k.features != null)
+				k.features.encode(records);
+			records.position(start + FEATURES_LENGTH);
+		}
+		records.flip();
+		CRC32 crc = new CRC32();
+		crc.update(records.duplicate());
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC).putInt(VERSION).putInt(known.size()).putInt((int)crc.getValue()).putLong(System.currentTimeMillis());
+		header.flip();
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (header.hasRemaining() || records.hasRemaining())
+				channel.write(new ByteBuffer[] {header, records});
+			channel.force(true);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Lê o arquivo mapeado em memória. Lista vazia se não existir ou estiver corrompido */
+	public static List<DeviceRegistry.Known> read(File file) throws IOException {
+		List<DeviceRegistry.Known> known = new ArrayList<DeviceRegistry.Known>();
+		if (!file.exists())
+			return known;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER) {
+				System.err.println(Util.ERR_PREFIX + "Fleet snapshot " + file + " is truncated");
+				return known;
+			}
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			byte[] magic = new byte[MAGIC.length];
+			map.get(magic);
+			int version = map.getInt();
+			int count = map.getInt();
+			int crc = map.getInt();
+			map.getLong();
+			if (!Arrays.equals(magic, MAGIC) || version != VERSION || count < 0 || size != HEADER + (long)count * RECORD) {
+				System.err.println(Util.ERR_PREFIX + "Fleet snapshot " + file + " is invalid");
+				return known;
+			}
+			CRC32 check = new CRC32();
+			check.update(map.duplicate());
+			if ((int)check.getValue() != crc) {
+				System.err.println(Util.ERR_PREFIX + "Fleet snapshot " + file + " is corrupted");
+				return known;
+			}
+
+			byte[] id = new byte[Util.ID_LENGTH];
+			for (int i=0; i<count; i++) {
+				map.get(id);
+				long mac = map.getLong();
+				int ip = map.getInt();
+				int mask = map.getInt();
+				long lastSeen = map.getLong();
+				int flags = map.getInt();
+				int start = map.position();
+				Messages.FeaturesResponse features = null;
+				if ((flags & FLAG_FEATURES) != 0) {
+					features = new Messages.FeaturesResponse();
+					features.decode(map);
+				}
+				map.position(start + FEATURES_LENGTH);
+				known.add(new DeviceRegistry.Known(Util.StringFromBytes(id), mac, ip, mask, features, lastSeen));
+			}
+		}
+		return known;
+	}
+}
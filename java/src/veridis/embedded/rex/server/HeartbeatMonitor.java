@@ -0,0 +1,261 @@
+package veridis.embedded.rex.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import veridis.embedded.rex.RexEndpoint;
+import veridis.embedded.rex.RexEventLoop;
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.RexProtocol.Connection;
+import veridis.embedded.rex.Util;
+import veridis.embedded.rex.messages.MsgBasic;
+import veridis.embedded.rex.messages.MsgBasic.FeaturesResponseListener;
+
+/**
+ * Detecta conexões mortas sem depender do keepalive do SO (que leva horas).
+ *
+ * Periodicamente envia um IdRequest para cada conexão e mede o tempo até o IdResponse.
+ * Conexões sem nenhuma mensagem recebida por mais de idleTimeout, ou que não respondem
+ * ao ping em responseTimeout, são fechadas. O Rex volta a mandar Discovery e é reconectado.
+ *
+ * As conexões bloqueantes são verificadas por uma única thread, usando uma roda de timers:
+ * cada conexão fica em um dos WHEEL_SLOTS slots, e a cada tick apenas um slot é visitado.
+ * O ping é apenas enfileirado, então uma conexão travada não bloqueia a roda.
+ *
+ * Uma conexão NioTCP é verificada por um timer no seu próprio event loop (shard), como o resto do
+ * seu I/O; nesse caso o TimeoutListener é chamado na thread do loop.
+ */
+public class HeartbeatMonitor {
+	public static final int WHEEL_SLOTS = 64;
+
+	public static interface TimeoutListener {
+		public abstract void connectionTimedOut(Connection conn, String reason);
+	}
+
+	/** Estatísticas de RTT de um dispositivo, em nanosegundos */
+	public static class LatencyStats {
+		private long count;
+		private long last;
+		private long min = Long.MAX_VALUE;
+		private long max;
+		private long total;
+
+		synchronized void add(long rtt) {
+			count++;
+			last = rtt;
+			total += rtt;
+			if (rtt < min) min = rtt;
+			if (rtt > max) max = rtt;
+		}
+		public synchronized long getCount() {
+			return count;
+		}
+		public synchronized long getLast() {
+			return last;
+		}
+		public synchronized long getMin() {
+			return count == 0 ? 0 : min;
+		}
+		public synchronized long getMax() {
+			return max;
+		}
+		public synchronized long getAverage() {
+			return count == 0 ? 0 : total / count;
+		}
+		@Override
+		public synchronized String toString() {
+			return String.format("rtt last=%.2fms min=%.2fms avg=%.2fms max=%.2fms (%d pings)",
+					last/1e6, getMin()/1e6, getAverage()/1e6, max/1e6, count);
+		}
+	}
+
+	private static class Entry {
+		final Connection conn;
+		final int slot;
+		final LatencyStats stats = new LatencyStats();
+		/** Timer no event loop da conexão NioTCP; null na roda */
+		volatile RexEventLoop.Timer loopTimer;
+		/** System.nanoTime() do ping pendente, 0 se não há ping pendente */
+		volatile long pingSent;
+
+		Entry(Connection conn, int slot) {
+			this.conn = conn;
+			this.slot = slot;
+		}
+	}
+
+	private final long interval;
+	private final long idleTimeout;
+	private final long responseTimeout;
+	private final Map<Connection, Entry> entries = new ConcurrentHashMap<Connection, Entry>();
+	private final List<Set<Entry>> wheel = new ArrayList<Set<Entry>>();
+	private final ScheduledExecutorService timer;
+	private volatile TimeoutListener timeoutListener;
+	private int nextSlot = 0;
+	private int currentSlot = 0;
+
+	/**
+	 * @param interval Intervalo entre pings para cada conexão, em ms
+	 * @param timeout Tempo máximo sem resposta ao ping e sem receber nada, em ms (os dois prazos iguais)
+	 */
+	public HeartbeatMonitor(RexEndpoint rex, long interval, long timeout) {
+		this(rex, interval, timeout, timeout);
+	}
+
+	/**
+	 * @param interval Intervalo entre pings para cada conexão, em ms
+	 * @param idleTimeout Tempo máximo sem receber nenhuma mensagem, em ms
+	 * @param responseTimeout Tempo máximo entre um ping e o IdResponse, em ms
+	 */
+	public HeartbeatMonitor(RexEndpoint rex, long interval, long idleTimeout, long responseTimeout) {
+		this.interval = interval;
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		this.responseTimeout = TimeUnit.MILLISECONDS.toNanos(responseTimeout);
+		for (int i=0; i<WHEEL_SLOTS; i++)
+			wheel.add(Collections.newSetFromMap(new ConcurrentHashMap<Entry, Boolean>()));
+
+		rex.addMessageHandler(new MsgBasic.IdResponse(new FeaturesResponseListener() {
+			@Override
+			public void idReceived(RexProtocol comm, String id) {
+				pong(comm);
+			}
+			@Override
+			public void featuresReceived(RexProtocol comm, int relays, int rs232, int inputs, int leds, int readers, boolean hasKeyboard, boolean hasDisplay, boolean hasBuzzer, boolean hasMP3, int versionRev, int versionSub, int versionMin, int versionMaj) {}
+		}));
+
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "JA200-Heartbeat");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		long tick = Math.max(1, TimeUnit.MILLISECONDS.toMicros(interval) / WHEEL_SLOTS);
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, tick, tick, TimeUnit.MICROSECONDS);
+	}
+
+	public void setTimeoutListener(TimeoutListener timeoutListener) {
+		this.timeoutListener = timeoutListener;
+	}
+
+	public synchronized void add(Connection conn) {
+		if (entries.containsKey(conn)) return;
+		if (conn instanceof RexProtocol.NioTCP) {
+			Entry entry = new Entry(conn, -1);
+			entries.put(conn, entry);
+			scheduleOnLoop(entry, ((RexProtocol.NioTCP)conn).getEventLoop());
+			return;
+		}
+		Entry entry = new Entry(conn, nextSlot);
+		nextSlot = (nextSlot + 1) % WHEEL_SLOTS;
+		entries.put(conn, entry);
+		wheel.get(entry.slot).add(entry);
+	}
+
+	public void remove(Connection conn) {
+		Entry entry = entries.remove(conn);
+		if (entry == null)
+			return;
+		if (entry.slot >= 0)
+			wheel.get(entry.slot).remove(entry);
+		RexEventLoop.Timer loopTimer = entry.loopTimer;
+		if (loopTimer != null)
+			loopTimer.cancel();
+	}
+
+	/** Verifica a conexão a cada interval ms, na thread do loop, até ela sair do monitor */
+	private void scheduleOnLoop(final Entry entry, final RexEventLoop loop) {
+		entry.loopTimer = loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (entries.get(entry.conn) != entry)
+					return;
+				check(entry, System.nanoTime());
+				if (entries.get(entry.conn) == entry)
+					scheduleOnLoop(entry, loop);
+			}
+		}, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public LatencyStats getStats(Connection conn) {
+		Entry entry = entries.get(conn);
+		return entry == null ? null : entry.stats;
+	}
+
+	public Map<Connection, LatencyStats> getStats() {
+		Map<Connection, LatencyStats> stats = new HashMap<Connection, LatencyStats>();
+		for (Entry entry : entries.values())
+			stats.put(entry.conn, entry.stats);
+		return stats;
+	}
+
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+
+	private void pong(RexProtocol comm) {
+		Entry entry = entries.get(comm);
+		if (entry == null) return;
+		long sent = entry.pingSent;
+		if (sent == 0) return;
+		entry.stats.add(System.nanoTime() - sent);
+		entry.pingSent = 0;
+	}
+
+	private void tick() {
+		Set<Entry> slot = wheel.get(currentSlot);
+		currentSlot = (currentSlot + 1) % WHEEL_SLOTS;
+
+		long now = System.nanoTime();
+		for (Entry entry : slot)
+			check(entry, now);
+	}
+
+	private void check(Entry entry, long now) {
+		long sent = entry.pingSent;
+		if (entry.conn.isClosed()) {
+			remove(entry.conn);
+		} else if (sent != 0 && now - sent > responseTimeout) {
+			timedOut(entry, "no response to ping");
+		} else if (now - entry.conn.getLastReceived() > idleTimeout) {
+			timedOut(entry, "idle");
+		} else if (sent == 0) {
+			ping(entry, now);
+		}
+	}
+
+	private void ping(Entry entry, long now) {
+		entry.pingSent = now;
+		try {
+			MsgBasic.IdRequest.send(entry.conn);
+		} catch (IOException e) {
+			remove(entry.conn);
+		}
+	}
+
+	private void timedOut(Entry entry, String reason) {
+		System.err.println(Util.ERR_PREFIX + "Closing " + entry.conn.getRemoteAddress() + ": " + reason);
+		remove(entry.conn);
+		entry.conn.close();
+		TimeoutListener listener = timeoutListener;
+		if (listener != null)
+			listener.connectionTimedOut(entry.conn, reason);
+	}
+}
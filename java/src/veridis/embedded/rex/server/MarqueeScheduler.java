@@ -0,0 +1,253 @@
+package veridis.embedded.rex.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import veridis.embedded.rex.RexFrame;
+import veridis.embedded.rex.RexProtocol.Connection;
+import veridis.embedded.rex.messages.MsgDisplay;
+
+/**
+ * Letreiros (texto rolando) nos displays, usando o deslocamento do próprio display.
+ *
+ * Em vez de reescrever a linha a cada passo, o texto é escrito na memória do display (DDRAM, 40 colunas
+ * por linha) e deslocado com MsgDisplay.Move: a cada passo só vai o caractere que está entrando, escrito
+ * na coluna logo depois da parte visível, e um Move de uma posição.
+ *
+ * Um único timer avança todos os letreiros. Os displays que mostram o mesmo {@link Marquee} ficam
+ * na mesma posição e recebem as mesmas mensagens, codificadas uma vez por passo.
+ *
+ * Um display que perde alguma mensagem (fila cheia, conexão lenta) ficaria fora de posição para sempre:
+ * ele sai do letreiro e é reescrito por inteiro no próximo tick.
+ *
+ * O deslocamento move o display inteiro: cada linha do Marquee rola junto (linhas vazias ficam em branco).
+ * Apenas displays de 1 ou 2 linhas com menos de 40 colunas.
+ */
+public class MarqueeScheduler {
+	/** Colunas da DDRAM em cada linha, em displays de 2 linhas (HD44780) */
+	public static final int DDRAM_COLUMNS = 40;
+	public static final int MAX_LINES = 2;
+	public static final String DEFAULT_GAP = "   ";
+
+	/** Texto rolando, compartilhado pelos displays que o mostram */
+	public static class Marquee {
+		final int width;
+		final long interval;
+		/** Texto de cada linha, com o espaço entre as repetições; null se a linha fica em branco */
+		final String[] lines;
+		final Set<Connection> displays = new CopyOnWriteArraySet<Connection>();
+		/** Displays que perderam alguma mensagem, a reescrever no próximo tick */
+		final Set<Connection> resync = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+		/** Passos já dados. Alterados apenas no timer, lidos em show() sob o lock do Marquee */
+		long step;
+		long nextStep;
+
+		Marquee(int width, long interval, String gap, String[] lines) {
+			this.width = width;
+			this.interval = interval;
+			this.lines = new String[lines.length];
+			for (int i=0; i<lines.length; i++) {
+				if (lines[i] != null && !lines[i].isEmpty())
+					this.lines[i] = lines[i] + gap;
+			}
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getDisplayCount() {
+			return displays.size();
+		}
+
+		/** Caractere na posição position do texto infinito da linha */
+		private char charAt(int line, long position) {
+			String text = lines[line];
+			return text == null ? ' ' : text.charAt((int)(position % text.length()));
+		}
+
+		/** Mensagens de um passo: o caractere entrando em cada linha e o deslocamento */
+		private List<RexFrame> advance() {
+			List<RexFrame> frames = new ArrayList<RexFrame>(lines.length + 1);
+			long position = step + width;
+			int column = (int)(position % DDRAM_COLUMNS);
+			for (int i=0; i<lines.length; i++)
+				frames.add(MsgDisplay.Write.frame(String.valueOf(charAt(i, position)), i, column));
+			frames.add(MOVE_LEFT);
+			step++;
+			return frames;
+		}
+
+		/** Mensagens que colocam um display na posição atual */
+		private List<RexFrame> start() {
+			List<RexFrame> frames = new ArrayList<RexFrame>();
+			frames.add(CLEAR);
+			frames.add(ENTRY_MODE);
+			int shift = (int)(step % DDRAM_COLUMNS);
+			for (int i=0; i<lines.length; i++) {
+				//A parte visível começa na coluna shift e pode dar a volta na DDRAM
+				StringBuilder first = new StringBuilder();
+				StringBuilder wrapped = new StringBuilder();
+				for (int j=0; j<width; j++)
+					(shift + j < DDRAM_COLUMNS ? first : wrapped).append(charAt(i, step + j));
+				frames.add(MsgDisplay.Write.frame(first.toString(), i, shift));
+				if (wrapped.length() > 0)
+					frames.add(MsgDisplay.Write.frame(wrapped.toString(), i, 0));
+			}
+			if (shift > 0)
+				frames.add(MsgDisplay.Move.frame(true, -shift));
+			return frames;
+		}
+	}
+
+	private static final RexFrame CLEAR = RexFrame.ofInts(MsgDisplay.COMMAND_DISPLAY_CLEAR);
+	/** Cursor para a direita, sem deslocar o display ao escrever */
+	private static final RexFrame ENTRY_MODE = RexFrame.ofInts(MsgDisplay.COMMAND_DISPLAY_SET_ENTRY_MODE, MsgDisplay.SetEntryMode.DISPLAY_ENTRY_MODE_CURSOR_RIGHT);
+	private static final RexFrame MOVE_LEFT = MsgDisplay.Move.frame(true, -1);
+
+	private final ScheduledExecutorService timer;
+	private final Set<Marquee> marquees = new CopyOnWriteArraySet<Marquee>();
+	private final Map<Connection, Marquee> showing = new ConcurrentHashMap<Connection, Marquee>();
+
+	/**
+	 * @param tick Resolução do timer, em ms. Os intervalos dos Marquee são arredondados para múltiplos dele
+	 */
+	public MarqueeScheduler(long tick) {
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "JA200-Marquee");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param width Colunas visíveis do display
+	 * @param interval Tempo entre os passos, em ms
+	 * @param lines Texto de cada linha; null ou "" deixa a linha em branco
+	 */
+	public Marquee create(int width, long interval, String... lines) {
+		return create(width, interval, DEFAULT_GAP, lines);
+	}
+
+	/** @param gap Separação entre o fim do texto e a repetição */
+	public Marquee create(int width, long interval, String gap, String[] lines) {
+		if (width < 1 || width >= DDRAM_COLUMNS)
+			throw new IllegalArgumentException("Invalid width: " + width);
+		if (lines.length < 1 || lines.length > MAX_LINES)
+			throw new IllegalArgumentException("Invalid number of lines: " + lines.length);
+		Marquee marquee = new Marquee(width, interval, gap, lines);
+		marquee.nextStep = System.currentTimeMillis() + interval;
+		return marquee;
+	}
+
+	/** Passa a mostrar o Marquee no display da conexão, no lugar do que estiver mostrando */
+	public void show(Connection conn, Marquee marquee) {
+		stop(conn);
+		synchronized (marquee) {
+			showing.put(conn, marquee);
+			marquee.displays.add(conn);
+			marquees.add(marquee);
+			send(marquee, conn, marquee.start());
+		}
+	}
+
+	/** Para de rolar. O display fica como está; um Clear ou Initialize volta ao normal */
+	public void stop(Connection conn) {
+		Marquee marquee = showing.remove(conn);
+		if (marquee == null)
+			return;
+		synchronized (marquee) {
+			marquee.displays.remove(conn);
+			marquee.resync.remove(conn);
+			if (marquee.displays.isEmpty() && marquee.resync.isEmpty())
+				marquees.remove(marquee);
+		}
+	}
+
+	public void close() {
+		timer.shutdownNow();
+		marquees.clear();
+		showing.clear();
+	}
+
+	private void tick() {
+		long now = System.currentTimeMillis();
+		for (Marquee marquee : marquees) {
+			//Sob o lock: um show() no meio do passo receberia o passo seguinte ao seu start()
+			synchronized (marquee) {
+				if (now >= marquee.nextStep) {
+					List<RexFrame> frames = marquee.advance();
+					//Sem acumular passos atrasados: o letreiro apenas fica mais lento
+					marquee.nextStep = Math.max(marquee.nextStep + marquee.interval, now);
+					for (Connection conn : marquee.displays) {
+						if (conn.isClosed())
+							stop(conn);
+						else
+							send(marquee, conn, frames);
+					}
+				}
+				for (Connection conn : marquee.resync) {
+					marquee.resync.remove(conn);
+					if (showing.get(conn) != marquee)
+						continue;
+					if (conn.isClosed()) {
+						stop(conn);
+						continue;
+					}
+					marquee.displays.add(conn);
+					send(marquee, conn, marquee.start());
+				}
+			}
+		}
+	}
+
+	/** Enfileira sem esperar a escrita. Se alguma mensagem falhar, o display é reescrito no próximo tick */
+	private void send(final Marquee marquee, final Connection conn, List<RexFrame> frames) {
+		BiConsumer<Void, Throwable> onWritten = null;
+		for (RexFrame frame : frames) {
+			CompletableFuture<Void> result = conn.submit(frame);
+			if (result.isCompletedExceptionally()) {
+				lost(marquee, conn);
+				return;
+			}
+			if (result.isDone())
+				continue;
+			if (onWritten == null) {
+				onWritten = new BiConsumer<Void, Throwable>() {
+					@Override
+					public void accept(Void v, Throwable error) {
+						if (error != null)
+							lost(marquee, conn);
+					}
+				};
+			}
+			result.whenComplete(onWritten);
+		}
+	}
+
+	/** Pode ser chamado na thread de escrita da conexão, sem o lock do Marquee */
+	private void lost(Marquee marquee, Connection conn) {
+		if (showing.get(conn) == marquee && marquee.displays.remove(conn))
+			marquee.resync.add(conn);
+	}
+}
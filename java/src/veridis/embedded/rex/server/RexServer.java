@@ -1,49 +1,134 @@
 package veridis.embedded.rex.server;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.InterfaceAddress;
-import java.net.NetworkInterface;
+import java.net.SocketAddress;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
 
+import veridis.embedded.rex.Quarantine;
 import veridis.embedded.rex.RexEndpoint;
+import veridis.embedded.rex.RexEventLoopGroup;
 import veridis.embedded.rex.RexProtocol;
 import veridis.embedded.rex.Util;
-import veridis.embedded.rex.RexProtocol.TCP;
+import veridis.embedded.rex.RexProtocol.Connection;
+import veridis.embedded.rex.codec.Codecs;
+import veridis.embedded.rex.codec.Messages;
+import veridis.embedded.rex.codec.ResponseCorrelator;
 import veridis.embedded.rex.messages.MsgBasic;
-import veridis.embedded.rex.messages.MsgDisplay;
 import veridis.embedded.rex.messages.MsgIO;
 import veridis.embedded.rex.messages.MsgRS232;
-import veridis.embedded.rex.messages.MsgBasic.DiscoveryListener;
+import veridis.embedded.rex.messages.MsgBasic.DiscoveryRecord;
+import veridis.embedded.rex.messages.MsgBasic.DiscoveryRecordListener;
 import veridis.embedded.rex.messages.MsgIO.ImageCaptureListener;
 import veridis.embedded.rex.messages.MsgIO.InputListener;
 import veridis.embedded.rex.messages.MsgRS232.RS232Listener;
+import veridis.embedded.rex.stats.FleetStats;
 
-public class RexServer extends RexEndpoint implements DiscoveryListener, ImageCaptureListener, InputListener, RS232Listener {
+public class RexServer extends RexEndpoint implements DiscoveryRecordListener, AdmissionController.Admitter, ImageCaptureListener, InputListener, RS232Listener {
 	int TCP_PORT;
+	protected final DeviceRegistry registry = new DeviceRegistry();
+	/** Contadores por Rex (pelo ID, ou pelo IP antes da inicialização da sessão) */
+	protected final FleetStats stats = new FleetStats();
+	protected final HeartbeatMonitor heartbeat = new HeartbeatMonitor(this, 5000, 15000);
+	/** Até 50 ConnectionRequests/s e 16 sessões inicializando ao mesmo tempo */
+	protected final AdmissionController admission = new AdmissionController(this, 50, 20, 16, 10000);
+	/** Event loops das conexões, null se cada conexão tem suas threads */
+	protected final RexEventLoopGroup shards;
+	/** Rex deste servidor, se a porta de Discovery for compartilhada. null: todos */
+	protected final DiscoveryHub.Route discoveryRoute;
+	protected final RexServerDiscovery discovery;
+	protected final ResponseCorrelator responses = new ResponseCorrelator(this, Codecs.ID_RESPONSE, Codecs.FEATURES_RESPONSE);
+	protected final BootstrapProfile defaultProfile;
+	protected volatile BootstrapProfile.Selector profiles;
+	/** Tempo máximo para a inicialização da sessão, em ms */
+	protected long bootstrapTimeout = 10000;
+	
 	public RexServer(int port) throws IOException {
-		this.TCP_PORT = port;
+		this(new int[] {port}, 1, RexServerDiscovery.DEFAULT_BACKLOG);
+	}
+	
+	/** Aceita conexões em várias portas. Ver {@link RexServerDiscovery#RexServerDiscovery(RexServer, int[], int, int)} */
+	public RexServer(int[] ports, int acceptorsPerPort, int backlog) throws IOException {
+		this(ports, acceptorsPerPort, backlog, 0);
+	}
+	
+	/**
+	 * @param shards Número de {@link RexEventLoopGroup shards}: cada Rex fica preso a um deles, que faz todo o seu I/O.
+	 * 0 usa duas threads bloqueantes por conexão
+	 */
+	public RexServer(int[] ports, int acceptorsPerPort, int backlog, int shards) throws IOException {
+		this(ports, acceptorsPerPort, backlog, shards > 0 ? new RexEventLoopGroup("JA200-Shard", shards) : null, null);
+	}
+	
+	/**
+	 * Servidor que divide a JVM com outros: os Discovery chegam pelo {@link DiscoveryHub} da porta,
+	 * e os event loops podem ser os mesmos de outros servidores.
+	 * @param shards Event loops das conexões, possivelmente compartilhados. null usa threads bloqueantes
+	 * @param discoveryRoute Rex atendidos por este servidor. null: os que nenhum outro servidor aceitar
+	 */
+	public RexServer(int[] ports, int acceptorsPerPort, int backlog, RexEventLoopGroup shards, DiscoveryHub.Route discoveryRoute) throws IOException {
+		this.TCP_PORT = ports[0];
+		this.shards = shards;
+		this.discoveryRoute = discoveryRoute;
+		this.defaultProfile = new BootstrapProfile()
+			.requestId()
+			.displayWrite("Hi ", -1, -1)
+			.displayWrite(" there", -1, -1)
+			.displayWrite("Foo", 1, 1);
+		for (int i=0; i<5; i++) {
+			defaultProfile.rs232Open(i, 9600, MsgRS232.RS232_PARITY_NONE, 8, 1, MsgRS232.RS232_FLOW_CONTROL_NONE);
+		}
+		stats.setNamer(new FleetStats.Namer() {
+			@Override
+			public String deviceName(RexProtocol comm) {
+				DeviceRegistry.Device device = comm instanceof Connection ? registry.get((Connection)comm) : null;
+				return device != null && device.id != null ? device.id : FleetStats.BY_ADDRESS.deviceName(comm);
+			}
+		});
 		addMessageHandler(new MsgBasic.Discovery(this));
 		addMessageHandler(new MsgIO.ImageCapture(this));
 		addMessageHandler(new MsgIO.InputChange(this));
 		addMessageHandler(new MsgIO.KeyTyped(this));
 		addMessageHandler(new MsgRS232.Write(this));
-		new RexServerDiscovery(this, port);
+		this.discovery = new RexServerDiscovery(this, ports, acceptorsPerPort, backlog);
 	}
 	
 	public void connectionStarted(RexProtocol comm) throws IOException, InterruptedException {
-		String id = MsgBasic.IdRequest.sendAndWait(comm);
-		System.out.println("Rex ID is " + id);
-		
-		MsgDisplay.Write.send(comm, "Hi ");
-		MsgDisplay.Write.send(comm, " there");
-		MsgDisplay.Write.send(comm, "Foo", 1, 1);
-	
-		for (int i=0; i<5; i++) {
-			MsgRS232.Open.send(comm, i, 9600, MsgRS232.RS232_PARITY_NONE, 8, 1, MsgRS232.RS232_FLOW_CONTROL_NONE);
+		Connection conn = (Connection)comm;
+		heartbeat.add(conn);
+		String discoveredId = discoveredId(conn);
+		BootstrapProfile profile = selectProfile(discoveredId);
+		//Features de uma conexão anterior (ou do FleetSnapshot): não precisa pedir de novo
+		Messages.FeaturesResponse knownFeatures = registry.getFeatures(discoveredId);
+		BootstrapProfile.Result result;
+		admission.beginSessionInit();
+		try {
+			//Todos os comandos de uma vez; só espera as respostas no final
+			result = profile.run(conn, responses, bootstrapTimeout, knownFeatures).get();
+		} catch (ExecutionException e) {
+			conn.close();
+			throw new IOException("Bootstrap failed: " + e.getCause(), e.getCause());
+		} finally {
+			admission.endSessionInit();
+		}
+		String id = result.getId();
+		Messages.FeaturesResponse features = result.getFeatures();
+		//Outro Rex no IP que era daquele: as features guardadas não valem
+		if (features != null && features == knownFeatures && id != null && !id.equals(discoveredId))
+			features = null;
+		if (features != null) {
+			conn.setFrameLimits(conn.getFrameLimits().forFeatures(features));
+			if (id != null && features != knownFeatures)
+				registry.setFeatures(id, features);
 		}
+		System.out.println("Rex ID is " + id);
+		registry.register(conn, id);
+		//Os próximos eventos já contam para o ID
+		stats.remove(conn);
 		
 		for (int i=0; i<4; i++) {
 			int[][] IOs = {
@@ -62,8 +147,134 @@ public class RexServer extends RexEndpoint implements DiscoveryListener, ImageCa
 			}
 		}
 	}
-	public void connectionFinished(TCP conn) {
-		System.out.println("Rex disconnected: " + conn.socket);
+	public void connectionFinished(Connection conn) {
+		DeviceRegistry.Device device = registry.get(conn);
+		//Um Rex que cai durante o cooldown deve ser admitido no próximo Discovery
+		long mac = registry.getMac(device != null ? device.id : discoveredId(conn));
+		if (mac != 0)
+			admission.forget(mac);
+		registry.unregister(conn);
+		stats.remove(conn);
+		responses.cancel(conn, new EOFException("Disconnected"));
+		heartbeat.remove(conn);
+		System.out.println("Rex disconnected: " + conn.getRemoteAddress());
+	}
+	
+	/**
+	 * Atende uma conexão já estabelecida: uma thread recebe as mensagens e outra executa
+	 * connectionStarted(), e depois connectionFinished() quando a conexão termina.
+	 * 
+	 * Uma conexão NioTCP é recebida pelo seu event loop, que também faz o heartbeat dela, e
+	 * connectionFinished() é chamado no loop quando a conexão fecha. connectionStarted() continua
+	 * em uma thread própria durante toda a sua execução, porque bloqueia: espera a vez na admissão,
+	 * as respostas do bootstrap e, aqui, o exemplo com as saídas (cerca de 30 s).
+	 * A admissão e os letreiros ({@link MarqueeScheduler}) têm suas próprias threads e chegam à
+	 * conexão apenas por submit().
+	 */
+	public void serve(final Connection conn) {
+		Quarantine quarantine = getQuarantine();
+		if (quarantine != null && quarantine.isQuarantined(conn.getRemoteAddress())) {
+			conn.close();
+			return;
+		}
+		if (conn instanceof RexProtocol.NioTCP) {
+			serveNio((RexProtocol.NioTCP)conn);
+			return;
+		}
+		final Semaphore sem = new Semaphore(0);
+		
+		new Thread("JA200-Communication-With-" + conn.getRemoteAddress()) {
+			public void run() {
+				try {
+					conn.handleProtocol();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				sem.release();
+			};
+		}.start();
+		
+		new Thread("JA200-Connection-To-" + conn.getRemoteAddress()) {
+			public void run() {
+				try {
+					connectionStarted(conn);
+				} catch (Exception e) {}
+				try {
+					sem.acquire();
+					connectionFinished(conn);
+				} catch (Exception e) {}
+			};
+		}.start();
+	}
+	
+	private void serveNio(final RexProtocol.NioTCP conn) {
+		new Thread("JA200-Connection-To-" + conn.getRemoteAddress()) {
+			public void run() {
+				try {
+					connectionStarted(conn);
+				} catch (Exception e) {}
+				conn.getCloseFuture().whenComplete(new BiConsumer<Void, Throwable>() {
+					@Override
+					public void accept(Void v, Throwable error) {
+						connectionFinished(conn);
+					}
+				});
+			};
+		}.start();
+	}
+	
+	/** null se o servidor não usa event loops */
+	public RexEventLoopGroup getShards() {
+		return shards;
+	}
+	
+	public DiscoveryHub.Route getDiscoveryRoute() {
+		return discoveryRoute;
+	}
+	
+	public DeviceRegistry getRegistry() {
+		return registry;
+	}
+	
+	public FleetStats getStats() {
+		return stats;
+	}
+	
+	public RexServerDiscovery getDiscovery() {
+		return discovery;
+	}
+	
+	/** Perfil de inicialização de cada Rex. null: usa o perfil padrão */
+	public void setProfileSelector(BootstrapProfile.Selector profiles) {
+		this.profiles = profiles;
+	}
+	
+	protected BootstrapProfile selectProfile(Connection conn) {
+		return selectProfile(discoveredId(conn));
+	}
+	
+	protected BootstrapProfile selectProfile(String discoveredId) {
+		BootstrapProfile.Selector profiles = this.profiles;
+		if (profiles == null)
+			return defaultProfile;
+		BootstrapProfile profile = profiles.select(discoveredId);
+		return profile != null ? profile : defaultProfile;
+	}
+	
+	/** ID anunciado no último Discovery vindo do IP da conexão, ou null */
+	protected String discoveredId(Connection conn) {
+		SocketAddress remote = conn.getRemoteAddress();
+		if (remote instanceof InetSocketAddress && ((InetSocketAddress)remote).getAddress() != null)
+			return registry.discoveredId(Util.ipFromBytes(((InetSocketAddress)remote).getAddress().getAddress()));
+		return null;
+	}
+	
+	public AdmissionController getAdmission() {
+		return admission;
+	}
+	
+	public HeartbeatMonitor getHeartbeat() {
+		return heartbeat;
 	}
 	
 	public String getID() {
@@ -71,43 +282,39 @@ public class RexServer extends RexEndpoint implements DiscoveryListener, ImageCa
 	}
 	
 	@Override
-	public void discoveryReceived(RexProtocol comm, String name, byte[] mac, byte[] ip, byte[] mask, byte[] gateway) {
-		//System.out.println(RexDevice.EVENT_PREFIX + "Discovery from " + name);
-		
-		try {
-			Enumeration<NetworkInterface> nics = NetworkInterface.getNetworkInterfaces();
-			while (nics.hasMoreElements()) {
-				NetworkInterface nic = nics.nextElement();
-				if (nic.isLoopback() || !nic.isUp()) continue;
-				for (InterfaceAddress addr : nic.getInterfaceAddresses()) {
-					InetAddress inetaddr = addr.getAddress();
-					if (inetaddr.getAddress() == null) continue;
-					if (inetaddr.getAddress().length != 4) continue;
-					try {
-						((RexProtocol.UDP)comm).setDestinationAddress(new InetSocketAddress(InetAddress.getByAddress(ip), RexProtocol.UDP.PORT_CONNECTION_REQUEST));
-						MsgBasic.ConnectionRequest.send(comm, 0, new InetSocketAddress(inetaddr, TCP_PORT));
-					} catch (IOException e){
-						e.printStackTrace();
-					}
-				}
-			}
-		} catch (IOException e){
-			e.printStackTrace();
-		}
+	public void discoveryReceived(RexProtocol comm, DiscoveryRecord record) {
+		//System.out.println(RexDevice.EVENT_PREFIX + "Discovery from " + record.getId());
+		registry.discovered(record.getId(), record.mac, record.ip, record.mask);
+		admission.offer(comm, record);
+	}
+	
+	/** Chamado pelo AdmissionController quando chega a vez do Rex */
+	@Override
+	public void admit(RexProtocol comm, DiscoveryRecord record) {
+		//discovery é null enquanto o construtor não termina
+		RexServerDiscovery discovery = this.discovery;
+		int port = discovery != null ? discovery.portFor(record.mac) : TCP_PORT;
+		Quarantine quarantine = getQuarantine();
+		if (quarantine != null && quarantine.isQuarantined(record.ip))
+			return;
+		RexServerDiscovery.sendConnectionRequests((RexProtocol.UDP)comm, record, port);
 	}
 
 	@Override
 	public void imageCaptured(RexProtocol comm, int width, int height, int resX, int resY, byte[] imgBuf, String sensorName) {
+		stats.imageCaptured(comm, width, height, resX, resY, imgBuf, sensorName);
 		System.out.println(Util.EVENT_PREFIX + "Got image from " + sensorName);
 	}
 
 	@Override
 	public void inputChanged(RexProtocol comm, int port, boolean isOn) {
+		stats.inputChanged(comm, port, isOn);
 		System.out.println(Util.EVENT_PREFIX + "Input #"+port+" set to " + isOn);
 	}
 
 	@Override
 	public void keyTyped(RexProtocol comm, int keyCode) {
+		stats.keyTyped(comm, keyCode);
 		String keyName = (char)keyCode + "";
 		if (keyCode == 13) keyName = "Enter";
 		if (keyCode == 27) keyName = "Esc";
@@ -136,7 +343,7 @@ public class RexServer extends RexEndpoint implements DiscoveryListener, ImageCa
 
 	@Override
 	public void rs232Write(RexProtocol conn, int portNumber, byte[] buffer) throws IOException {
-		System.out.println("RS232 #" + portNumber + ": \"" + Util.StringFromBytes(Arrays.copyOfRange(buffer, 0, buffer.length-1)) + "\"" + Arrays.toString(buffer));
+		System.out.println("RS232 #" + portNumber + ": \"" + Util.StringFromBytes(buffer, 0, buffer.length-1) + "\"" + Arrays.toString(buffer));
 	}
 
 
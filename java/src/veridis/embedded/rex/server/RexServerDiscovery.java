@@ -1,71 +1,285 @@
 package veridis.embedded.rex.server;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.Semaphore;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
 
+import veridis.embedded.rex.RexEndpoint;
+import veridis.embedded.rex.RexEventLoop;
+import veridis.embedded.rex.RexEventLoopGroup;
 import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.Util;
+import veridis.embedded.rex.jfr.RexEvents;
+import veridis.embedded.rex.messages.MsgBasic;
+import veridis.embedded.rex.messages.MsgBasic.DiscoveryRecord;
 
 
-public class RexServerDiscovery {	
-	RexServer rex;
-	RexProtocol.UDP protocol;
-	ServerSocket serverSocket;
+public class RexServerDiscovery {
+	public static final int DEFAULT_BACKLOG = 50;
+
+	/** O que fazer com cada conexão aceita */
+	public static interface ConnectionHandler {
+		public abstract void connectionAccepted(Socket socket) throws IOException;
+	}
+
+	final DiscoveryHub hub;
+	final RexEndpoint rex;
+	final ConnectionHandler handler;
+	/** Portas TCP onde os Rex podem se conectar */
+	final int[] ports;
+	final List<Acceptor> acceptors = new ArrayList<Acceptor>();
 
 	public RexServerDiscovery(final RexServer rex, int portNumber) throws IOException {
+		this(rex, new int[] {portNumber}, 1, DEFAULT_BACKLOG);
+	}
+
+	/**
+	 * @param ports Portas TCP. As respostas de Discovery são distribuídas entre elas pelo MAC
+	 * @param acceptorsPerPort Threads de accept em cada porta. Com SO_REUSEPORT cada uma tem seu próprio socket e o kernel divide as conexões
+	 * @param backlog Fila de conexões pendentes de cada socket
+	 */
+	public RexServerDiscovery(final RexServer rex, int[] ports, int acceptorsPerPort, int backlog) throws IOException {
+		this(rex, RexProtocol.UDP.PORT_DISCOVERY, ports, acceptorsPerPort, backlog, rex.getShards() != null, rex.getDiscoveryRoute(), new ConnectionHandler() {
+			@Override
+			public void connectionAccepted(Socket socket) throws IOException {
+				RexEventLoopGroup shards = rex.getShards();
+				if (shards != null)
+					rex.serve(new RexProtocol.NioTCP(rex, shards.loopFor(socket.getRemoteSocketAddress()), socket.getChannel()));
+				else
+					rex.serve(new RexProtocol.TCP(rex, socket));
+			}
+		});
+	}
+
+	/**
+	 * Os Discovery recebidos na porta UDP discoveryPort são entregues aos handlers de rex, e as conexões aceitas a handler.
+	 * discoveryPort normalmente é {@link RexProtocol.UDP#PORT_DISCOVERY}
+	 */
+	public RexServerDiscovery(RexEndpoint rex, int discoveryPort, int[] ports, int acceptorsPerPort, int backlog, ConnectionHandler handler) throws IOException {
+		this(rex, discoveryPort, ports, acceptorsPerPort, backlog, false, null, handler);
+	}
+
+	/**
+	 * @param channels Se true, os sockets aceitos têm um SocketChannel (Socket.getChannel()),
+	 * para serem passados a um {@link RexEventLoop}
+	 * @param route Discovery recebidos por rex, se a porta for compartilhada com outros servidores. Ver {@link DiscoveryHub}
+	 */
+	public RexServerDiscovery(RexEndpoint rex, int discoveryPort, int[] ports, int acceptorsPerPort, int backlog, boolean channels, DiscoveryHub.Route route, ConnectionHandler handler) throws IOException {
+		if (ports.length == 0 || acceptorsPerPort < 1)
+			throw new IllegalArgumentException("At least one port and one acceptor are required");
+		this.handler = handler;
+		this.ports = ports.clone();
 		this.rex = rex;
-		this.protocol = new RexProtocol.UDP(rex, RexProtocol.UDP.PORT_DISCOVERY);
-		this.serverSocket = new ServerSocket(portNumber);
+		this.hub = DiscoveryHub.shared(discoveryPort);
+
+		for (int port : ports) {
+			ServerSocket shared = null;
+			for (int i=0; i<acceptorsPerPort; i++) {
+				ServerSocket serverSocket;
+				if (acceptorsPerPort > 1 && isReusePortSupported()) {
+					serverSocket = openServerSocket(channels);
+					serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+					serverSocket.bind(new InetSocketAddress(port), backlog);
+				} else {
+					if (shared == null) {
+						shared = openServerSocket(channels);
+						shared.bind(new InetSocketAddress(port), backlog);
+					}
+					serverSocket = shared;
+				}
+				acceptors.add(new Acceptor(serverSocket, port, i));
+			}
+		}
+
+		for (Acceptor acceptor : acceptors)
+			acceptor.start();
+
+		//Recebe os Discovery pelo hub da porta, compartilhado com outros servidores da JVM
+		hub.register(rex, route);
+	}
+
+	public DiscoveryHub getHub() {
+		return hub;
+	}
+
+	/** Troca os Rex cujos Discovery este servidor recebe */
+	public void setRoute(DiscoveryHub.Route route) {
+		hub.register(rex, route);
+	}
+
+	private static ServerSocket openServerSocket(boolean channel) throws IOException {
+		if (!channel)
+			return new ServerSocket();
+		//Bloqueante: o accept continua nas threads Acceptor, só a conexão vai para o event loop
+		return ServerSocketChannel.open().socket();
+	}
+
+	public static boolean isReusePortSupported() {
+		try (ServerSocket s = new ServerSocket()) {
+			return s.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (IOException e) {
+			return false;
+		}
+	}
 
-		//Recebe as respostas de ConnectionRequest
-		Thread threadReceiveDiscovery = new Thread("JA200-Discovery-Receive") {
-			public void run() {
+	/**
+	 * Responde um Discovery: manda um ConnectionRequest para o Rex com cada endereço IPv4 local,
+	 * exceto loopback, na porta indicada
+	 */
+	public static void sendConnectionRequests(RexProtocol.UDP comm, DiscoveryRecord record, int port) {
+		RexEvents.DiscoveryReply event = new RexEvents.DiscoveryReply();
+		event.begin();
+		int requests = 0;
+		InetSocketAddress rexAddr = null;
+		try {
+			rexAddr = new InetSocketAddress(record.getInetAddress(), RexProtocol.UDP.PORT_CONNECTION_REQUEST);
+			Enumeration<NetworkInterface> nics = NetworkInterface.getNetworkInterfaces();
+			while (nics.hasMoreElements()) {
+				NetworkInterface nic = nics.nextElement();
+				if (nic.isLoopback() || !nic.isUp()) continue;
+				for (InterfaceAddress addr : nic.getInterfaceAddresses()) {
+					InetAddress inetaddr = addr.getAddress();
+					if (inetaddr.getAddress() == null) continue;
+					if (inetaddr.getAddress().length != 4) continue;
+					try {
+						comm.sendFrame(MsgBasic.ConnectionRequest.frame(0, new InetSocketAddress(inetaddr, port)), rexAddr);
+						requests++;
+					} catch (IOException e){
+						e.printStackTrace();
+					}
+				}
+			}
+		} catch (IOException e){
+			e.printStackTrace();
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.id = record.getId();
+			event.device = String.valueOf(rexAddr);
+			event.mac = Util.macStringPretty(record.mac);
+			event.requests = requests;
+			event.commit();
+		}
+	}
+
+	public int[] getPorts() {
+		return ports.clone();
+	}
+
+	/** Porta para onde o Rex com esse MAC deve se conectar. Sempre a mesma para o mesmo MAC */
+	public int portFor(long mac) {
+		long h = mac * 0x9E3779B97F4A7C15L;
+		return ports[(int)((h >>> 32) % ports.length)];
+	}
+
+	public List<Acceptor> getAcceptors() {
+		return Collections.unmodifiableList(acceptors);
+	}
+
+	/** Total de conexões aceitas por segundo, somando todas as threads, no último segundo completo */
+	public int getAcceptRate() {
+		int rate = 0;
+		for (Acceptor acceptor : acceptors)
+			rate += acceptor.getLastSecondRate();
+		return rate;
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/** Thread de accept, com suas métricas */
+	public class Acceptor extends Thread {
+		private final ServerSocket serverSocket;
+		private final int port;
+		private long accepted;
+		private long errors;
+		private long second;
+		private int secondCount;
+		private int lastSecondRate;
+		private int peakRate;
+
+		Acceptor(ServerSocket serverSocket, int port, int index) {
+			super("JA200-Receive-Connections-" + port + "-" + index);
+			this.serverSocket = serverSocket;
+			this.port = port;
+		}
+
+		public int getPort() {
+			return port;
+		}
+		/** Porta realmente usada, se port for 0 */
+		public int getLocalPort() {
+			return serverSocket.getLocalPort();
+		}
+		public synchronized long getAccepted() {
+			return accepted;
+		}
+		public synchronized long getErrors() {
+			return errors;
+		}
+		/** Conexões aceitas no último segundo completo */
+		public synchronized int getLastSecondRate() {
+			roll(System.nanoTime() / 1000000000L);
+			return lastSecondRate;
+		}
+		/** Maior número de conexões aceitas em um segundo */
+		public synchronized int getPeakRate() {
+			return peakRate;
+		}
+
+		private void roll(long now) {
+			if (now == second)
+				return;
+			lastSecondRate = now == second + 1 ? secondCount : 0;
+			second = now;
+			secondCount = 0;
+		}
+
+		private synchronized void count() {
+			accepted++;
+			roll(System.nanoTime() / 1000000000L);
+			secondCount++;
+			if (secondCount > peakRate)
+				peakRate = secondCount;
+		}
+
+		@Override
+		public void run() {
+			AcceptBackoff backoff = new AcceptBackoff();
+			while (!serverSocket.isClosed()) {
+				Socket socket;
 				try {
-					protocol.handleProtocol();
+					socket = serverSocket.accept();
 				} catch (IOException e) {
-					e.printStackTrace();
+					synchronized (this) {
+						errors++;
+					}
+					if (!serverSocket.isClosed()) {
+						System.err.println(Util.ERR_PREFIX + getName() + ": " + e.getMessage());
+						if (!backoff.pause())
+							break;
+					}
+					continue;
 				}
-			};
-		};
-		threadReceiveDiscovery.start();
-		
-		
-		//Recebe as respostas de ConnectionRequest
-		Thread threadReceiveConnections = new Thread("JA200-Receive-Connections") {
-			public void run() {
+				backoff.reset();
+				count();
 				try {
-					while (true) {
-						final Socket socket = serverSocket.accept();
-						final RexProtocol.TCP conn = new RexProtocol.TCP(rex, socket);
-						
-						final Semaphore sem = new Semaphore(0);
-						
-						new Thread("JA200-Communication-With-" + socket.getRemoteSocketAddress()) {
-							public void run() {
-								try {
-									conn.handleProtocol();
-								} catch (Exception e) {
-									e.printStackTrace();
-								}
-								sem.release();
-							};
-						}.start();
-					
-						new Thread("JA200-Connection-To-" + socket.getRemoteSocketAddress()) {
-							public void run() {
-								try {
-									rex.connectionStarted(conn);
-								} catch (Exception e) {}
-								try {
-									sem.acquire();
-									rex.connectionFinished(conn);
-								} catch (Exception e) {}
-							};
-						}.start();
-					}
-				} catch (IOException e) {}
-			};
-		};
-		threadReceiveConnections.start();
+					handler.connectionAccepted(socket);
+				} catch (IOException e) {
+					System.err.println(Util.ERR_PREFIX + "Connection from " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+					try {
+						socket.close();
+					} catch (IOException e2) {}
+				}
+			}
+		}
 	}
 }
@@ -0,0 +1,243 @@
+package veridis.embedded.rex.stats;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import veridis.embedded.rex.MessageView;
+import veridis.embedded.rex.RexEndpoint;
+import veridis.embedded.rex.RexProtocol;
+import veridis.embedded.rex.Util;
+import veridis.embedded.rex.messages.MsgIO;
+import veridis.embedded.rex.stats.RollingCounter.Resolution;
+
+/**
+ * Estatísticas por Rex e por métrica, em janelas de 1 s, 1 min e 1 h, em memória.
+ *
+ * Alimentada pelos callbacks de MsgIO (ex: RexServer repassa inputChanged/keyTyped/imageCaptured),
+ * ou por {@link #register(RexEndpoint)}. Métricas: {@link #INPUT_ON}+porta (ex: porta aberta),
+ * {@link #INPUT_OFF}+porta, {@link #KEYS} e {@link #CAPTURE}+sensor.
+ *
+ * Ex: aberturas da porta 0 por minuto, por Rex: perDevice(FleetStats.INPUT_ON + 0, Resolution.MINUTE, 0)
+ *     capturas do sensor na última hora, na frota: count(null, FleetStats.CAPTURE + "reader0", Resolution.MINUTE, 59)
+ *
+ * Cada métrica ocupa (62 + 62 + 26) * 8 bytes por Rex, alocados em blocos de {@link RollingCounter#BLOCK} Rex.
+ */
+public class FleetStats implements MsgIO.InputListener, MsgIO.ImageCaptureListener {
+	public static final String INPUT_ON = "input.on.";
+	public static final String INPUT_OFF = "input.off.";
+	public static final String KEYS = "keys";
+	public static final String CAPTURE = "capture.";
+	public static final int DEFAULT_MAX_DEVICES = 16384;
+	private static final int MAX_INPUTS = 32;
+
+	/** Nome do Rex de uma conexão */
+	public static interface Namer {
+		public abstract String deviceName(RexProtocol comm);
+	}
+
+	/** IP do Rex */
+	public static final Namer BY_ADDRESS = new Namer() {
+		@Override
+		public String deviceName(RexProtocol comm) {
+			SocketAddress address = comm instanceof RexProtocol.Connection ? ((RexProtocol.Connection)comm).getRemoteAddress() : null;
+			if (address instanceof InetSocketAddress)
+				return ((InetSocketAddress)address).getAddress().getHostAddress();
+			return String.valueOf(address);
+		}
+	};
+
+	private final int maxDevices;
+	private volatile Namer namer = BY_ADDRESS;
+	private final Map<String, Integer> devices = new ConcurrentHashMap<String, Integer>();
+	private final AtomicReferenceArray<String> names;
+	private final AtomicInteger deviceCount = new AtomicInteger();
+	/** Índice do Rex de cada conexão, para não calcular o nome a cada evento */
+	private final Map<RexProtocol, Integer> connections = new ConcurrentHashMap<RexProtocol, Integer>();
+	private final Map<String, RollingCounter> counters = new ConcurrentHashMap<String, RollingCounter>();
+	/** Criados no primeiro evento; os campos de RollingCounter são final, então a corrida é inofensiva */
+	private final RollingCounter[] inputsOn = new RollingCounter[MAX_INPUTS];
+	private final RollingCounter[] inputsOff = new RollingCounter[MAX_INPUTS];
+	private RollingCounter keys;
+	private volatile boolean full;
+
+	public FleetStats() {
+		this(DEFAULT_MAX_DEVICES);
+	}
+
+	public FleetStats(int maxDevices) {
+		this.maxDevices = maxDevices;
+		this.names = new AtomicReferenceArray<String>(maxDevices);
+	}
+
+	public void setNamer(Namer namer) {
+		this.namer = namer;
+	}
+
+	/** Passa a receber InputChange, KeyTyped e ImageCapture de rex (sem copiar os pixels) */
+	public void register(RexEndpoint rex) {
+		rex.addMessageHandler(new MsgIO.InputChange(this));
+		rex.addMessageHandler(new MsgIO.KeyTyped(this));
+		rex.addMessageHandler(new MsgIO.ImageCaptureView.Handler(new MessageView.Listener<MsgIO.ImageCaptureView>() {
+			@Override
+			public void received(RexProtocol comm, MsgIO.ImageCaptureView view) {
+				ByteBuffer name = view.sensorName();
+				record(comm, CAPTURE + Util.StringFromBytes(name, name.remaining()), 1);
+			}
+		}));
+	}
+
+	/** Esquece o Rex da conexão (o nome é calculado de novo no próximo evento). Chamar quando ela fecha */
+	public void remove(RexProtocol comm) {
+		connections.remove(comm);
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	@Override
+	public void inputChanged(RexProtocol comm, int port, boolean isOn) {
+		if (port < 0 || port >= MAX_INPUTS) {
+			record(comm, (isOn ? INPUT_ON : INPUT_OFF) + port, 1);
+			return;
+		}
+		RollingCounter[] counters = isOn ? inputsOn : inputsOff;
+		RollingCounter counter = counters[port];
+		if (counter == null)
+			counters[port] = counter = counter((isOn ? INPUT_ON : INPUT_OFF) + port);
+		add(comm, counter, 1);
+	}
+
+	@Override
+	public void keyTyped(RexProtocol comm, int keyCode) {
+		RollingCounter counter = keys;
+		if (counter == null)
+			keys = counter = counter(KEYS);
+		add(comm, counter, 1);
+	}
+
+	@Override
+	public void imageCaptured(RexProtocol comm, int width, int height, int resX, int resY, byte[] imgBuf, String sensorName) {
+		record(comm, CAPTURE + sensorName, 1);
+	}
+
+	public void record(RexProtocol comm, String metric, long delta) {
+		add(comm, counter(metric), delta);
+	}
+
+	public void record(String device, String metric, long delta) {
+		int index = indexOf(device);
+		if (index >= 0)
+			counter(metric).add(index, delta, System.currentTimeMillis());
+	}
+
+	private void add(RexProtocol comm, RollingCounter counter, long delta) {
+		Integer index = connections.get(comm);
+		if (index == null) {
+			index = indexOf(namer.deviceName(comm));
+			if (index < 0)
+				return;
+			connections.put(comm, index);
+		}
+		counter.add(index, delta, System.currentTimeMillis());
+	}
+
+	private RollingCounter counter(String metric) {
+		RollingCounter counter = counters.get(metric);
+		if (counter == null) {
+			counter = new RollingCounter(metric, maxDevices);
+			RollingCounter previous = ((ConcurrentHashMap<String, RollingCounter>)counters).putIfAbsent(metric, counter);
+			if (previous != null)
+				counter = previous;
+		}
+		return counter;
+	}
+
+	/** Índice do Rex, criado no primeiro evento. -1 se já houver maxDevices */
+	private int indexOf(String device) {
+		Integer index = devices.get(device);
+		if (index != null)
+			return index;
+		synchronized (devices) {
+			index = devices.get(device);
+			if (index != null)
+				return index;
+			int next = deviceCount.get();
+			if (next >= maxDevices) {
+				if (!full)
+					System.err.println(Util.ERR_PREFIX + "FleetStats is full: ignoring " + device + " and any other new Rex");
+				full = true;
+				return -1;
+			}
+			names.set(next, device);
+			devices.put(device, next);
+			deviceCount.set(next + 1);
+			return next;
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Soma dos últimos periods períodos completos mais o atual (periods 0: só o atual).
+	 * device null: a frota inteira
+	 */
+	public long count(String device, String metric, Resolution resolution, int periods) {
+		RollingCounter counter = counters.get(metric);
+		if (counter == null)
+			return 0;
+		int index = -1;
+		if (device != null) {
+			Integer i = devices.get(device);
+			if (i == null)
+				return 0;
+			index = i;
+		}
+		return counter.sum(index, resolution, periods, System.currentTimeMillis());
+	}
+
+	/** Valor de cada período, do mais antigo ao atual. device null: a frota inteira */
+	public long[] series(String device, String metric, Resolution resolution) {
+		RollingCounter counter = counters.get(metric);
+		Integer index = device == null ? Integer.valueOf(-1) : devices.get(device);
+		if (counter == null || index == null)
+			return new long[resolution.periods + 1];
+		return counter.series(index, resolution, System.currentTimeMillis());
+	}
+
+	/** Soma por Rex, como {@link #count}, apenas dos que têm valor diferente de zero */
+	public Map<String, Long> perDevice(String metric, Resolution resolution, int periods) {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		RollingCounter counter = counters.get(metric);
+		if (counter == null)
+			return result;
+		int count = deviceCount.get();
+		long[] totals = new long[count];
+		counter.sumPerDevice(resolution, periods, System.currentTimeMillis(), totals);
+		for (int i=0; i<count; i++) {
+			if (totals[i] != 0)
+				result.put(names.get(i), totals[i]);
+		}
+		return result;
+	}
+
+	public Set<String> getMetrics() {
+		return new TreeSet<String>(counters.keySet());
+	}
+
+	public List<String> getDevices() {
+		int count = deviceCount.get();
+		List<String> list = new ArrayList<String>(count);
+		for (int i=0; i<count; i++)
+			list.add(names.get(i));
+		return list;
+	}
+}
@@ -0,0 +1,205 @@
+package veridis.embedded.rex.stats;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Contador de uma métrica para todos os Rex, em janelas de 1 s, 1 min e 1 h.
+ *
+ * Cada resolução é um anel de long[] com uma coluna por período, organizado por coluna em blocos
+ * de {@link #BLOCK} Rex: o total da frota em um período é uma soma contígua. Os incrementos são
+ * getAndAdd, sem locks. A virada de período é feita por quem chega primeiro (CAS), zerando a coluna
+ * do próximo período antes que alguém escreva nela; só depois de um período sem nenhum evento
+ * a coluna atual é zerada já em uso, e algum incremento da virada pode se perder.
+ *
+ * Os Rex são índices densos, atribuídos por {@link FleetStats}.
+ */
+public class RollingCounter {
+	public static enum Resolution {
+		SECOND(1000L, 60),
+		MINUTE(60 * 1000L, 60),
+		HOUR(60 * 60 * 1000L, 24);
+
+		/** Duração de um período, em ms */
+		public final long millis;
+		/** Períodos completos guardados, além do atual */
+		public final int periods;
+
+		private Resolution(long millis, int periods) {
+			this.millis = millis;
+			this.periods = periods;
+		}
+	}
+
+	/** Rex por bloco */
+	public static final int BLOCK = 256;
+	private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+	private final String name;
+	private final Ring[] rings;
+
+	public RollingCounter(String name, int maxDevices) {
+		this.name = name;
+		Resolution[] resolutions = Resolution.values();
+		rings = new Ring[resolutions.length];
+		for (int i=0; i<rings.length; i++)
+			rings[i] = new Ring(resolutions[i], (maxDevices + BLOCK - 1) / BLOCK);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** now: System.currentTimeMillis() */
+	public void add(int device, long delta, long now) {
+		for (Ring ring : rings)
+			ring.add(device, delta, now);
+	}
+
+	/** Soma dos últimos periods períodos completos mais o atual. device -1: a frota inteira */
+	public long sum(int device, Resolution resolution, int periods, long now) {
+		return rings[resolution.ordinal()].sum(device, periods, now, null);
+	}
+
+	/**
+	 * Valor de cada período, do mais antigo ao atual (o último elemento).
+	 * device -1: a frota inteira
+	 */
+	public long[] series(int device, Resolution resolution, long now) {
+		Ring ring = rings[resolution.ordinal()];
+		long[] values = new long[resolution.periods + 1];
+		ring.sum(device, resolution.periods, now, values);
+		return values;
+	}
+
+	/** Soma por Rex, em totals[device] */
+	public void sumPerDevice(Resolution resolution, int periods, long now, long[] totals) {
+		rings[resolution.ordinal()].sumPerDevice(periods, now, totals);
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////
+	private static class Ring {
+		final long millis;
+		/** Colunas: os períodos guardados, o atual e o próximo, já zerado */
+		final int columns;
+		/** Período de cada coluna */
+		final long[] stamps;
+		/** Último período iniciado */
+		final AtomicLong current = new AtomicLong(-1);
+		/** blocks[device / BLOCK][coluna * BLOCK + device % BLOCK] */
+		final AtomicReferenceArray<long[]> blocks;
+
+		Ring(Resolution resolution, int blockCount) {
+			this.millis = resolution.millis;
+			this.columns = resolution.periods + 2;
+			this.stamps = new long[columns];
+			Arrays.fill(stamps, -1);
+			this.blocks = new AtomicReferenceArray<long[]>(blockCount);
+		}
+
+		void add(int device, long delta, long now) {
+			long period = now / millis;
+			long c = current.get();
+			if (period > c)
+				rotate(c, period);
+			else if (period < c - 1)
+				return; //Relógio muito atrasado: a coluna já é de outro período
+			long[] block = block(device / BLOCK);
+			LONGS.getAndAdd(block, column(period) * BLOCK + device % BLOCK, delta);
+		}
+
+		private int column(long period) {
+			return (int)(period % columns);
+		}
+
+		private long[] block(int index) {
+			long[] block = blocks.get(index);
+			if (block == null) {
+				blocks.compareAndSet(index, null, new long[columns * BLOCK]);
+				block = blocks.get(index);
+			}
+			return block;
+		}
+
+		/** Zera as colunas dos períodos depois de c até period+1, exceto c+1, zerada na virada anterior */
+		private void rotate(long c, long period) {
+			while (period > c) {
+				if (current.compareAndSet(c, period)) {
+					long first = c < 0 ? period : Math.max(c + 2, period - columns + 2);
+					for (long p=first; p<=period+1; p++)
+						clear(p);
+					return;
+				}
+				c = current.get();
+			}
+		}
+
+		private void clear(long period) {
+			int column = column(period);
+			for (int i=0; i<blocks.length(); i++) {
+				long[] block = blocks.get(i);
+				if (block != null) {
+					for (int j=0; j<BLOCK; j++)
+						LONGS.setOpaque(block, column * BLOCK + j, 0L);
+				}
+			}
+			LONGS.setVolatile(stamps, column, period);
+		}
+
+		/** Períodos válidos: os que a coluna ainda guarda */
+		private boolean holds(long period) {
+			return (long)LONGS.getVolatile(stamps, column(period)) == period;
+		}
+
+		long sum(int device, int periods, long now, long[] values) {
+			long last = now / millis;
+			periods = Math.min(periods, columns - 2);
+			long total = 0;
+			for (long p=last-periods; p<=last; p++) {
+				if (p < 0 || !holds(p))
+					continue;
+				int base = column(p) * BLOCK;
+				long value = 0;
+				if (device >= 0) {
+					long[] block = blocks.get(device / BLOCK);
+					if (block != null)
+						value = (long)LONGS.getOpaque(block, base + device % BLOCK);
+				} else {
+					for (int i=0; i<blocks.length(); i++) {
+						long[] block = blocks.get(i);
+						if (block == null)
+							continue;
+						for (int j=0; j<BLOCK; j++)
+							value += (long)LONGS.getOpaque(block, base + j);
+					}
+				}
+				total += value;
+				if (values != null)
+					values[values.length - 1 - (int)(last - p)] = value;
+			}
+			return total;
+		}
+
+		void sumPerDevice(int periods, long now, long[] totals) {
+			long last = now / millis;
+			periods = Math.min(periods, columns - 2);
+			for (long p=last-periods; p<=last; p++) {
+				if (p < 0 || !holds(p))
+					continue;
+				int base = column(p) * BLOCK;
+				for (int i=0; i<blocks.length() && i * BLOCK < totals.length; i++) {
+					long[] block = blocks.get(i);
+					if (block == null)
+						continue;
+					int n = Math.min(BLOCK, totals.length - i * BLOCK);
+					for (int j=0; j<n; j++)
+						totals[i * BLOCK + j] += (long)LONGS.getOpaque(block, base + j);
+				}
+			}
+		}
+	}
+}
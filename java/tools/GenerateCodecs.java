@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gera veridis.embedded.rex.codec.Messages e Codecs a partir da descrição do protocolo.
+ *
+ * Uso (Java 11+, sem compilar):
+ *   java tools/GenerateCodecs.java src/veridis/embedded/rex/codec/rex.protocol src
+ */
+public class GenerateCodecs {
+	static final String PACKAGE = "veridis.embedded.rex.codec";
+	static final String NL = "\r\n";
+
+	static class Field {
+		String type;
+		String name;
+		/** Para bytes[N]: N, ou a expressão com os campos */
+		String size;
+
+		int fixedSize() {
+			switch (type) {
+				case "int": case "bool": case "ip": case "ipr": return 4;
+				case "byte": return 1;
+				case "bytes": return size != null && size.matches("\\d+") ? Integer.parseInt(size) : 0;
+				default: return 0;
+			}
+		}
+		String javaType() {
+			switch (type) {
+				case "bool": return "boolean";
+				case "bytes": return "byte[]";
+				case "string": return "String";
+				default: return "int";
+			}
+		}
+		/** Tamanho em bytes como expressão Java, para bytes[...] */
+		String sizeExpr() {
+			return size.replace("*", " * ");
+		}
+	}
+
+	static class Command {
+		String code;
+		String name;
+		String direction;
+		List<Field> fields = new ArrayList<>();
+
+		String constant() {
+			return name.replaceAll("(?<=[a-z0-9])(?=[A-Z])", "_").toUpperCase();
+		}
+		int fixedSize() {
+			int size = 0;
+			for (Field f : fields)
+				size += f.fixedSize();
+			return size;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: java tools/GenerateCodecs.java <rex.protocol> <source dir>");
+			System.exit(1);
+		}
+		List<Command> commands = parse(Paths.get(args[0]));
+		Path dir = Paths.get(args[1], PACKAGE.split("\\."));
+		Files.createDirectories(dir);
+		write(dir.resolve("Messages.java"), messages(commands));
+		write(dir.resolve("Codecs.java"), codecs(commands));
+	}
+
+	static List<Command> parse(Path file) throws IOException {
+		List<Command> commands = new ArrayList<>();
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			String[] parts = line.split("\\s+", 4);
+			Command cmd = new Command();
+			cmd.code = parts[0];
+			cmd.name = parts[1];
+			cmd.direction = parts[2];
+			if (parts.length > 3) {
+				for (String decl : parts[3].split(",")) {
+					String[] td = decl.trim().split("\\s+");
+					Field f = new Field();
+					f.name = td[1];
+					f.type = td[0];
+					if (f.type.startsWith("bytes[")) {
+						f.size = f.type.substring(6, f.type.length() - 1);
+						f.type = "bytes";
+					}
+					cmd.fields.add(f);
+				}
+			}
+			commands.add(cmd);
+		}
+		return commands;
+	}
+
+	static String direction(String dir) {
+		switch (dir) {
+			case "rex>server": return "Rex => Servidor";
+			case "server>rex": return "Servidor => Rex";
+			default: return "Rex <=> Servidor";
+		}
+	}
+
+	static String messages(List<Command> commands) {
+		StringBuilder s = new StringBuilder();
+		s.append("// Gerado por tools/GenerateCodecs.java a partir de rex.protocol. N\u00e3o edite.").append(NL);
+		s.append("package ").append(PACKAGE).append(";").append(NL).append(NL);
+		s.append("import java.io.IOException;").append(NL);
+		s.append("import java.nio.ByteBuffer;").append(NL).append(NL);
+		s.append("public final class Messages {").append(NL);
+		for (Command c : commands)
+			s.append("\tpublic static final int COMMAND_").append(c.constant()).append(" = ").append(c.code).append(";").append(NL);
+		s.append(NL).append("\tprivate Messages() {}").append(NL);
+
+		for (Command c : commands) {
+			s.append(NL).append(NL);
+			s.append("\t///////////////////////////////////////////////////////////////////////////////////////////////").append(NL);
+			s.append("\t/** ").append(c.name).append(" - ").append(c.code).append(", ").append(direction(c.direction)).append(" */").append(NL);
+			s.append("\tpublic static final class ").append(c.name).append(" extends RexMessage {").append(NL);
+			for (Field f : c.fields) {
+				s.append("\t\tpublic ").append(f.javaType()).append(" ").append(f.name);
+				if (f.type.equals("bytes") && f.size != null && f.size.matches("\\d+"))
+					s.append(" = new byte[").append(f.size).append("]");
+				s.append(";").append(NL);
+			}
+			if (!c.fields.isEmpty())
+				s.append(NL);
+
+			s.append("\t\t@Override").append(NL);
+			s.append("\t\tpublic int getCommand() {").append(NL);
+			s.append("\t\t\treturn COMMAND_").append(c.constant()).append(";").append(NL);
+			s.append("\t\t}").append(NL).append(NL);
+
+			s.append("\t\t@Override").append(NL);
+			s.append("\t\tpublic void decode(ByteBuffer in) throws IOException {").append(NL);
+			if (c.fixedSize() > 0)
+				s.append("\t\t\tneed(in, ").append(c.fixedSize()).append(");").append(NL);
+			for (Field f : c.fields)
+				s.append("\t\t\t").append(decode(f)).append(NL);
+			s.append("\t\t}").append(NL).append(NL);
+
+			s.append("\t\t@Override").append(NL);
+			s.append("\t\tpublic int encodedLength() {").append(NL);
+			StringBuilder len = new StringBuilder().append(c.fixedSize());
+			for (Field f : c.fields) {
+				if (f.type.equals("bytes") && f.size == null)
+					len.append(" + length(").append(f.name).append(")");
+				else if (f.type.equals("bytes") && f.fixedSize() == 0)
+					len.append(" + ").append(f.sizeExpr());
+				else if (f.type.equals("string"))
+					len.append(" + getBytes(").append(f.name).append(").length");
+			}
+			s.append("\t\t\treturn ").append(len).append(";").append(NL);
+			s.append("\t\t}").append(NL).append(NL);
+
+			s.append("\t\t@Override").append(NL);
+			s.append("\t\tpublic void encode(ByteBuffer out) {").append(NL);
+			for (Field f : c.fields)
+				s.append("\t\t\t").append(encode(f)).append(NL);
+			s.append("\t\t}").append(NL).append(NL);
+
+			s.append("\t\t@Override").append(NL);
+			s.append("\t\tpublic String toString() {").append(NL);
+			StringBuilder str = new StringBuilder("\"").append(c.name).append("[");
+			for (int i = 0; i < c.fields.size(); i++) {
+				Field f = c.fields.get(i);
+				str.append(i == 0 ? "" : ", ").append(f.name).append("=\" + ");
+				if (f.type.equals("bytes"))
+					str.append("length(").append(f.name).append(") + \" bytes");
+				else
+					str.append(f.name).append(" + \"");
+			}
+			str.append("]\"");
+			s.append("\t\t\treturn ").append(str).append(";").append(NL);
+			s.append("\t\t}").append(NL);
+			s.append("\t}").append(NL);
+		}
+		s.append("}").append(NL);
+		return s.toString();
+	}
+
+	static String decode(Field f) {
+		switch (f.type) {
+			case "int":    return f.name + " = in.getInt();";
+			case "bool":   return f.name + " = in.getInt() != 0;";
+			case "byte":   return f.name + " = in.get() & 0xFF;";
+			case "ip":     return f.name + " = getIp(in);";
+			case "ipr":    return f.name + " = getIpReversed(in);";
+			case "string": return f.name + " = getString(in);";
+			case "bytes":
+				if (f.size == null)
+					return f.name + " = getBytes(in, in.remaining(), " + f.name + ");";
+				if (f.fixedSize() > 0)
+					return f.name + " = getBytes(in, " + f.size + ", " + f.name + ");";
+				return f.name + " = getBytes(in, (long)" + f.sizeExpr() + ", " + f.name + ");";
+			default: throw new IllegalArgumentException("Unknown type " + f.type);
+		}
+	}
+
+	static String encode(Field f) {
+		switch (f.type) {
+			case "int":    return "out.putInt(" + f.name + ");";
+			case "bool":   return "out.putInt(" + f.name + " ? 1 : 0);";
+			case "byte":   return "out.put((byte)" + f.name + ");";
+			case "ip":     return "putIp(out, " + f.name + ");";
+			case "ipr":    return "putIpReversed(out, " + f.name + ");";
+			case "string": return "out.put(getBytes(" + f.name + "));";
+			case "bytes":
+				if (f.size == null)
+					return "putBytes(out, " + f.name + ", length(" + f.name + "));";
+				return "putBytes(out, " + f.name + ", " + f.sizeExpr() + ");";
+			default: throw new IllegalArgumentException("Unknown type " + f.type);
+		}
+	}
+
+	static String codecs(List<Command> commands) {
+		StringBuilder s = new StringBuilder();
+		s.append("// Gerado por tools/GenerateCodecs.java a partir de rex.protocol. N\u00e3o edite.").append(NL);
+		s.append("package ").append(PACKAGE).append(";").append(NL).append(NL);
+		s.append("public final class Codecs {").append(NL);
+		for (Command c : commands) {
+			String type = "Messages." + c.name;
+			s.append("\tpublic static final Codec<").append(type).append("> ").append(c.constant())
+				.append(" = new Codec<").append(type).append(">(Messages.COMMAND_").append(c.constant()).append(", \"").append(c.name).append("\") {").append(NL);
+			s.append("\t\t@Override").append(NL);
+			s.append("\t\tpublic ").append(type).append(" newMessage() {").append(NL);
+			s.append("\t\t\treturn new ").append(type).append("();").append(NL);
+			s.append("\t\t}").append(NL);
+			s.append("\t};").append(NL);
+		}
+		s.append(NL).append("\tprivate Codecs() {}").append(NL).append(NL);
+		s.append("\tpublic static void registerAll(CodecRegistry registry) {").append(NL);
+		for (Command c : commands)
+			s.append("\t\tregistry.register(").append(c.constant()).append(");").append(NL);
+		s.append("\t}").append(NL);
+		s.append("}").append(NL);
+		return s.toString();
+	}
+
+	static void write(Path file, String content) throws IOException {
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+		System.out.println("Generated " + file);
+	}
+}